@@ -27,11 +27,14 @@ import static org.nd4j.linalg.indexing.NDArrayIndex.point;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.uima.cas.CAS;
@@ -79,9 +82,7 @@ public class DL4JSequenceRecommender
     
     public static final String NO_LABEL = "*NO-LABEL*";
 
-    public static final Key<String[]> KEY_TAGSET = new Key<>("labelDict");
-    public static final Key<MultiLayerNetwork> KEY_MODEL = new Key<>("model");
-    public static final Key<INDArray> KEY_UNKNOWN = new Key<>("unknown");
+    public static final Key<TrainedModel> KEY_MODEL = new Key<>("model");
     
     private final String layerName;
     private final String featureName;
@@ -115,9 +116,8 @@ public class DL4JSequenceRecommender
             // Use the training data to train the network
             MultiLayerNetwork model = train(trainingData, tagsetCollector);
                         
-            aContext.put(KEY_MODEL, model);
-            aContext.put(KEY_TAGSET, compileTagset(tagsetCollector));
-            aContext.put(KEY_UNKNOWN, randUnk);
+            aContext.put(KEY_MODEL,
+                    new TrainedModel(model, compileTagset(tagsetCollector), randUnk));
             aContext.markAsReadyForPrediction();
         }
         catch (IOException e) {
@@ -125,6 +125,68 @@ public class DL4JSequenceRecommender
         }
     }
     
+    @Override
+    public boolean update(RecommenderContext aContext, Map<String, CAS> aChangedCasses,
+            Collection<String> aRemovedDocuments)
+    {
+        Optional<TrainedModel> previousModel = aContext.get(KEY_MODEL);
+        if (!previousModel.isPresent()) {
+            train(aContext, new ArrayList<>(aChangedCasses.values()));
+            return true;
+        }
+        
+        // Fine-tuning can only add to what the network has learned, but it cannot make the
+        // network forget the documents which have been removed
+        if (!aRemovedDocuments.isEmpty()) {
+            return false;
+        }
+        
+        // Continue with the label IDs of the existing model - new labels are added at the end
+        Object2IntMap<String> tagsetCollector = new Object2IntOpenHashMap<>();
+        String[] previousTagset = previousModel.get().getTagset();
+        for (int i = 0; i < previousTagset.length; i++) {
+            tagsetCollector.put(previousTagset[i], i);
+        }
+        
+        try {
+            ensureEmbeddingsAreAvailable();
+            if (previousModel.get().getUnknownVector() != null) {
+                randUnk = previousModel.get().getUnknownVector();
+            }
+            
+            List<Sample> trainingData = extractData(new ArrayList<>(aChangedCasses.values()),
+                    true);
+            
+            // The output layer of the network cannot grow with the tagset
+            long tagsetSize = trainingData.stream()
+                    .flatMap(sample -> sample.getTags().stream())
+                    .filter(tag -> !tagsetCollector.containsKey(tag))
+                    .distinct()
+                    .count() + tagsetCollector.size();
+            if (tagsetSize > traits.getMaxTagsetSize()) {
+                return false;
+            }
+            
+            // The network may be in use for predictions, so a copy of it is fine-tuned
+            MultiLayerNetwork model = previousModel.get().getNetwork().clone();
+            fit(model, trainingData, tagsetCollector);
+            
+            aContext.put(KEY_MODEL,
+                    new TrainedModel(model, compileTagset(tagsetCollector), randUnk));
+            aContext.markAsReadyForPrediction();
+            return true;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Unable to update model", e);
+        }
+    }
+    
+    @Override
+    public boolean supportsIncrementalTraining()
+    {
+        return true;
+    }
+    
     private void ensureEmbeddingsAreAvailable() throws IOException
     {
         if (wordVectors == null) {
@@ -189,7 +251,14 @@ public class DL4JSequenceRecommender
     {
         // Configure the neural network
         MultiLayerNetwork model = createConfiguredNetwork(traits, wordVectors.dimensions());
-
+        fit(model, aTrainingData, aTagset);
+        return model;
+    }
+    
+    private void fit(MultiLayerNetwork aModel, List<Sample> aTrainingData,
+            Object2IntMap<String> aTagset)
+        throws IOException
+    {
         final int limit = traits.getTrainingSetSizeLimit();
         final int batchSize = traits.getBatchSize();
 
@@ -208,7 +277,7 @@ public class DL4JSequenceRecommender
                     sentNum++;
                 }
                 
-                model.fit(new ListDataSetIterator<DataSet>(batch, batch.size()));
+                aModel.fit(new ListDataSetIterator<DataSet>(batch, batch.size()));
                 log.trace("Epoch {}: processed {} of {} sentences", epoch, sentNum,
                         aTrainingData.size());
                 
@@ -217,8 +286,6 @@ public class DL4JSequenceRecommender
                 }
             }
         }
-
-        return model;
     }
 
     private DataSet vectorize(List<? extends Sample> aData)
@@ -353,10 +420,12 @@ public class DL4JSequenceRecommender
     @Override
     public void predict(RecommenderContext aContext, CAS aCas) throws RecommendationException
     {
-        String[] tagset = aContext.get(KEY_TAGSET).orElseThrow(() ->
-                new RecommendationException("Key [" + KEY_TAGSET + "] not found in context"));
-        MultiLayerNetwork classifier = aContext.get(KEY_MODEL).orElseThrow(() ->
+        // Network and tagset are read from the same object so that a concurrent update of the
+        // model cannot pair the new network with the old tagset
+        TrainedModel model = aContext.get(KEY_MODEL).orElseThrow(() ->
                 new RecommendationException("Key [" + KEY_MODEL + "] not found in context"));
+        String[] tagset = model.getTagset();
+        MultiLayerNetwork classifier = model.getNetwork();
         
         try {
             Type sentenceType = getType(aCas, Sentence.class);
@@ -645,4 +714,41 @@ public class DL4JSequenceRecommender
             return tokens;
         }
     }
+    
+    /**
+     * The network together with the tagset which maps its outputs to labels. Both are only valid
+     * together, so they are stored in the context as a single value.
+     */
+    public static class TrainedModel
+        implements Serializable
+    {
+        private static final long serialVersionUID = 6042174581826391572L;
+        
+        private final MultiLayerNetwork network;
+        private final String[] tagset;
+        private final INDArray unknownVector;
+
+        public TrainedModel(MultiLayerNetwork aNetwork, String[] aTagset,
+                INDArray aUnknownVector)
+        {
+            network = aNetwork;
+            tagset = aTagset;
+            unknownVector = aUnknownVector;
+        }
+
+        public MultiLayerNetwork getNetwork()
+        {
+            return network;
+        }
+
+        public String[] getTagset()
+        {
+            return tagset;
+        }
+
+        public INDArray getUnknownVector()
+        {
+            return unknownVector;
+        }
+    }
 }
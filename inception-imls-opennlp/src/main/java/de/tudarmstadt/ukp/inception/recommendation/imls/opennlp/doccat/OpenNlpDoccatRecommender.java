@@ -132,6 +132,14 @@ public class OpenNlpDoccatRecommender
         }
     }
 
+    @Override
+    public boolean isPredictionThreadSafe()
+    {
+        // predict() creates a new DocumentCategorizerME for each CAS and only reads the
+        // DoccatModel, which is not changed after training.
+        return true;
+    }
+
     @Override
     public double evaluate(List<CAS> aCasses, DataSplitter aDataSplitter)
         throws RecommendationException
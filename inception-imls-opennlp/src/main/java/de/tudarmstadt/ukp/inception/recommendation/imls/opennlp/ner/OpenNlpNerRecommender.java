@@ -136,6 +136,14 @@ public class OpenNlpNerRecommender
         }
     }
 
+    @Override
+    public boolean isPredictionThreadSafe()
+    {
+        // NameFinderME keeps adaptive data between sentences, so predict() creates a new finder
+        // for each CAS. The TokenNameFinderModel is not changed after training.
+        return true;
+    }
+
     @Override
     public double evaluate(List<CAS> aCasses, DataSplitter aDataSplitter)
         throws RecommendationException
@@ -161,6 +161,14 @@ public class OpenNlpPosRecommender
         }
     }
 
+    @Override
+    public boolean isPredictionThreadSafe()
+    {
+        // POSTaggerME caches the probabilities of the last tagged sentence, so predict() creates a
+        // new tagger for each CAS. The POSModel is not changed after training.
+        return true;
+    }
+
     @Override
     public double evaluate(List<CAS> aCasses, DataSplitter aDataSplitter)
         throws RecommendationException
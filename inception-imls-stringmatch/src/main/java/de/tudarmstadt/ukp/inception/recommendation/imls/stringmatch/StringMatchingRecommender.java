@@ -19,6 +19,7 @@ package de.tudarmstadt.ukp.inception.recommendation.imls.stringmatch;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
 import static java.util.Comparator.comparingInt;
 import static org.apache.commons.lang3.StringUtils.isNoneBlank;
 import static org.apache.commons.lang3.StringUtils.isNotEmpty;
@@ -29,7 +30,10 @@ import static org.apache.uima.fit.util.CasUtil.selectCovered;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -59,6 +63,8 @@ public class StringMatchingRecommender
     implements RecommendationEngine
 {
     public static final Key<Trie<DictEntry>> KEY_MODEL = new Key<>("model");
+    public static final Key<Map<String, List<GazeteerEntry>>> KEY_DOCUMENTS = new Key<>(
+            "documents");
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -105,11 +111,8 @@ public class StringMatchingRecommender
         
         // Learn from the annotated data
         for (CAS cas : aCasses) {
-            Type annotationType = getType(cas, layerName);
-            Feature labelFeature = annotationType.getFeatureByBaseName(featureName);
-
-            for (AnnotationFS ann : select(cas, annotationType)) {
-                learn(dict, ann.getCoveredText(), ann.getFeatureValueAsString(labelFeature));
+            for (GazeteerEntry entry : extractEntries(cas)) {
+                learn(dict, entry.text, entry.label);
             }
         }
         
@@ -119,6 +122,66 @@ public class StringMatchingRecommender
         log.debug("Learned dictionary model with {} entries", dict.size());
     }
 
+    @Override
+    public boolean update(RecommenderContext aContext, Map<String, CAS> aChangedCasses,
+            Collection<String> aRemovedDocuments)
+    {
+        Optional<Map<String, List<GazeteerEntry>>> previousDocuments = aContext
+                .get(KEY_DOCUMENTS);
+        
+        // A model created by train() does not know which entries came from which document
+        if (!previousDocuments.isPresent() && aContext.get(KEY_MODEL).isPresent()) {
+            return false;
+        }
+        
+        // Only the changed documents are read from their CASes. The entries of the other
+        // documents are remembered from previous updates.
+        Map<String, List<GazeteerEntry>> documents = new HashMap<>(
+                previousDocuments.orElse(emptyMap()));
+        aRemovedDocuments.forEach(documents::remove);
+        aChangedCasses.forEach((name, cas) -> documents.put(name, extractEntries(cas)));
+        
+        // The dictionary may be in use for predictions, so a new one is created instead of
+        // changing the existing one
+        Trie<DictEntry> dict = createTrie();
+        for (GazeteerEntry entry : pretrainData) {
+            learn(dict, entry.text, entry.label);
+        }
+        for (List<GazeteerEntry> entries : documents.values()) {
+            for (GazeteerEntry entry : entries) {
+                learn(dict, entry.text, entry.label);
+            }
+        }
+        
+        aContext.put(KEY_MODEL, dict);
+        aContext.put(KEY_DOCUMENTS, documents);
+        aContext.markAsReadyForPrediction();
+        
+        log.debug("Updated dictionary model with [{}] changed and [{}] removed documents to "
+                + "{} entries", aChangedCasses.size(), aRemovedDocuments.size(), dict.size());
+        
+        return true;
+    }
+    
+    @Override
+    public boolean supportsIncrementalTraining()
+    {
+        return true;
+    }
+
+    private List<GazeteerEntry> extractEntries(CAS aCas)
+    {
+        Type annotationType = getType(aCas, layerName);
+        Feature labelFeature = annotationType.getFeatureByBaseName(featureName);
+
+        List<GazeteerEntry> entries = new ArrayList<>();
+        for (AnnotationFS ann : select(aCas, annotationType)) {
+            entries.add(new GazeteerEntry(ann.getCoveredText(),
+                    ann.getFeatureValueAsString(labelFeature)));
+        }
+        return entries;
+    }
+
     @Override
     public void predict(RecommenderContext aContext, CAS aCas) throws RecommendationException
     {
@@ -142,6 +205,13 @@ public class StringMatchingRecommender
         }
     }
 
+    @Override
+    public boolean isPredictionThreadSafe()
+    {
+        // The dictionary is only read during prediction
+        return true;
+    }
+
     private List<Sample> predict(int aDocNo, CAS aCas, Trie<DictEntry> aDict)
     {
         Type sentenceType = getType(aCas, Sentence.class);
@@ -19,6 +19,9 @@ package de.tudarmstadt.ukp.inception.recommendation.imls.stringmatch;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 import static org.apache.uima.fit.factory.CollectionReaderFactory.createReader;
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -138,6 +141,44 @@ public class StringMatchingRecommenderTest
             .anyMatch(prediction -> prediction.getScore() > 0.0 && prediction.getScore() < 1.0 );
     }
 
+    @Test
+    public void thatIncrementalTrainingWorks() throws Exception
+    {
+        StringMatchingRecommender sut = new StringMatchingRecommender(recommender, traits);
+        
+        assertThat(sut.update(context, singletonMap("doc1", createCas("John", "PER")),
+                emptyList()))
+            .as("Model has been created")
+            .isTrue();
+        int entriesAfterFirstDocument = context.get(StringMatchingRecommender.KEY_MODEL).get()
+                .size();
+        
+        assertThat(sut.update(context, singletonMap("doc2", createCas("Berlin", "LOC")),
+                emptyList()))
+            .as("Model has been updated")
+            .isTrue();
+        assertThat(context.get(StringMatchingRecommender.KEY_MODEL).get().size())
+            .as("Entries of the second document have been added")
+            .isGreaterThan(entriesAfterFirstDocument);
+        
+        sut.update(context, emptyMap(), singletonList("doc2"));
+        assertThat(context.get(StringMatchingRecommender.KEY_MODEL).get().size())
+            .as("Entries of the removed document have been removed")
+            .isEqualTo(entriesAfterFirstDocument);
+    }
+    
+    @Test
+    public void thatModelWithoutDocumentsIsNotUpdated() throws Exception
+    {
+        StringMatchingRecommender sut = new StringMatchingRecommender(recommender, traits);
+        
+        sut.train(context, asList(createCas("John", "PER")));
+        
+        assertThat(sut.update(context, singletonMap("doc2", createCas("Berlin", "LOC")),
+                emptyList()))
+            .as("Model trained without document information must be trained again")
+            .isFalse();
+    }
 
     @Test
     public void thatEvaluationWorks() throws Exception
@@ -220,6 +261,15 @@ public class StringMatchingRecommenderTest
         return casList;
     }
 
+    private CAS createCas(String aText, String aLabel) throws UIMAException
+    {
+        JCas jcas = JCasFactory.createText(aText);
+        NamedEntity ne = new NamedEntity(jcas, 0, aText.length());
+        ne.setValue(aLabel);
+        ne.addToIndexes();
+        return jcas.getCas();
+    }
+
     private static Recommender buildRecommender()
     {
         AnnotationLayer layer = new AnnotationLayer();
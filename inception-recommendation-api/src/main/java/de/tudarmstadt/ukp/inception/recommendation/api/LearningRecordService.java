@@ -18,6 +18,7 @@
 package de.tudarmstadt.ukp.inception.recommendation.api;
 
 import java.util.List;
+import java.util.Optional;
 
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
@@ -42,6 +43,16 @@ public interface LearningRecordService
      */
     List<LearningRecord> listRecords(String user, AnnotationLayer layer, int aLimit);
 
+    /**
+     * Looks up the action the given user last performed on a suggestion with the given label at
+     * the given position in the given document. Learning records with the action
+     * {@link LearningRecordType#SHOWN} are not considered. The records are indexed in memory, so
+     * this method is cheap enough to be called for every suggestion whenever the visibility of the
+     * suggestions is determined.
+     */
+    Optional<LearningRecordType> getUserAction(String aUser, AnnotationLayer aLayer,
+            String aDocumentName, int aBegin, int aEnd, String aLabel);
+
     void deleteRecords(SourceDocument document, String user);
 
     LearningRecord getRecordById(long recordId);
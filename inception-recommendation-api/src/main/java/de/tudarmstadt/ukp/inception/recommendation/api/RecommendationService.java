@@ -88,6 +88,13 @@ public interface RecommendationService
     
     boolean switchPredictions(User aUser, Project aProject);
 
+    /**
+     * Returns the IDs of the documents which the given user has recently opened in the given
+     * project, the most recently opened (i.e. usually the currently open) document first.
+     * Predictions for these documents are generated before predictions for other documents.
+     */
+    List<Long> getRecentlyOpenedDocuments(User aUser, Project aProject);
+
     /**
      * Returns the {@code RecommenderContext} for the given recommender if it exists, else it
      * creates an empty one.
@@ -18,6 +18,7 @@
 package de.tudarmstadt.ukp.inception.recommendation.api.model;
 
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Objects;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -65,19 +66,20 @@ public class AnnotationSuggestion
     
     private final int id;
 
+    // The strings are not final so they can be replaced by pooled instances, see internStrings()
     private final long recommenderId;
-    private final String recommenderName;
+    private String recommenderName;
     private final long layerId;
-    private final String feature;
+    private String feature;
 
-    private final String documentName;
+    private String documentName;
 
     private final int begin;
     private final int end;
-    private final String coveredText;
+    private String coveredText;
 
-    private final String label;
-    private final String uiLabel;
+    private String label;
+    private String uiLabel;
     private final double confidence;
 
     private int hidingFlags = 0;
@@ -122,6 +124,32 @@ public class AnnotationSuggestion
         documentName = aObject.documentName;
     }
 
+    /**
+     * Replaces the strings of this suggestion with equal instances from the given pool (adding
+     * them to the pool if they are not there yet). The same labels, names and often also covered
+     * texts repeat across a large number of suggestions, so this avoids keeping many copies of
+     * them in memory.
+     */
+    void internStrings(Map<String, String> aPool)
+    {
+        recommenderName = intern(aPool, recommenderName);
+        feature = intern(aPool, feature);
+        documentName = intern(aPool, documentName);
+        coveredText = intern(aPool, coveredText);
+        label = intern(aPool, label);
+        uiLabel = intern(aPool, uiLabel);
+    }
+    
+    private static String intern(Map<String, String> aPool, String aValue)
+    {
+        if (aValue == null) {
+            return null;
+        }
+        
+        String pooled = aPool.putIfAbsent(aValue, aValue);
+        return pooled != null ? pooled : aValue;
+    }
+
     // Getter and setter
 
     public String getCoveredText()
@@ -17,15 +17,26 @@
  */
 package de.tudarmstadt.ukp.inception.recommendation.api.model;
 
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,7 +60,25 @@ public class Predictions
 {
     private static final long serialVersionUID = -1598768729246662885L;
     
-    private Map<ExtendedId, AnnotationSuggestion> predictions = new ConcurrentHashMap<>();
+    // The predictions indexed by document name and layer ID, sorted by offset - used to look up
+    // the predictions within a window of a document. This is the primary store of the predictions,
+    // the other index only references the same suggestions.
+    private final Map<String, Map<Long, NavigableMap<ExtendedId, AnnotationSuggestion>>>
+            predictionsByOffset = new ConcurrentHashMap<>();
+    
+    // The predictions indexed by document name and by recommender ID and prediction ID, i.e. the
+    // parts of the VID identifying a prediction
+    private final Map<String, Map<Pair<Long, Integer>, AnnotationSuggestion>> predictionsById =
+            new ConcurrentHashMap<>();
+    
+    // Versions of the inputs (model version and annotation CAS version) from which the
+    // predictions of a recommender for a document were generated - by recommender ID and document
+    // name
+    private final Map<Pair<Long, String>, Pair<Long, Long>> inputVersions =
+            new ConcurrentHashMap<>();
+    
+    // Pool of the strings used by the suggestions, see AnnotationSuggestion.internStrings()
+    private final Map<String, String> stringPool = new ConcurrentHashMap<>();
     
     private final Project project;
     private final User user;
@@ -67,7 +96,7 @@ public class Predictions
         user = aUser;
 
         if (aPredictions != null) {
-            predictions = new ConcurrentHashMap<ExtendedId, AnnotationSuggestion>(aPredictions);
+            aPredictions.forEach(this::putPrediction);
         }
     }
     
@@ -119,17 +148,28 @@ public class Predictions
     private List<AnnotationSuggestion> getFlattenedPredictions(String aDocumentName,
         AnnotationLayer aLayer, int aWindowBegin, int aWindowEnd)
     {
-        List<Map.Entry<ExtendedId, AnnotationSuggestion>> p = predictions.entrySet().stream()
-            .filter(f -> f.getKey().getDocumentName().equals(aDocumentName))
-            .filter(f -> f.getKey().getLayerId() == aLayer.getId())
-            .filter(f -> aWindowBegin == -1 || (f.getKey().getBegin() >= aWindowBegin))
-            .filter(f -> aWindowEnd == -1 || (f.getKey().getEnd() <= aWindowEnd))
-            .sorted(Comparator.comparingInt(e2 -> e2.getValue().getBegin()))
-            .collect(Collectors.toList());
-
-        return p.stream()
-            .map(Map.Entry::getValue)
-            .collect(Collectors.toList());
+        NavigableMap<ExtendedId, AnnotationSuggestion> index = predictionsByOffset
+                .getOrDefault(aDocumentName, emptyMap()).get(aLayer.getId());
+        if (index == null) {
+            return new ArrayList<>();
+        }
+        
+        if (aWindowBegin != -1) {
+            index = index.tailMap(probe(aWindowBegin, Integer.MIN_VALUE, true), true);
+        }
+        
+        List<AnnotationSuggestion> result = new ArrayList<>();
+        for (Map.Entry<ExtendedId, AnnotationSuggestion> e : index.entrySet()) {
+            // Suggestions starting after the window cannot end within the window
+            if (aWindowEnd != -1 && e.getKey().getBegin() > aWindowEnd) {
+                break;
+            }
+            
+            if (aWindowEnd == -1 || e.getKey().getEnd() <= aWindowEnd) {
+                result.add(e.getValue());
+            }
+        }
+        return result;
     }
 
     /**
@@ -138,11 +178,8 @@ public class Predictions
      */
     public Optional<AnnotationSuggestion> getPredictionByVID(SourceDocument aDocument, VID aVID)
     {
-        return predictions.values().stream()
-                .filter(f -> f.getDocumentName().equals(aDocument.getName()))
-                .filter(f -> f.getId() == aVID.getSubId())
-                .filter(f -> f.getRecommenderId() == aVID.getId())
-                .findFirst();
+        return Optional.ofNullable(predictionsById.getOrDefault(aDocument.getName(), emptyMap())
+                .get(new ImmutablePair<>((long) aVID.getId(), aVID.getSubId())));
     }
 
     /**
@@ -151,9 +188,8 @@ public class Predictions
     public Optional<AnnotationSuggestion> getPrediction(SourceDocument aDocument, int aBegin,
             int aEnd, String aLabel)
     {
-        return predictions.values().stream()
-                .filter(f -> f.getDocumentName().equals(aDocument.getName()))
-                .filter(f -> f.getBegin() == aBegin && f.getEnd() == aEnd)
+        return predictionsByOffset.getOrDefault(aDocument.getName(), emptyMap()).values().stream()
+                .flatMap(index -> getAtOffset(index, aBegin, aEnd).stream())
                 .filter(f -> f.getLabel().equals(aLabel))
                 .max(Comparator.comparingInt(AnnotationSuggestion::getId));
     }
@@ -167,12 +203,144 @@ public class Predictions
     {
         aPredictions.forEach(prediction -> {
             if (prediction.getLabel() != null) {
-                predictions.put(new ExtendedId(user.getUsername(), project.getId(),
+                prediction.internStrings(stringPool);
+                putPrediction(new ExtendedId(user.getUsername(), project.getId(),
                         prediction.getDocumentName(), aLayerId, prediction.getOffset(),
                         prediction.getRecommenderId(), prediction.getId(), -1), prediction);
             }
         });
     }
+    
+    private void putPrediction(ExtendedId aId, AnnotationSuggestion aPrediction)
+    {
+        predictionsByOffset.computeIfAbsent(aId.getDocumentName(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(aId.getLayerId(),
+                    k -> new ConcurrentSkipListMap<>(new OffsetComparator()))
+                .put(aId, aPrediction);
+        predictionsById.computeIfAbsent(aId.getDocumentName(), k -> new ConcurrentHashMap<>())
+                .put(new ImmutablePair<>(aId.getRecommenderId(), aId.getAnnotationId()),
+                        aPrediction);
+    }
+    
+    private static List<AnnotationSuggestion> getAtOffset(
+            NavigableMap<ExtendedId, AnnotationSuggestion> aIndex, int aBegin, int aEnd)
+    {
+        return new ArrayList<>(aIndex.subMap(probe(aBegin, aEnd, true), true,
+                probe(aBegin, aEnd, false), true).values());
+    }
+    
+    /**
+     * @return a key which sorts before ({@code aLower}) or after all predictions at the given
+     *         offset in an index sorted by {@link OffsetComparator}.
+     */
+    private static ExtendedId probe(int aBegin, int aEnd, boolean aLower)
+    {
+        return new ExtendedId(null, 0, null, 0, new Offset(aBegin, aEnd),
+                aLower ? Long.MIN_VALUE : Long.MAX_VALUE,
+                aLower ? Integer.MIN_VALUE : Integer.MAX_VALUE,
+                aLower ? Integer.MIN_VALUE : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Records from which inputs the predictions of the given recommender for the given document
+     * were generated.
+     * 
+     * @param aRecommenderId
+     *            the recommender.
+     * @param aDocumentName
+     *            the document.
+     * @param aModelVersion
+     *            the model version used, see {@code RecommenderContext.getVersion()}.
+     * @param aCasVersion
+     *            the version of the annotation CAS the predictions were made on.
+     */
+    public void putInputVersion(long aRecommenderId, String aDocumentName, long aModelVersion,
+            long aCasVersion)
+    {
+        inputVersions.put(new ImmutablePair<>(aRecommenderId, aDocumentName),
+                new ImmutablePair<>(aModelVersion, aCasVersion));
+    }
+
+    /**
+     * @return whether the predictions of the given recommender for the given document were
+     *         generated from the given inputs, i.e. whether predicting again would yield the same
+     *         predictions.
+     */
+    public boolean isUpToDate(long aRecommenderId, String aDocumentName, long aModelVersion,
+            long aCasVersion)
+    {
+        Pair<Long, Long> version = inputVersions
+                .get(new ImmutablePair<>(aRecommenderId, aDocumentName));
+        return version != null && version.getLeft() == aModelVersion
+                && version.getRight() == aCasVersion;
+    }
+
+    /**
+     * @return all predictions of the given recommender for the given document.
+     */
+    public List<AnnotationSuggestion> getPredictions(long aRecommenderId, String aDocumentName)
+    {
+        return predictionsById.getOrDefault(aDocumentName, emptyMap()).values().stream()
+                .filter(f -> f.getRecommenderId() == aRecommenderId)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Creates a copy of these predictions which additionally contains the predictions of the given
+     * other predictions for all documents except the given ones. This allows publishing the
+     * predictions for some documents while the predictions for the remaining documents are still
+     * being generated.
+     * 
+     * @param aOther
+     *            the predictions to fill in from, e.g. the previous predictions.
+     * @param aExcludedDocuments
+     *            names of the documents for which no predictions are taken from the other
+     *            predictions.
+     * @return the merged predictions.
+     */
+    public Predictions mergeWith(Predictions aOther, Set<String> aExcludedDocuments)
+    {
+        Predictions merged = new Predictions(project, user);
+        merged.copyDocuments(this, emptySet());
+        merged.inputVersions.putAll(inputVersions);
+        
+        if (aOther != null) {
+            Set<String> skippedDocuments = new HashSet<>(aExcludedDocuments);
+            skippedDocuments.addAll(predictionsByOffset.keySet());
+            merged.copyDocuments(aOther, skippedDocuments);
+            aOther.inputVersions.forEach((key, version) -> {
+                if (!aExcludedDocuments.contains(key.getRight())) {
+                    merged.inputVersions.putIfAbsent(key, version);
+                }
+            });
+        }
+        
+        return merged;
+    }
+
+    /**
+     * Copies the per-document indexes of the given predictions into this object. The indexes are
+     * copied as a whole so the sort order does not have to be re-established for each prediction.
+     */
+    private void copyDocuments(Predictions aSource, Set<String> aSkippedDocuments)
+    {
+        aSource.predictionsByOffset.forEach((document, layers) -> {
+            if (aSkippedDocuments.contains(document)) {
+                return;
+            }
+            
+            Map<Long, NavigableMap<ExtendedId, AnnotationSuggestion>> copy =
+                    new ConcurrentHashMap<>();
+            layers.forEach((layerId, index) -> copy.put(layerId,
+                    new ConcurrentSkipListMap<>(index)));
+            predictionsByOffset.put(document, copy);
+        });
+        aSource.predictionsById.forEach((document, index) -> {
+            if (!aSkippedDocuments.contains(document)) {
+                predictionsById.put(document, new ConcurrentHashMap<>(index));
+            }
+        });
+    }
 
     public Project getProject() {
         return project;
@@ -180,23 +348,32 @@ public class Predictions
 
     public boolean hasPredictions()
     {
-        return !predictions.isEmpty();
+        return predictionsByOffset.values().stream()
+                .flatMap(layers -> layers.values().stream())
+                .anyMatch(index -> !index.isEmpty());
     }
 
     public Map<ExtendedId, AnnotationSuggestion> getPredictions()
     {
-        return predictions;
+        Map<ExtendedId, AnnotationSuggestion> result = new HashMap<>();
+        predictionsByOffset.values().forEach(layers -> layers.values().forEach(result::putAll));
+        return Collections.unmodifiableMap(result);
     }
     
     public void clearPredictions()
     {
-        predictions.clear();
+        predictionsByOffset.clear();
+        predictionsById.clear();
+        inputVersions.clear();
     }
 
     public void removePredictions(Long recommenderId)
     {
-        predictions.entrySet()
-            .removeIf((p) -> p.getKey().getRecommenderId() == recommenderId);
+        predictionsByOffset.values().forEach(layers -> layers.values().forEach(index -> index
+                .keySet().removeIf(id -> id.getRecommenderId() == recommenderId)));
+        predictionsById.values().forEach(
+            index -> index.keySet().removeIf(id -> id.getLeft().equals(recommenderId)));
+        inputVersions.keySet().removeIf(k -> k.getLeft().equals(recommenderId));
     }
 
     /**
@@ -214,14 +391,43 @@ public class Predictions
     public List<AnnotationSuggestion> getPredictionsByTokenAndFeature(String aDocumentName,
         AnnotationLayer aLayer, int aBegin, int aEnd, String aFeature)
     {
-        return predictions.entrySet().stream()
-            .filter(f -> f.getKey().getDocumentName().equals(aDocumentName))
-            .filter(f -> f.getKey().getLayerId() == aLayer.getId())
-            .filter(f -> f.getKey().getOffset().getBeginCharacter() == aBegin)
-            .filter(f -> f.getKey().getOffset().getEndCharacter() == aEnd)
-            .filter(f -> f.getValue().getFeature().equals(aFeature))
-            .map(Map.Entry::getValue)
+        NavigableMap<ExtendedId, AnnotationSuggestion> index = predictionsByOffset
+                .getOrDefault(aDocumentName, emptyMap()).get(aLayer.getId());
+        if (index == null) {
+            return new ArrayList<>();
+        }
+        
+        return getAtOffset(index, aBegin, aEnd).stream()
+            .filter(f -> f.getFeature().equals(aFeature))
             .collect(Collectors.toList());
+    }
+    
+    /**
+     * Orders the predictions of a document layer by offset. The remaining fields are compared to
+     * keep predictions at the same offset apart.
+     */
+    private static class OffsetComparator
+        implements Comparator<ExtendedId>, Serializable
+    {
+        private static final long serialVersionUID = 4420416004432557374L;
 
+        @Override
+        public int compare(ExtendedId aOne, ExtendedId aOther)
+        {
+            int result = Integer.compare(aOne.getBegin(), aOther.getBegin());
+            if (result == 0) {
+                result = Integer.compare(aOne.getEnd(), aOther.getEnd());
+            }
+            if (result == 0) {
+                result = Long.compare(aOne.getRecommenderId(), aOther.getRecommenderId());
+            }
+            if (result == 0) {
+                result = Integer.compare(aOne.getAnnotationId(), aOther.getAnnotationId());
+            }
+            if (result == 0) {
+                result = Integer.compare(aOne.getSentenceId(), aOther.getSentenceId());
+            }
+            return result;
+        }
     }
 }
@@ -17,7 +17,9 @@
  */
 package de.tudarmstadt.ukp.inception.recommendation.api.recommender;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.apache.uima.cas.CAS;
@@ -35,6 +37,32 @@ public interface RecommendationEngine {
      */
     void train(RecommenderContext aContext, List<CAS> aCasses) throws RecommendationException;
 
+    /**
+     * Updates the model held by {@code aContext} with the documents which have been added or
+     * changed and the documents which have been removed since the model was last trained or
+     * updated. If the context does not hold a model yet, a model is trained on the given documents.
+     * Only called if {@link #supportsIncrementalTraining()} returns {@code true}.
+     * <p>
+     * The objects held by the context may be in use for predictions while the model is updated,
+     * so they must not be modified - the updated model needs to be put into the context as new
+     * objects. This method must not mutate {@code aChangedCasses} in any way.
+     * 
+     * @param aContext
+     *            The context of the recommender
+     * @param aChangedCasses
+     *            The training data of the added and changed documents by document name
+     * @param aRemovedDocuments
+     *            The names of the documents which are no longer part of the training data
+     * @return whether the model has been updated. If not, the context must not have been changed
+     *         and the model is trained on all documents again.
+     */
+    default boolean update(RecommenderContext aContext, Map<String, CAS> aChangedCasses,
+            Collection<String> aRemovedDocuments)
+        throws RecommendationException
+    {
+        return false;
+    }
+
     /**
      * Given text in {@code aCas}, predict target annotations. These should be written into
      * {@code aCas}. In order to restore data from e.g. previous training, the {@code aContext}
@@ -96,4 +124,23 @@ public interface RecommendationEngine {
     {
         return true;
     }
+    
+    /**
+     * Whether {@link #predict} may be called concurrently for different CASes using the same
+     * {@link RecommenderContext}. If this is not the case, predictions of this engine are
+     * performed one after the other even if prediction is configured to use multiple threads.
+     */
+    default boolean isPredictionThreadSafe()
+    {
+        return false;
+    }
+    
+    /**
+     * Whether this engine can update its model with changed documents using {@link #update}
+     * instead of being trained on all documents again using {@link #train}.
+     */
+    default boolean supportsIncrementalTraining()
+    {
+        return false;
+    }
 }
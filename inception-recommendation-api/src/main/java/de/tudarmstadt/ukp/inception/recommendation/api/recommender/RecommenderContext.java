@@ -17,19 +17,26 @@
  */
 package de.tudarmstadt.ukp.inception.recommendation.api.recommender;
 
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
 public class RecommenderContext
 {
-    private final ConcurrentHashMap<String, Object> store;
+    // Replaced as a whole on every change so that readers never see a partial update
+    private volatile Map<String, Object> store;
     private boolean ready = false;
+    private final AtomicLong version = new AtomicLong();
 
     public RecommenderContext()
     {
-        store = new ConcurrentHashMap<>();
+        store = emptyMap();
     }
 
     @SuppressWarnings("unchecked")
@@ -39,9 +46,28 @@ public class RecommenderContext
         return Optional.ofNullable((T) store.get(aKey.name));
     }
 
-    public <T> void put(Key<T> aKey, T aValue)
+    public synchronized <T> void put(Key<T> aKey, T aValue)
+    {
+        Map<String, Object> newStore = new HashMap<>(store);
+        newStore.put(aKey.name, aValue);
+        store = unmodifiableMap(newStore);
+    }
+
+    /**
+     * @return a copy of all values stored in this context, e.g. to persist the trained model.
+     */
+    public Map<String, Object> getValues()
+    {
+        return new HashMap<>(store);
+    }
+
+    /**
+     * Replaces all values stored in this context, e.g. with a previously persisted model. The
+     * values are replaced atomically, i.e. readers see either all old or all new values.
+     */
+    public synchronized void setValues(Map<String, Object> aValues)
     {
-        store.put(aKey.name, aValue);
+        store = unmodifiableMap(new HashMap<>(aValues));
     }
 
     public static class Key<T>
@@ -60,6 +86,7 @@ public class RecommenderContext
     public void markAsReadyForPrediction()
     {
         ready = true;
+        version.incrementAndGet();
     }
     
     /**
@@ -69,4 +96,14 @@ public class RecommenderContext
     {
         return ready;
     }
+    
+    /**
+     * @return the version of the model held by this context. The version changes every time the
+     *         context is marked as ready for prediction, i.e. after every training. Predictions
+     *         made with the same model version on the same data do not need to be repeated.
+     */
+    public long getVersion()
+    {
+        return version.get();
+    }
 }
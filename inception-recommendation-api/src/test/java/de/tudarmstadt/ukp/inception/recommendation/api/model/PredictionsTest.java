@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.api.model;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+
+public class PredictionsTest
+{
+    private Predictions sut;
+
+    @Before
+    public void setUp()
+    {
+        Project project = new Project();
+        project.setId(1L);
+        project.setName("project");
+        
+        sut = new Predictions(project, new User("user"));
+    }
+
+    @Test
+    public void thatPredictionsAreUpToDateOnlyForSameInputs()
+    {
+        sut.putInputVersion(1, "doc1", 3, 1000);
+
+        assertThat(sut.isUpToDate(1, "doc1", 3, 1000)).isTrue();
+        assertThat(sut.isUpToDate(1, "doc1", 4, 1000)).as("model changed").isFalse();
+        assertThat(sut.isUpToDate(1, "doc1", 3, 2000)).as("document changed").isFalse();
+        assertThat(sut.isUpToDate(1, "doc2", 3, 1000)).as("other document").isFalse();
+        assertThat(sut.isUpToDate(2, "doc1", 3, 1000)).as("other recommender").isFalse();
+        
+        sut.removePredictions(1L);
+        
+        assertThat(sut.isUpToDate(1, "doc1", 3, 1000)).as("recommender removed").isFalse();
+    }
+
+    @Test
+    public void thatPredictionsCanBeRetrievedByRecommenderAndDocument()
+    {
+        AnnotationSuggestion rec1Doc1 = new AnnotationSuggestion(1, 1, "rec1", 1, "value", "doc1",
+                0, 1, "a", "A", "#A", 0.1);
+        AnnotationSuggestion rec1Doc2 = new AnnotationSuggestion(2, 1, "rec1", 1, "value", "doc2",
+                0, 1, "b", "B", "#B", 0.2);
+        AnnotationSuggestion rec2Doc1 = new AnnotationSuggestion(3, 2, "rec2", 1, "value", "doc1",
+                0, 1, "c", "C", "#C", 0.1);
+        sut.putPredictions(1, asList(rec1Doc1, rec1Doc2, rec2Doc1));
+        
+        assertThat(sut.getPredictions(1, "doc1")).containsExactly(rec1Doc1);
+        assertThat(sut.getPredictions(2, "doc1")).containsExactly(rec2Doc1);
+        assertThat(sut.getPredictions(2, "doc2")).isEmpty();
+    }
+
+    @Test
+    public void thatMergingKeepsOtherDocumentsFromPreviousPredictions()
+    {
+        AnnotationSuggestion oldDoc1 = new AnnotationSuggestion(1, 1, "rec1", 1, "value", "doc1",
+                0, 1, "a", "A", "#A", 0.1);
+        AnnotationSuggestion oldDoc2 = new AnnotationSuggestion(2, 1, "rec1", 1, "value", "doc2",
+                0, 1, "b", "B", "#B", 0.2);
+        Predictions previous = new Predictions(sut.getProject(), new User("user"));
+        previous.putPredictions(1, asList(oldDoc1, oldDoc2));
+        previous.putInputVersion(1, "doc2", 1, 1000);
+        
+        AnnotationSuggestion newDoc1 = new AnnotationSuggestion(1, 1, "rec1", 1, "value", "doc1",
+                2, 3, "c", "C", "#C", 0.3);
+        sut.putPredictions(1, asList(newDoc1));
+        
+        Predictions merged = sut.mergeWith(previous, singleton("doc1"));
+        
+        assertThat(merged.getPredictions(1, "doc1")).containsExactly(newDoc1);
+        assertThat(merged.getPredictions(1, "doc2")).containsExactly(oldDoc2);
+        assertThat(merged.isUpToDate(1, "doc2", 1, 1000)).isTrue();
+        assertThat(sut.getPredictions(1, "doc2")).as("original unchanged").isEmpty();
+    }
+
+    @Test
+    public void thatPredictionsCanBeRetrievedByWindow()
+    {
+        AnnotationLayer layer = new AnnotationLayer();
+        layer.setId(1L);
+        
+        AnnotationSuggestion before = new AnnotationSuggestion(1, 1, "rec1", 1, "value", "doc1",
+                0, 4, "a", "A", "#A", 0.1);
+        AnnotationSuggestion inside1 = new AnnotationSuggestion(2, 1, "rec1", 1, "value", "doc1",
+                10, 14, "b", "B", "#B", 0.2);
+        AnnotationSuggestion inside2 = new AnnotationSuggestion(3, 1, "rec1", 1, "value", "doc1",
+                5, 9, "c", "C", "#C", 0.3);
+        AnnotationSuggestion across = new AnnotationSuggestion(4, 1, "rec1", 1, "value", "doc1",
+                18, 25, "d", "D", "#D", 0.4);
+        AnnotationSuggestion otherDoc = new AnnotationSuggestion(5, 1, "rec1", 1, "value", "doc2",
+                10, 14, "e", "E", "#E", 0.5);
+        sut.putPredictions(1, asList(before, inside1, inside2, across, otherDoc));
+        
+        assertThat(sut.getPredictions("doc1", layer, 5, 20).stream()
+                .flatMap(SuggestionGroup::stream)
+                .collect(toList()))
+                .containsExactly(inside2, inside1);
+        assertThat(sut.getPredictions("doc1", layer, -1, -1).stream()
+                .flatMap(SuggestionGroup::stream)
+                .collect(toList()))
+                .containsExactly(before, inside2, inside1, across);
+        assertThat(sut.getPredictionsByTokenAndFeature("doc1", layer, 10, 14, "value"))
+                .containsExactly(inside1);
+        
+        SourceDocument doc2 = new SourceDocument();
+        doc2.setName("doc2");
+        assertThat(sut.getPrediction(doc2, 10, 14, "E")).contains(otherDoc);
+        
+        sut.removePredictions(1L);
+        
+        assertThat(sut.getPredictions("doc1", layer, -1, -1).isEmpty()).isTrue();
+        assertThat(sut.getPrediction(doc2, 10, 14, "E")).isEmpty();
+    }
+
+    @Test
+    public void thatStringsAreSharedBetweenPredictions()
+    {
+        AnnotationSuggestion s1 = new AnnotationSuggestion(1, 1, "rec1", 1, "value", "doc1",
+                0, 1, "a", new String("LABEL"), "Label", 0.1);
+        AnnotationSuggestion s2 = new AnnotationSuggestion(2, 1, "rec1", 1, "value", "doc1",
+                2, 3, "b", new String("LABEL"), "Label", 0.2);
+        assertThat(s1.getLabel()).isNotSameAs(s2.getLabel());
+        
+        sut.putPredictions(1, asList(s1, s2));
+        
+        assertThat(s1.getLabel()).isSameAs(s2.getLabel());
+    }
+}
@@ -83,4 +83,14 @@ public class RecommenderContextTest {
         sut.markAsReadyForPrediction();
         assertThat(sut.isReadyForPrediction()).isTrue();
     }
+
+    @Test
+    public void thatVersionChangesWhenMarkedAsReady()
+    {
+        long version = sut.getVersion();
+        
+        sut.markAsReadyForPrediction();
+        
+        assertThat(sut.getVersion()).isNotEqualTo(version);
+    }
 }
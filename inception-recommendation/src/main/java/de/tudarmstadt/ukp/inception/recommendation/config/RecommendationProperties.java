@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("inception.recommendation")
+public class RecommendationProperties
+{
+    private long casCacheSize = 256 * 1024 * 1024;
+    private int predictionThreads = 1;
+    private boolean persistModels = true;
+    private long sharedModelCacheSize = 0;
+    private int evaluationThreads = 1;
+    private int reevaluationAnnotationCount = 5;
+
+    public long getCasCacheSize()
+    {
+        return casCacheSize;
+    }
+
+    public void setCasCacheSize(long aCasCacheSize)
+    {
+        casCacheSize = aCasCacheSize;
+    }
+
+    public int getPredictionThreads()
+    {
+        return predictionThreads;
+    }
+
+    public void setPredictionThreads(int aPredictionThreads)
+    {
+        predictionThreads = aPredictionThreads;
+    }
+
+    public boolean isPersistModels()
+    {
+        return persistModels;
+    }
+
+    public void setPersistModels(boolean aPersistModels)
+    {
+        persistModels = aPersistModels;
+    }
+
+    public long getSharedModelCacheSize()
+    {
+        return sharedModelCacheSize;
+    }
+
+    public void setSharedModelCacheSize(long aSharedModelCacheSize)
+    {
+        sharedModelCacheSize = aSharedModelCacheSize;
+    }
+
+    public int getEvaluationThreads()
+    {
+        return evaluationThreads;
+    }
+
+    public void setEvaluationThreads(int aEvaluationThreads)
+    {
+        evaluationThreads = aEvaluationThreads;
+    }
+
+    public int getReevaluationAnnotationCount()
+    {
+        return reevaluationAnnotationCount;
+    }
+
+    public void setReevaluationAnnotationCount(int aReevaluationAnnotationCount)
+    {
+        reevaluationAnnotationCount = aReevaluationAnnotationCount;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.uima.UIMAException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.CasCreationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeDocumentRemovedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeProjectRemovedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
+
+/**
+ * Cache of read-only annotation CAS snapshots for the recommendation tasks. A selection, training
+ * and prediction cycle triggered by a single annotation edit would otherwise load every document
+ * of the project up to three times. A snapshot is re-used as long as the {@link #getCasVersion
+ * version} of the annotation CAS file of the document has not changed since the snapshot was
+ * loaded.
+ * <p>
+ * The snapshots are shared between tasks and threads. They <b>must not be modified</b> - a task
+ * which needs to add annotations to a CAS must work on a copy. Such a copy can be borrowed using
+ * {@link #borrowPredictionCas}. When it is released again, it is kept with the snapshot and handed
+ * out again the next time, so that an unchanged document does not need to be copied again in
+ * every prediction cycle.
+ */
+@Component
+public class CasSnapshotCache
+    implements InitializingBean
+{
+    /**
+     * Pseudo timestamp of documents for which the user has no annotation CAS file yet.
+     */
+    public static final long NO_CAS_FILE = 0;
+    
+    /**
+     * The modification timestamps of files are only accurate to within this many milliseconds,
+     * depending on the file system.
+     */
+    private static final long TIMESTAMP_RESOLUTION = 2000;
+    
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    
+    private @Autowired DocumentService documentService;
+    private @Autowired AnnotationSchemaService annoService;
+    private @Autowired RecommendationProperties properties;
+    
+    private Cache<SnapshotKey, Snapshot> cache;
+    
+    // Source of the versions of recently modified CAS files
+    private final AtomicLong racyVersion = new AtomicLong();
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(properties.getCasCacheSize())
+                .weigher((SnapshotKey key, Snapshot snapshot) -> snapshot.weight)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the annotation CAS of the given user for the given document, upgraded to the current
+     * type system of the project.
+     * 
+     * @param aDocument
+     *            the source document.
+     * @param aUser
+     *            the name of the user.
+     * @return a read-only CAS.
+     */
+    public CAS getSnapshot(SourceDocument aDocument, String aUser)
+        throws IOException, UIMAException
+    {
+        long version = getCasVersion(aDocument, aUser);
+        
+        SnapshotKey key = new SnapshotKey(aDocument, aUser);
+        Snapshot snapshot = cache.getIfPresent(key);
+        if (snapshot != null && snapshot.version == version) {
+            log.trace("Using CAS snapshot of user [{}] for document [{}]({})", aUser,
+                    aDocument.getName(), aDocument.getId());
+            return snapshot.cas;
+        }
+        
+        CAS cas = loadCas(aDocument, aUser);
+        cache.put(key, new Snapshot(version, cas));
+        return cas;
+    }
+
+    /**
+     * Returns a version of the annotation CAS file of the given user for the given document. The
+     * version changes whenever the file is modified. It is {@link #NO_CAS_FILE} if the user has no
+     * annotation CAS file for the document yet - the annotations are then those of the initial
+     * CAS, which does not change.
+     * <p>
+     * The version is usually the modification timestamp of the file. However, the file may be
+     * saved again within the resolution of the timestamps without the timestamp changing. So if
+     * the file has been modified too recently, a new version which does not match any other
+     * version is returned every time - the file is then considered modified until its timestamp
+     * is old enough to be trusted.
+     */
+    public long getCasVersion(SourceDocument aDocument, String aUser)
+        throws IOException
+    {
+        // The current time must be taken before the timestamp is read
+        long now = System.currentTimeMillis();
+        Optional<Long> timestamp = documentService.getAnnotationCasTimestamp(aDocument, aUser);
+        if (!timestamp.isPresent()) {
+            return NO_CAS_FILE;
+        }
+        
+        if (now - timestamp.get() < TIMESTAMP_RESOLUTION) {
+            return -racyVersion.incrementAndGet();
+        }
+        
+        return timestamp.get();
+    }
+
+    private CAS loadCas(SourceDocument aDocument, String aUser)
+        throws IOException, UIMAException
+    {
+        CAS cas = documentService.readAnnotationCas(aDocument, aUser).getCas();
+        annoService.upgradeCasIfRequired(cas, aDocument, aUser);
+        return cas;
+    }
+
+    /**
+     * Returns a modifiable copy of the given snapshot. The copy must be handed back using
+     * {@link #releasePredictionCas} when it is no longer needed. It must then again be equal to
+     * the snapshot except for annotations of types which are removed from every copy before it is
+     * used, i.e. the predicted types.
+     * 
+     * @param aDocument
+     *            the source document.
+     * @param aUser
+     *            the name of the user.
+     * @param aSnapshot
+     *            a snapshot obtained via {@link #getSnapshot}.
+     * @return a modifiable CAS.
+     */
+    public CAS borrowPredictionCas(SourceDocument aDocument, String aUser, CAS aSnapshot)
+        throws ResourceInitializationException
+    {
+        Snapshot snapshot = cache.getIfPresent(new SnapshotKey(aDocument, aUser));
+        if (snapshot != null && snapshot.cas == aSnapshot) {
+            CAS predictionCas = snapshot.predictionCas.getAndSet(null);
+            if (predictionCas != null) {
+                return predictionCas;
+            }
+        }
+        
+        // The copy shares the already committed type system of the snapshot, so the type system
+        // does not need to be re-created and the binary serialization is little more than a copy
+        // of the heap arrays
+        CAS predictionCas = CasCreationUtils.createCas(aSnapshot.getTypeSystem(), null, null,
+                null);
+        Serialization.deserializeCAS(predictionCas, Serialization.serializeCAS(aSnapshot));
+        return predictionCas;
+    }
+
+    /**
+     * Hands back a CAS obtained via {@link #borrowPredictionCas}. If the snapshot is still
+     * current, the CAS is re-used the next time a copy of the snapshot is requested.
+     */
+    public void releasePredictionCas(SourceDocument aDocument, String aUser, CAS aSnapshot,
+            CAS aPredictionCas)
+    {
+        Snapshot snapshot = cache.getIfPresent(new SnapshotKey(aDocument, aUser));
+        if (snapshot != null && snapshot.cas == aSnapshot) {
+            snapshot.predictionCas.compareAndSet(null, aPredictionCas);
+        }
+    }
+
+    public CacheStats getStats()
+    {
+        return cache.stats();
+    }
+
+    @EventListener
+    public void beforeDocumentRemove(BeforeDocumentRemovedEvent aEvent)
+    {
+        long documentId = aEvent.getDocument().getId();
+        cache.asMap().keySet().removeIf(key -> key.documentId == documentId);
+    }
+
+    @EventListener
+    public void beforeProjectRemove(BeforeProjectRemovedEvent aEvent)
+    {
+        invalidate(aEvent.getProject().getId());
+    }
+
+    @EventListener
+    public void onLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
+    {
+        // The snapshots were upgraded to the previous type system
+        invalidate(aEvent.getProject().getId());
+    }
+
+    private void invalidate(long aProjectId)
+    {
+        cache.asMap().keySet().removeIf(key -> key.projectId == aProjectId);
+    }
+
+    private static class SnapshotKey
+    {
+        private final long projectId;
+        private final long documentId;
+        private final String user;
+
+        public SnapshotKey(SourceDocument aDocument, String aUser)
+        {
+            projectId = aDocument.getProject().getId();
+            documentId = aDocument.getId();
+            user = aUser;
+        }
+
+        @Override
+        public boolean equals(Object aOther)
+        {
+            if (!(aOther instanceof SnapshotKey)) {
+                return false;
+            }
+            SnapshotKey castOther = (SnapshotKey) aOther;
+            return new EqualsBuilder().append(documentId, castOther.documentId)
+                    .append(user, castOther.user).isEquals();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return new HashCodeBuilder().append(documentId).append(user).toHashCode();
+        }
+    }
+
+    private static class Snapshot
+    {
+        private final long version;
+        private final CAS cas;
+        private final int weight;
+        private final AtomicReference<CAS> predictionCas = new AtomicReference<>();
+
+        public Snapshot(long aVersion, CAS aCas)
+        {
+            version = aVersion;
+            cas = aCas;
+            
+            // Rough estimate of the memory used by the CAS and its prediction copy in bytes
+            long size = 2 * (2L * aCas.getDocumentText().length()
+                    + 64L * aCas.getAnnotationIndex().size());
+            weight = (int) Math.min(size, Integer.MAX_VALUE);
+        }
+    }
+}
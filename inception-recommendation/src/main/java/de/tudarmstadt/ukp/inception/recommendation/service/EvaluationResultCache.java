@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
+
+/**
+ * Keeps the result of the last evaluation of a recommender for each user, so that recommenders
+ * do not need to be evaluated again as long as their configuration and the annotations they are
+ * evaluated on have not changed significantly.
+ */
+@Component
+public class EvaluationResultCache
+{
+    private final Cache<Pair<String, Long>, EvaluationResult> cache = Caffeine.newBuilder()
+            .expireAfterAccess(30, MINUTES)
+            .build();
+
+    public Optional<EvaluationResult> get(String aUser, Recommender aRecommender)
+    {
+        return Optional.ofNullable(cache.getIfPresent(getKey(aUser, aRecommender)));
+    }
+
+    public void put(String aUser, Recommender aRecommender, EvaluationResult aResult)
+    {
+        cache.put(getKey(aUser, aRecommender), aResult);
+    }
+
+    /**
+     * Removes the evaluation results of the given recommender for all users.
+     */
+    public void invalidate(Recommender aRecommender)
+    {
+        cache.asMap().keySet().removeIf(key -> key.getValue().equals(aRecommender.getId()));
+    }
+
+    private Pair<String, Long> getKey(String aUser, Recommender aRecommender)
+    {
+        return new ImmutablePair<>(aUser, aRecommender.getId());
+    }
+
+    public static class EvaluationResult
+    {
+        private final String configuration;
+        private final String dataFingerprint;
+        private final int[] annotations;
+        private final double score;
+
+        /**
+         * @param aConfiguration
+         *            the configuration of the recommender at the time of the evaluation.
+         * @param aDataFingerprint
+         *            a fingerprint of the documents the recommender has been evaluated on or
+         *            {@code null} if there is none.
+         * @param aAnnotations
+         *            the hash codes of the annotations on the layer of the recommender in these
+         *            documents in any order.
+         * @param aScore
+         *            the score of the evaluation.
+         */
+        public EvaluationResult(String aConfiguration, String aDataFingerprint,
+                int[] aAnnotations, double aScore)
+        {
+            configuration = aConfiguration;
+            dataFingerprint = aDataFingerprint;
+            annotations = aAnnotations.clone();
+            Arrays.sort(annotations);
+            score = aScore;
+        }
+
+        /**
+         * @return whether this result can be used instead of evaluating the recommender again, i.e.
+         *         if its configuration is the same and either the data is the same or less than
+         *         the given number of annotations has been added or removed since.
+         */
+        public boolean isReusable(String aConfiguration, String aDataFingerprint,
+                int[] aAnnotations, int aMaxChangedAnnotations)
+        {
+            if (!configuration.equals(aConfiguration)) {
+                return false;
+            }
+            
+            if (aDataFingerprint != null && aDataFingerprint.equals(dataFingerprint)) {
+                return true;
+            }
+            
+            return countChangedAnnotations(aAnnotations) < aMaxChangedAnnotations;
+        }
+
+        /**
+         * @return the number of annotations which have been added or removed compared to the
+         *         annotations this result has been computed on. Changing an annotation counts as
+         *         removing the old and adding the new one.
+         */
+        public int countChangedAnnotations(int[] aAnnotations)
+        {
+            int[] other = aAnnotations.clone();
+            Arrays.sort(other);
+            
+            int changed = 0;
+            int i = 0;
+            int j = 0;
+            while (i < annotations.length && j < other.length) {
+                if (annotations[i] == other[j]) {
+                    i++;
+                    j++;
+                }
+                else if (annotations[i] < other[j]) {
+                    changed++;
+                    i++;
+                }
+                else {
+                    changed++;
+                    j++;
+                }
+            }
+            
+            return changed + (annotations.length - i) + (other.length - j);
+        }
+
+        public String getConfiguration()
+        {
+            return configuration;
+        }
+
+        public String getDataFingerprint()
+        {
+            return dataFingerprint;
+        }
+
+        public double getScore()
+        {
+            return score;
+        }
+    }
+}
@@ -17,17 +17,31 @@
  */
 package de.tudarmstadt.ukp.inception.recommendation.service;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
 
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterDocumentResetEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeDocumentRemovedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeProjectRemovedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
@@ -44,6 +58,24 @@ public class LearningRecordServiceImpl
 {
     @PersistenceContext
     private EntityManager entityManager;
+    
+    // The user actions of the learning records by user and layer ID, indexed by the position and
+    // label of the suggestion they were recorded for. An index is loaded when it is first needed
+    // and then kept up-to-date by the methods of this service which modify learning records.
+    private final Cache<Pair<String, Long>, Map<RecordKey, LearningRecordType>> recordIndex =
+            Caffeine.newBuilder()
+                    .expireAfterAccess(30, MINUTES)
+                    .build();
+
+    public LearningRecordServiceImpl()
+    {
+        // Nothing to do
+    }
+
+    public LearningRecordServiceImpl(EntityManager aEntityManager)
+    {
+        entityManager = aEntityManager;
+    }
 
     @Transactional
     @EventListener
@@ -53,6 +85,20 @@ public class LearningRecordServiceImpl
         deleteRecords(currentDocument, currentUser);
     }
     
+    @EventListener
+    public void beforeDocumentRemove(BeforeDocumentRemovedEvent aEvent)
+    {
+        // The records of the document are removed together with it. The index is not organized by
+        // project, but documents are removed rarely, so all indexes are simply loaded again.
+        recordIndex.invalidateAll();
+    }
+    
+    @EventListener
+    public void beforeProjectRemove(BeforeProjectRemovedEvent aEvent)
+    {
+        recordIndex.invalidateAll();
+    }
+    
     @Transactional
     @Override
     public void logRecord(SourceDocument aDocument, String aUsername,
@@ -140,6 +186,54 @@ public class LearningRecordServiceImpl
         return listRecords(aUsername, aLayer, 0);
     }
 
+    @Override
+    public Optional<LearningRecordType> getUserAction(String aUser, AnnotationLayer aLayer,
+            String aDocumentName, int aBegin, int aEnd, String aLabel)
+    {
+        Map<RecordKey, LearningRecordType> index = recordIndex.get(
+                new ImmutablePair<>(aUser, aLayer.getId()), key -> loadRecordIndex(aUser, aLayer));
+        return Optional.ofNullable(
+                index.get(new RecordKey(aDocumentName, aBegin, aEnd, aLabel)));
+    }
+
+    private Map<RecordKey, LearningRecordType> loadRecordIndex(String aUser,
+            AnnotationLayer aLayer)
+    {
+        Map<RecordKey, LearningRecordType> index = new ConcurrentHashMap<>();
+        // The records are sorted with the most recent one first and that one takes precedence
+        for (LearningRecord record : listRecords(aUser, aLayer)) {
+            index.putIfAbsent(new RecordKey(record), record.getUserAction());
+        }
+        return index;
+    }
+
+    private void updateRecordIndex(LearningRecord aRecord)
+    {
+        Map<RecordKey, LearningRecordType> index = recordIndex.getIfPresent(
+                new ImmutablePair<>(aRecord.getUser(), aRecord.getLayer().getId()));
+        if (index == null) {
+            return;
+        }
+        
+        // Adding a record removes any previous records for the same suggestion, see logRecord()
+        if (aRecord.getUserAction() == LearningRecordType.SHOWN) {
+            index.remove(new RecordKey(aRecord));
+        }
+        else {
+            index.put(new RecordKey(aRecord), aRecord.getUserAction());
+        }
+    }
+
+    private void invalidateRecordIndex(String aUser)
+    {
+        recordIndex.asMap().keySet().removeIf(key -> key.getLeft().equals(aUser));
+    }
+
+    private void invalidateRecordIndex(String aUser, AnnotationLayer aLayer)
+    {
+        recordIndex.invalidate(new ImmutablePair<>(aUser, aLayer.getId()));
+    }
+
     @Transactional
     @Override
     public LearningRecord getRecordById(long recordId) {
@@ -159,6 +253,7 @@ public class LearningRecordServiceImpl
             .setParameter("document", document)
             .setParameter("user",user)
             .executeUpdate();
+        invalidateRecordIndex(user);
     }
 
     @Override
@@ -166,6 +261,7 @@ public class LearningRecordServiceImpl
     public void create(LearningRecord learningRecord) {
         entityManager.persist(learningRecord);
         entityManager.flush();
+        updateRecordIndex(learningRecord);
     }
 
     @Override
@@ -173,6 +269,7 @@ public class LearningRecordServiceImpl
     public void update(LearningRecord learningRecord) {
         entityManager.merge(learningRecord);
         entityManager.flush();
+        invalidateRecordIndex(learningRecord.getUser(), learningRecord.getLayer());
     }
 
     @Override
@@ -180,6 +277,7 @@ public class LearningRecordServiceImpl
     public void delete(LearningRecord learningRecord) {
         entityManager.remove(entityManager.contains(learningRecord) ? learningRecord :
             entityManager.merge(learningRecord));
+        invalidateRecordIndex(learningRecord.getUser(), learningRecord.getLayer());
     }
 
     @Override
@@ -222,5 +320,51 @@ public class LearningRecordServiceImpl
                 .setParameter("layer", aLayer)
                 .setParameter("action", LearningRecordType.SKIPPED)
                 .executeUpdate();
+        invalidateRecordIndex(aUser.getUsername(), aLayer);
+    }
+
+    /**
+     * Identifies the suggestion a learning record was recorded for. Records for the same position
+     * and label but a different feature are not distinguished.
+     */
+    private static class RecordKey
+    {
+        private final String documentName;
+        private final int begin;
+        private final int end;
+        private final String label;
+
+        public RecordKey(String aDocumentName, int aBegin, int aEnd, String aLabel)
+        {
+            documentName = aDocumentName;
+            begin = aBegin;
+            end = aEnd;
+            label = aLabel;
+        }
+
+        public RecordKey(LearningRecord aRecord)
+        {
+            this(aRecord.getSourceDocument().getName(), aRecord.getOffsetCharacterBegin(),
+                    aRecord.getOffsetCharacterEnd(), aRecord.getAnnotation());
+        }
+
+        @Override
+        public boolean equals(Object aOther)
+        {
+            if (!(aOther instanceof RecordKey)) {
+                return false;
+            }
+            RecordKey castOther = (RecordKey) aOther;
+            return new EqualsBuilder().append(documentName, castOther.documentName)
+                    .append(begin, castOther.begin).append(end, castOther.end)
+                    .append(label, castOther.label).isEquals();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return new HashCodeBuilder().append(documentName).append(begin).append(end)
+                    .append(label).toHashCode();
+        }
     }
 }
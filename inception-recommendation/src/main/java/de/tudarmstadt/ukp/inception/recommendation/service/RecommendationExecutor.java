@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
+
+/**
+ * Thread pool in which the prediction and evaluation tasks of all users process documents and
+ * recommenders in parallel. The pool is shared so that the number of threads does not grow with
+ * the number of users. Its size is the larger of the configured number of prediction and
+ * evaluation threads.
+ */
+@Component
+public class RecommendationExecutor
+    implements InitializingBean, DisposableBean
+{
+    private @Autowired RecommendationProperties properties;
+
+    private ExecutorService executor;
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        int threads = Math.max(1, Math.max(properties.getPredictionThreads(),
+                properties.getEvaluationThreads()));
+        executor = Executors.newFixedThreadPool(threads, new BasicThreadFactory.Builder()
+                .namingPattern("Recommendation-%d")
+                .daemon(true)
+                .build());
+    }
+
+    public <T> Future<T> submit(Callable<T> aTask)
+    {
+        return executor.submit(aTask);
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+}
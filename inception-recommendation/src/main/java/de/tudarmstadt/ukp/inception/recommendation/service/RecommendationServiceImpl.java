@@ -21,6 +21,7 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUt
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectSingleFsAt;
 
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -99,6 +100,9 @@ public class RecommendationServiceImpl
     private @Autowired UserDao userRepository;
     private @Autowired RecommenderFactoryRegistry recommenderFactoryRegistry;
     private @Autowired SchedulingService schedulingService;
+    private @Autowired RecommenderModelStore modelStore;
+    private @Autowired SharedModelCache sharedModelCache;
+    private @Autowired EvaluationResultCache evaluationResultCache;
     
     @Value("${show.learning.curve.diagram:false}")
     public Boolean showLearningCurveDiagram;
@@ -189,6 +193,10 @@ public class RecommendationServiceImpl
         }
 
         entityManager.remove(settings);
+        
+        modelStore.delete(aRecommender);
+        sharedModelCache.invalidate(aRecommender);
+        evaluationResultCache.invalidate(aRecommender);
     }
 
     @Override
@@ -301,7 +309,7 @@ public class RecommendationServiceImpl
     /**
      * This is called whenever a document is opened (because of the implicit CAS upgrade and saving
      * of the CAS that happens when a document is opened) as well as when any updates to annotations
-     * are made. Therefore, we do not need an extra event listener for {@link DocumentOpenedEvent}
+     * are made. Therefore, we do not need to trigger training on a {@link DocumentOpenedEvent}
      */
     @EventListener
     public void afterAnnotationUpdate(AfterAnnotationUpdateEvent aEvent)
@@ -355,6 +363,16 @@ public class RecommendationServiceImpl
         }
     }
 
+    @EventListener
+    public void onDocumentOpened(DocumentOpenedEvent aEvent)
+    {
+        RecommendationState state = getState(aEvent.getUser(),
+                aEvent.getDocument().getProject());
+        synchronized (state) {
+            state.documentOpened(aEvent.getDocument().getId());
+        }
+    }
+
     @EventListener
     public void afterDocumentReset(AfterDocumentResetEvent aEvent)
     {
@@ -410,6 +428,15 @@ public class RecommendationServiceImpl
         }
     }
 
+    @Override
+    public List<Long> getRecentlyOpenedDocuments(User aUser, Project aProject)
+    {
+        RecommendationState state = getState(aUser.getUsername(), aProject);
+        synchronized (state) {
+            return new ArrayList<>(state.getRecentlyOpenedDocuments());
+        }
+    }
+
     @Override
     public RecommenderContext getContext(User aUser, Recommender aRecommender)
     {
@@ -498,12 +525,15 @@ public class RecommendationServiceImpl
      */
     private static class RecommendationState
     {
+        private static final int MAX_RECENTLY_OPENED_DOCUMENTS = 5;
+        
         private Preferences preferences = new Preferences();
         private MultiValuedMap<AnnotationLayer, Recommender> activeRecommenders = 
                 new HashSetValuedHashMap<>();
         private Map<Recommender, RecommenderContext> contexts = new ConcurrentHashMap<>();
         private Predictions activePredictions;
         private Predictions incomingPredictions;
+        private LinkedList<Long> recentlyOpenedDocuments = new LinkedList<>();
         
         public Preferences getPreferences()
         {
@@ -543,6 +573,20 @@ public class RecommendationServiceImpl
             return incomingPredictions;
         }
 
+        public void documentOpened(long aDocumentId)
+        {
+            recentlyOpenedDocuments.remove(aDocumentId);
+            recentlyOpenedDocuments.addFirst(aDocumentId);
+            while (recentlyOpenedDocuments.size() > MAX_RECENTLY_OPENED_DOCUMENTS) {
+                recentlyOpenedDocuments.removeLast();
+            }
+        }
+        
+        public List<Long> getRecentlyOpenedDocuments()
+        {
+            return recentlyOpenedDocuments;
+        }
+
         public boolean switchPredictions()
         {
             if (incomingPredictions != null) {
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.RepositoryProperties;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext;
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
+
+/**
+ * Persists the trained models of the recommenders in the repository, so that a recommender does
+ * not need to be trained again after the user has logged in again or after a restart. Each model is
+ * stored together with a fingerprint of the recommender configuration and the training data and is
+ * only used if the fingerprint is still the same.
+ * <p>
+ * Only models which consist entirely of {@link Serializable} values can be persisted. Other models
+ * are trained again as before. The same applies to recommenders which do not keep their model in
+ * the context at all, e.g. external recommenders.
+ */
+@Component
+public class RecommenderModelStore
+{
+    private static final String MODELS_FOLDER = "recommenders";
+    private static final int FORMAT_VERSION = 1;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final RepositoryProperties repositoryProperties;
+    private final RecommendationProperties properties;
+
+    @Autowired
+    public RecommenderModelStore(RepositoryProperties aRepositoryProperties,
+            RecommendationProperties aProperties)
+    {
+        repositoryProperties = aRepositoryProperties;
+        properties = aProperties;
+    }
+
+    /**
+     * Restores the model of the given recommender for the given user into the given context if a
+     * model with the given fingerprint has been persisted. The context is then marked as ready for
+     * prediction.
+     * 
+     * @return whether the model has been restored.
+     */
+    public boolean load(User aUser, Recommender aRecommender, String aFingerprint,
+            RecommenderContext aContext)
+    {
+        File file = getModelFile(aUser, aRecommender);
+        if (!properties.isPersistModels() || !file.exists()) {
+            return false;
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != FORMAT_VERSION || !aFingerprint.equals(in.readUTF())) {
+                return false;
+            }
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object> values = (Map<String, Object>) in.readObject();
+            aContext.setValues(values);
+            aContext.markAsReadyForPrediction();
+            return true;
+        }
+        catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // E.g. the model was persisted by a different version of the recommender
+            log.warn("[{}][{}]: Unable to load persisted model - discarding it",
+                    aUser.getUsername(), aRecommender.getName(), e);
+            FileUtils.deleteQuietly(file);
+            return false;
+        }
+    }
+
+    /**
+     * Persists the model held by the given context together with the given fingerprint of the
+     * recommender configuration and the training data it has been trained on.
+     */
+    public void save(User aUser, Recommender aRecommender, String aFingerprint,
+            RecommenderContext aContext)
+    {
+        if (!properties.isPersistModels()) {
+            return;
+        }
+
+        Map<String, Object> values = aContext.getValues();
+        if (values.isEmpty()
+                || !values.values().stream().allMatch(value -> value instanceof Serializable)) {
+            log.debug("[{}][{}]: Model is not serializable - not persisting it",
+                    aUser.getUsername(), aRecommender.getName());
+            return;
+        }
+
+        File file = getModelFile(aUser, aRecommender);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileUtils.forceMkdirParent(file);
+
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile.toPath())))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(aFingerprint);
+                out.writeObject(new HashMap<>(values));
+            }
+
+            // Replace the previous model only once the new one has been written completely
+            Files.move(tempFile.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (NotSerializableException e) {
+            log.debug("[{}][{}]: Model is not serializable - not persisting it",
+                    aUser.getUsername(), aRecommender.getName());
+            FileUtils.deleteQuietly(tempFile);
+        }
+        catch (IOException e) {
+            log.warn("[{}][{}]: Unable to persist model", aUser.getUsername(),
+                    aRecommender.getName(), e);
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Removes the persisted models of the given recommender for all users.
+     */
+    public void delete(Recommender aRecommender)
+    {
+        FileUtils.deleteQuietly(getModelFolder(aRecommender));
+    }
+
+    private File getModelFolder(Recommender aRecommender)
+    {
+        return new File(repositoryProperties.getPath(), "project/"
+                + aRecommender.getProject().getId() + "/" + MODELS_FOLDER + "/"
+                + aRecommender.getId());
+    }
+
+    private File getModelFile(User aUser, Recommender aRecommender)
+    {
+        return new File(getModelFolder(aRecommender), aUser.getUsername() + ".model");
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CommonArrayFS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.text.AnnotationFS;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext;
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
+
+/**
+ * Cache of trained models which allows users to share a model instead of each training their own
+ * if a recommender is trained on the same data for all of them, e.g. on curated documents or on
+ * documents which the users have not annotated yet. The models are addressed by a fingerprint of
+ * the recommender configuration and the content of the training data.
+ * <p>
+ * A shared model is used by the prediction tasks of several users at the same time, so only
+ * models of engines which support concurrent predictions should be shared. The cache is disabled
+ * if its size is set to {@code 0}.
+ */
+@Component
+public class SharedModelCache
+{
+    // Depth up to which nested feature structures which are not annotations are described
+    private static final int MAX_FEATURE_DEPTH = 3;
+
+    private final RecommendationProperties properties;
+    private final Cache<String, Map<String, Object>> cache;
+
+    @Autowired
+    public SharedModelCache(RecommendationProperties aProperties)
+    {
+        properties = aProperties;
+        cache = Caffeine.newBuilder()
+                .maximumSize(properties.getSharedModelCacheSize())
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled()
+    {
+        return properties.getSharedModelCacheSize() > 0;
+    }
+
+    /**
+     * Puts the model with the given fingerprint into the given context if it is in the cache. The
+     * context is then marked as ready for prediction.
+     * 
+     * @return whether the model has been found.
+     */
+    public boolean restore(Recommender aRecommender, String aFingerprint,
+            RecommenderContext aContext)
+    {
+        Map<String, Object> values = cache.getIfPresent(getKey(aRecommender, aFingerprint));
+        if (values == null) {
+            return false;
+        }
+
+        aContext.setValues(values);
+        aContext.markAsReadyForPrediction();
+        return true;
+    }
+
+    /**
+     * Adds the model held by the given context to the cache. The engine must not modify the model
+     * afterwards - training must always create a new model.
+     */
+    public void put(Recommender aRecommender, String aFingerprint, RecommenderContext aContext)
+    {
+        if (isEnabled()) {
+            cache.put(getKey(aRecommender, aFingerprint), aContext.getValues());
+        }
+    }
+
+    /**
+     * Removes the models of the given recommender from the cache.
+     */
+    public void invalidate(Recommender aRecommender)
+    {
+        String prefix = aRecommender.getId() + ":";
+        cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public CacheStats getStats()
+    {
+        return cache.stats();
+    }
+
+    private String getKey(Recommender aRecommender, String aFingerprint)
+    {
+        return aRecommender.getId() + ":" + aFingerprint;
+    }
+
+    /**
+     * @return a digest of the text and all annotations of the given CAS including all their
+     *         feature values, e.g. the annotations connected by a relation or the slots of a link
+     *         feature. Referenced annotations are represented by their type and position.
+     */
+    public static String getContentFingerprint(CAS aCas)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        
+        digest.update(aCas.getDocumentText().getBytes(UTF_8));
+        for (AnnotationFS ann : aCas.getAnnotationIndex()) {
+            StringBuilder line = new StringBuilder("\n");
+            describeFeatures(line, ann, MAX_FEATURE_DEPTH);
+            digest.update(line.toString().getBytes(UTF_8));
+        }
+        
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void describeFeatures(StringBuilder aOut, AnnotationFS aAnnotation, int aDepth)
+    {
+        describeReference(aOut, aAnnotation);
+        for (Feature feature : aAnnotation.getType().getFeatures()) {
+            // The position is already part of the reference and the text is digested only once
+            if (CAS.FEATURE_FULL_NAME_BEGIN.equals(feature.getName())
+                    || CAS.FEATURE_FULL_NAME_END.equals(feature.getName())
+                    || CAS.FEATURE_FULL_NAME_SOFA.equals(feature.getName())) {
+                continue;
+            }
+            aOut.append(' ').append(feature.getShortName()).append('=');
+            describeValue(aOut, aAnnotation, feature, aDepth);
+        }
+    }
+
+    private static void describeValue(StringBuilder aOut, FeatureStructure aFS, Feature aFeature,
+            int aDepth)
+    {
+        if (aFeature.getRange().isPrimitive()) {
+            aOut.append(aFS.getFeatureValueAsString(aFeature));
+        }
+        else {
+            describe(aOut, aFS.getFeatureValue(aFeature), aDepth - 1);
+        }
+    }
+
+    private static void describe(StringBuilder aOut, FeatureStructure aFS, int aDepth)
+    {
+        if (aFS == null) {
+            aOut.append("null");
+        }
+        else if (aFS instanceof AnnotationFS) {
+            describeReference(aOut, (AnnotationFS) aFS);
+        }
+        else if (aFS instanceof ArrayFS) {
+            ArrayFS array = (ArrayFS) aFS;
+            aOut.append('[');
+            for (int i = 0; i < array.size(); i++) {
+                describe(aOut, array.get(i), aDepth);
+                aOut.append(',');
+            }
+            aOut.append(']');
+        }
+        else if (aFS instanceof CommonArrayFS) {
+            aOut.append(String.join(",", ((CommonArrayFS) aFS).toStringArray()));
+        }
+        else if (aDepth <= 0) {
+            // Guards against cycles between feature structures which are not annotations
+            aOut.append(aFS.getType().getName());
+        }
+        else {
+            // E.g. the slot of a link feature which consists of a role and a target annotation
+            aOut.append(aFS.getType().getName()).append('{');
+            for (Feature feature : aFS.getType().getFeatures()) {
+                aOut.append(feature.getShortName()).append('=');
+                describeValue(aOut, aFS, feature, aDepth);
+                aOut.append(';');
+            }
+            aOut.append('}');
+        }
+    }
+
+    private static void describeReference(StringBuilder aOut, AnnotationFS aAnnotation)
+    {
+        aOut.append(aAnnotation.getType().getName()).append('@').append(aAnnotation.getBegin())
+                .append('-').append(aAnnotation.getEnd());
+    }
+}
@@ -29,10 +29,16 @@ import static org.apache.uima.fit.util.CasUtil.select;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.NoResultException;
 
@@ -40,19 +46,13 @@ import org.apache.commons.collections4.MultiValuedMap;
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
-import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.Type;
-import org.apache.uima.cas.admin.CASMgr;
-import org.apache.uima.cas.impl.CASCompleteSerializer;
-import org.apache.uima.cas.impl.Serialization;
 import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.fit.util.FSUtil;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.resource.ResourceInitializationException;
-import org.apache.uima.resource.metadata.TypeSystemDescription;
-import org.apache.uima.util.CasCreationUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -68,7 +68,7 @@ import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 import de.tudarmstadt.ukp.inception.recommendation.api.LearningRecordService;
 import de.tudarmstadt.ukp.inception.recommendation.api.RecommendationService;
 import de.tudarmstadt.ukp.inception.recommendation.api.model.AnnotationSuggestion;
-import de.tudarmstadt.ukp.inception.recommendation.api.model.LearningRecord;
+import de.tudarmstadt.ukp.inception.recommendation.api.model.LearningRecordType;
 import de.tudarmstadt.ukp.inception.recommendation.api.model.Offset;
 import de.tudarmstadt.ukp.inception.recommendation.api.model.Predictions;
 import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
@@ -76,8 +76,14 @@ import de.tudarmstadt.ukp.inception.recommendation.api.model.SuggestionGroup;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommendationEngine;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommendationEngineFactory;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext;
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
+import de.tudarmstadt.ukp.inception.recommendation.service.CasSnapshotCache;
+import de.tudarmstadt.ukp.inception.recommendation.service.RecommendationExecutor;
 import de.tudarmstadt.ukp.inception.recommendation.util.OverlapIterator;
+import de.tudarmstadt.ukp.inception.scheduling.SchedulingService;
 import de.tudarmstadt.ukp.inception.scheduling.Task;
+import de.tudarmstadt.ukp.inception.scheduling.TaskMetrics;
+import de.tudarmstadt.ukp.inception.scheduling.TaskPriority;
 
 /**
  * This consumer predicts new annotations for a given annotation layer, if a classification tool for
@@ -94,12 +100,35 @@ public class PredictionTask
     private @Autowired RecommendationService recommendationService;
     private @Autowired DocumentService documentService;
     private @Autowired LearningRecordService learningRecordService;
+    private @Autowired SchedulingService schedulingService;
+    private @Autowired CasSnapshotCache casSnapshotCache;
+    private @Autowired RecommendationExecutor recommendationExecutor;
+    private @Autowired RecommendationProperties properties;
+    
+    private final AtomicInteger predictedCount = new AtomicInteger();
+    private final AtomicInteger reusedCount = new AtomicInteger();
+    private final Map<Long, Object> predictionLocks = new ConcurrentHashMap<>();
 
     public PredictionTask(User aUser, Project aProject, String aTrigger)
     {
         super(aUser, aProject, aTrigger);
     }
 
+    @Override
+    public TaskPriority getPriority()
+    {
+        // The user is waiting for the predictions to show up in the editor
+        return TaskPriority.HIGH;
+    }
+
+    @Override
+    public boolean isCancelledWhenSuperseded()
+    {
+        // The predictions for the documents the user is looking at are published first, so a
+        // cancelled prediction task has already produced the results which matter most
+        return true;
+    }
+
     @Override
     public void run()
     {
@@ -107,156 +136,308 @@ public class PredictionTask
 
         Project project = getProject();
         Predictions model = new Predictions(project, getUser());
-        List<SourceDocument> documents = documentService.listSourceDocuments(project);
+        
+        // Predict the documents which the user is looking at first - starting with the open one
+        List<Long> recentDocuments = recommendationService.getRecentlyOpenedDocuments(user,
+                project);
+        List<SourceDocument> documents = new ArrayList<>(
+                documentService.listSourceDocuments(project));
+        documents.sort(comparingInt(doc -> {
+            int rank = recentDocuments.indexOf(doc.getId());
+            return rank >= 0 ? rank : Integer.MAX_VALUE;
+        }));
+        int priorityDocumentCount = (int) documents.stream()
+                .filter(doc -> recentDocuments.contains(doc.getId()))
+                .count();
+        Set<String> processedDocuments = new HashSet<>();
+        
+        // The most recent predictions - suggestions for documents which have not changed since are
+        // re-used unless the model has changed as well
+        Predictions incomingModel = recommendationService.getIncomingPredictions(user, project);
+        Predictions previousModel = incomingModel != null ? incomingModel
+                : recommendationService.getPredictions(user, project);
 
         log.info("[{}]: Starting prediction...", user.getUsername());
         long startTime = System.currentTimeMillis();
-        nextDocument: for (SourceDocument document : documents) {
-            Optional<CAS> originalCas = Optional.empty();
-            Optional<CAS> predictionCas = Optional.empty();
-            nextLayer: for (AnnotationLayer layer : annoService.listAnnotationLayer(project)) {
-                if (!layer.isEnabled()) {
-                    continue nextLayer;
-                }
+        
+        // Publish the predictions for the open document as soon as they are available instead of
+        // waiting for the entire project. For the documents not processed yet, the previous
+        // predictions remain in place. The other recently opened documents are published
+        // together with the rest of the project.
+        for (SourceDocument document : documents.subList(0, priorityDocumentCount)) {
+            if (isCancelled()) {
+                log.info("[{}]: Prediction cancelled - superseded by a newer task",
+                        user.getUsername());
+                return;
+            }
+            
+            predictDocument(document, model, previousModel);
+            processedDocuments.add(document.getName());
+            if (processedDocuments.size() == 1) {
+                recommendationService.putIncomingPredictions(user, project,
+                        model.mergeWith(previousModel, processedDocuments));
+            }
+        }
+        
+        // The remaining documents are predicted in parallel if configured
+        if (!predictDocuments(documents.subList(priorityDocumentCount, documents.size()), model,
+                previousModel)) {
+            log.info("[{}]: Prediction cancelled - superseded by a newer task",
+                    user.getUsername());
+            return;
+        }
+        
+        log.info("[{}]: Prediction complete ({} ms, {} predicted, {} re-used)",
+                user.getUsername(), (System.currentTimeMillis() - startTime), predictedCount,
+                reusedCount);
 
-                List<Recommender> recommenders = recommendationService.getActiveRecommenders(user,
-                        layer);
+        recommendationService.putIncomingPredictions(getUser(), project, model);
+    }
 
-                nextRecommender: for (Recommender r : recommenders) {
-                    
-                    // Make sure we have the latest recommender config from the DB - the one from
-                    // the active recommenders list may be outdated
-                    Recommender recommender;
-                    try {
-                        recommender = recommendationService.getRecommender(r.getId());
-                    }
-                    catch (NoResultException e) {
-                        log.info("[{}][{}]: Recommender no longer available... skipping",
-                                user.getUsername(), r.getName());
-                        continue nextRecommender;
+    /**
+     * Predicts the given documents in parallel if several prediction threads are configured.
+     * 
+     * @return {@code false} if the task was cancelled before all documents were predicted.
+     */
+    private boolean predictDocuments(List<SourceDocument> aDocuments, Predictions aModel,
+            Predictions aPreviousModel)
+    {
+        int threads = Math.min(properties.getPredictionThreads(), aDocuments.size());
+        
+        if (threads <= 1) {
+            for (SourceDocument document : aDocuments) {
+                if (isCancelled()) {
+                    return false;
+                }
+                predictDocument(document, aModel, aPreviousModel);
+            }
+            return true;
+        }
+        
+        // The documents are queued in the thread pool shared with the tasks of other users. If
+        // the task is cancelled, the documents which are still queued are skipped.
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (SourceDocument document : aDocuments) {
+                futures.add(recommendationExecutor.submit(() -> {
+                    if (!isCancelled()) {
+                        predictDocument(document, aModel, aPreviousModel);
                     }
+                    return null;
+                }));
+            }
+            
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    log.error("[{}]: Prediction failed", getUser().getUsername(), e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+        
+        return !isCancelled();
+    }
 
-                    if (!recommender.isEnabled()) {
-                        log.debug("[{}][{}]: Disabled - skipping", user.getUsername(), r.getName());
-                        continue nextRecommender;
-                    }
+    private void predictDocument(SourceDocument aDocument, Predictions aModel,
+            Predictions aPreviousModel)
+    {
+        User user = getUser();
+        Project project = getProject();
+        
+        // Version of the annotations of the document - negative if unknown or not yet trustworthy
+        long casVersion;
+        try {
+            casVersion = casSnapshotCache.getCasVersion(aDocument, user.getUsername());
+        }
+        catch (IOException e) {
+            casVersion = -1;
+        }
+        
+        Optional<CAS> originalCas = Optional.empty();
+        Optional<CAS> predictionCas = Optional.empty();
+        Set<Type> predictedTypes = new HashSet<>();
+        nextLayer: for (AnnotationLayer layer : annoService.listAnnotationLayer(project)) {
+            if (!layer.isEnabled()) {
+                continue nextLayer;
+            }
 
-                    RecommenderContext ctx = recommendationService.getContext(user, recommender);
+            List<Recommender> recommenders = recommendationService.getActiveRecommenders(user,
+                    layer);
 
-                    if (!ctx.isReadyForPrediction()) {
-                        log.info("Context for recommender [{}]({}) for user [{}] on document "
-                                + "[{}]({}) in project [{}]({}) is not ready yet - skipping recommender",
-                                recommender.getName(), recommender.getId(), user.getUsername(),
-                                document.getName(), document.getId(), project.getName(),
-                                project.getId());
-                        continue nextRecommender;
-                    }
+            nextRecommender: for (Recommender r : recommenders) {
+                
+                // Make sure we have the latest recommender config from the DB - the one from
+                // the active recommenders list may be outdated
+                Recommender recommender;
+                try {
+                    recommender = recommendationService.getRecommender(r.getId());
+                }
+                catch (NoResultException e) {
+                    log.info("[{}][{}]: Recommender no longer available... skipping",
+                            user.getUsername(), r.getName());
+                    continue nextRecommender;
+                }
 
-                    RecommendationEngineFactory<?> factory = recommendationService
-                            .getRecommenderFactory(recommender);
+                if (!recommender.isEnabled()) {
+                    log.debug("[{}][{}]: Disabled - skipping", user.getUsername(), r.getName());
+                    continue nextRecommender;
+                }
 
-                    // We lazily load the CAS only at this point because that allows us to skip
-                    // loading the CAS entirely if there is no enabled layer or recommender.
-                    // If the CAS cannot be loaded, then we skip to the next document.
-                    if (!originalCas.isPresent()) {
-                        try {
-                            originalCas = Optional.of(documentService.readAnnotationCas(document,
-                                    user.getUsername()).getCas());
-                        }
-                        catch (IOException e) {
-                            log.error(
-                                    "Cannot read annotation CAS for user [{}] of document "
-                                            + "[{}]({}) in project [{}]({}) - skipping document",
-                                    user.getUsername(), document.getName(), document.getId(),
-                                    project.getName(), project.getId(), e);
-                            continue nextDocument;
-                        }
-                        try {
-                            annoService.upgradeCasIfRequired(originalCas.get(), document,
-                                    user.getUsername());
-                        }
-                        catch (UIMAException | IOException e) {
-                            log.error(
-                                    "Cannot upgrade annotation CAS for user [{}] of document "
-                                            + "[{}]({}) in project [{}]({}) - skipping document",
-                                    user.getUsername(), document.getName(), document.getId(),
-                                    project.getName(), project.getId(), e);
-                            continue nextDocument;
-                        }
-                        try {
-                            predictionCas = Optional.of(cloneCAS(originalCas.get()));
-                        }
-                        catch (UIMAException e) {
-                            log.error("Cannot clone annotation CAS for user [{}] of document "
-                                    + "[{}]({}) in project [{}]({}) - skipping document",
-                                    user.getUsername(), document.getName(), document.getId(),
-                                    project.getName(), project.getId(), e);
-                            continue nextDocument;
-                        }
+                RecommenderContext ctx = recommendationService.getContext(user, recommender);
+
+                if (!ctx.isReadyForPrediction()) {
+                    log.info("Context for recommender [{}]({}) for user [{}] on document "
+                            + "[{}]({}) in project [{}]({}) is not ready yet - skipping recommender",
+                            recommender.getName(), recommender.getId(), user.getUsername(),
+                            aDocument.getName(), aDocument.getId(), project.getName(),
+                            project.getId());
+                    continue nextRecommender;
+                }
+
+                RecommendationEngineFactory<?> factory = recommendationService
+                        .getRecommenderFactory(recommender);
+
+                // We lazily load the CAS only at this point because that allows us to skip
+                // loading the CAS entirely if there is no enabled layer or recommender.
+                // If the CAS cannot be loaded, then we skip to the next aDocument.
+                if (!originalCas.isPresent()) {
+                    long casLoadStartTime = System.currentTimeMillis();
+                    // The original CAS is a shared snapshot - it must not be modified
+                    try {
+                        originalCas = Optional.of(casSnapshotCache.getSnapshot(aDocument,
+                                user.getUsername()));
+                    }
+                    catch (UIMAException | IOException e) {
+                        log.error(
+                                "Cannot read annotation CAS for user [{}] of document "
+                                        + "[{}]({}) in project [{}]({}) - skipping document",
+                                user.getUsername(), aDocument.getName(), aDocument.getId(),
+                                project.getName(), project.getId(), e);
+                        return;
                     }
+                    schedulingService.getMetrics().recordTime(TaskMetrics.CAS_LOAD, this,
+                            null, System.currentTimeMillis() - casLoadStartTime);
+                }
+                
+                // Capture the model version before predicting - if the model is retrained in
+                // the meantime, the next prediction run must not consider these predictions to
+                // be up-to-date
+                long modelVersion = ctx.getVersion();
+                
+                if (aPreviousModel != null && casVersion >= 0
+                        && aPreviousModel.isUpToDate(recommender.getId(), aDocument.getName(),
+                                modelVersion, casVersion)) {
+                    // Copy the suggestions to reset their visibility
+                    List<AnnotationSuggestion> predictions = aPreviousModel
+                            .getPredictions(recommender.getId(), aDocument.getName()).stream()
+                            .map(AnnotationSuggestion::new)
+                            .collect(toList());
+                    addPredictions(aModel, originalCas.get(), layer, predictions);
+                    aModel.putInputVersion(recommender.getId(), aDocument.getName(),
+                            modelVersion, casVersion);
+                    reusedCount.incrementAndGet();
+                    continue nextRecommender;
+                }
 
+                if (!predictionCas.isPresent()) {
                     try {
-                        RecommendationEngine recommendationEngine = factory.build(recommender);
-
-                        Type predictionType = getAnnotationType(predictionCas.get(),
-                                recommendationEngine.getPredictedType());
-                        Feature labelFeature = predictionType
-                                .getFeatureByBaseName(recommendationEngine.getPredictedFeature());
-                        Optional<Feature> scoreFeature = recommendationEngine.getScoreFeature()
-                                .map(predictionType::getFeatureByBaseName);
-                        
-                        // Remove any annotations that will be predicted (either manually created
-                        // or from a previous prediction run) from the CAS
-                        removePredictions(predictionCas.get(), predictionType);
-                        
-                        // Perform the actual prediction
-                        recommendationEngine.predict(ctx, predictionCas.get());
+                        predictionCas = Optional.of(casSnapshotCache.borrowPredictionCas(
+                                aDocument, user.getUsername(), originalCas.get()));
+                    }
+                    catch (ResourceInitializationException e) {
+                        log.error("Cannot clone annotation CAS for user [{}] of document "
+                                + "[{}]({}) in project [{}]({}) - skipping document",
+                                user.getUsername(), aDocument.getName(), aDocument.getId(),
+                                project.getName(), project.getId(), e);
+                        return;
+                    }
+                }
+
+                try {
+                    RecommendationEngine recommendationEngine = factory.build(recommender);
 
-                        // Extract the suggestions from the data which the recommender has written 
-                        // into the CAS
-                        List<AnnotationSuggestion> predictions = extractSuggestions(user,
-                                predictionCas.get(), predictionType, labelFeature, scoreFeature,
-                                document, recommender);
-                        
-                        // Calculate the visbility of the suggestions. This happens via the original
-                        // CAS which contains only the manually created annotations and *not* the
-                        // suggestions.
-                        Collection<SuggestionGroup> groups = SuggestionGroup.group(predictions);
-                        calculateVisibility(learningRecordService, annoService, originalCas.get(),
-                                getUser().getUsername(), layer, groups, 0,
-                                originalCas.get().getDocumentText().length());
-                        
-                        model.putPredictions(layer.getId(), predictions);
+                    Type predictionType = getAnnotationType(predictionCas.get(),
+                            recommendationEngine.getPredictedType());
+                    Feature labelFeature = predictionType
+                            .getFeatureByBaseName(recommendationEngine.getPredictedFeature());
+                    Optional<Feature> scoreFeature = recommendationEngine.getScoreFeature()
+                            .map(predictionType::getFeatureByBaseName);
+                    
+                    // Remove any annotations that will be predicted (either manually created
+                    // or from a previous prediction run) from the CAS
+                    predictedTypes.add(predictionType);
+                    removePredictions(predictionCas.get(), predictionType);
+                    
+                    // Perform the actual prediction
+                    long predictStartTime = System.currentTimeMillis();
+                    if (recommendationEngine.isPredictionThreadSafe()) {
+                        recommendationEngine.predict(ctx, predictionCas.get());
                     }
-                    catch (Throwable e) {
-                        log.error(
-                                "Error applying recommender [{}]({}) for user [{}] to document "
-                                        + "[{}]({}) in project [{}]({}) - skipping recommender",
-                                recommender.getName(), recommender.getId(), user.getUsername(),
-                                document.getName(), document.getId(), project.getName(),
-                                project.getId(), e);
-                        continue nextRecommender;
+                    else {
+                        // Documents may be predicted in parallel, so make sure that only one
+                        // thread at a time uses an engine which does not support this
+                        synchronized (predictionLocks.computeIfAbsent(recommender.getId(),
+                                id -> new Object())) {
+                            recommendationEngine.predict(ctx, predictionCas.get());
+                        }
+                    }
+                    schedulingService.getMetrics().recordTime(TaskMetrics.PREDICT, this,
+                            recommender.getTool(),
+                            System.currentTimeMillis() - predictStartTime);
+
+                    // Extract the suggestions from the data which the recommender has written 
+                    // into the CAS
+                    List<AnnotationSuggestion> predictions = extractSuggestions(user,
+                            predictionCas.get(), predictionType, labelFeature, scoreFeature,
+                            aDocument, recommender);
+                    
+                    addPredictions(aModel, originalCas.get(), layer, predictions);
+                    if (casVersion >= 0) {
+                        aModel.putInputVersion(recommender.getId(), aDocument.getName(),
+                                modelVersion, casVersion);
                     }
+                    predictedCount.incrementAndGet();
+                }
+                catch (Throwable e) {
+                    log.error(
+                            "Error applying recommender [{}]({}) for user [{}] to document "
+                                    + "[{}]({}) in project [{}]({}) - skipping recommender",
+                            recommender.getName(), recommender.getId(), user.getUsername(),
+                            aDocument.getName(), aDocument.getId(), project.getName(),
+                            project.getId(), e);
+                    continue nextRecommender;
                 }
             }
         }
-        log.info("[{}]: Prediction complete ({} ms)", user.getUsername(),
-                (System.currentTimeMillis() - startTime));
-
-        recommendationService.putIncomingPredictions(getUser(), project, model);
+        
+        // Hand the prediction CAS back for the next prediction cycle - it must not contain any
+        // predictions anymore
+        if (predictionCas.isPresent()) {
+            for (Type type : predictedTypes) {
+                removePredictions(predictionCas.get(), type);
+            }
+            casSnapshotCache.releasePredictionCas(aDocument, user.getUsername(),
+                    originalCas.get(), predictionCas.get());
+        }
     }
     
-    private CAS cloneCAS(CAS aCAS) throws ResourceInitializationException, CASException
+    private void addPredictions(Predictions aModel, CAS aOriginalCas, AnnotationLayer aLayer,
+            List<AnnotationSuggestion> aPredictions)
     {
-        CAS clone = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        // Calculate the visbility of the suggestions. This happens via the original CAS which
+        // contains only the manually created annotations and *not* the suggestions.
+        Collection<SuggestionGroup> groups = SuggestionGroup.group(aPredictions);
+        calculateVisibility(learningRecordService, annoService, aOriginalCas,
+                getUser().getUsername(), aLayer, groups, 0,
+                aOriginalCas.getDocumentText().length());
         
-        CASCompleteSerializer ser = Serialization.serializeCASComplete((CASMgr) aCAS);
-        Serialization.deserializeCASComplete(ser, (CASMgr) clone);
-        
-        // Make sure JCas is properly initialized too
-        clone.getJCas();
-        
-        return clone;
+        aModel.putPredictions(aLayer.getId(), aPredictions);
     }
 
     private List<AnnotationSuggestion> extractSuggestions(User aUser, CAS aCas, Type predictionType,
@@ -330,10 +511,6 @@ public class PredictionTask
                     return aWindowBegin <= offset.getBegin() && offset.getEnd() <= aWindowEnd;
                 }).collect(toList());
 
-        // Get all the skipped/rejected entries for the current layer
-        List<LearningRecord> recordedAnnotations = aLearningRecordService.listRecords(aUser,
-                aLayer);
-
         for (AnnotationFeature feature : aAnnotationService.listAnnotationFeature(aLayer)) {
             Feature feat = type.getFeatureByBaseName(feature.getName());
 
@@ -394,12 +571,12 @@ public class PredictionTask
             suggestions.values().stream().flatMap(SuggestionGroup::stream)
                     .filter(AnnotationSuggestion::isVisible)
                     .forEach(suggestion -> hideSuggestionsRejectedOrWithoutLabel(suggestion,
-                            recordedAnnotations));
+                            aLearningRecordService, aUser, aLayer));
         }
     }
 
     private static void hideSuggestionsRejectedOrWithoutLabel(AnnotationSuggestion aSuggestion,
-            List<LearningRecord> aRecordedRecommendations)
+            LearningRecordService aLearningRecordService, String aUser, AnnotationLayer aLayer)
     {
         // If there is no label, then hide it
         if (aSuggestion.getLabel() == null) {
@@ -408,22 +585,20 @@ public class PredictionTask
         }
 
         // If it was rejected or skipped, it hide it
-        for (LearningRecord record : aRecordedRecommendations) {
-            if (record.getOffsetCharacterBegin() == aSuggestion.getBegin()
-                    && record.getOffsetCharacterEnd() == aSuggestion.getEnd()
-                    && record.getAnnotation().equals(aSuggestion.getLabel())) {
-                switch (record.getUserAction()) {
-                case REJECTED:
-                    aSuggestion.hide(FLAG_REJECTED);
-                    break;
-                case SKIPPED:
-                    aSuggestion.hide(FLAG_SKIPPED);
-                    break;
-                default:
-                    // Nothing to do for the other cases. ACCEPTED annotation are filtered out
-                    // because the overlap with a created annotation and the same for CORRECTED
-                }
-                return;
+        Optional<LearningRecordType> userAction = aLearningRecordService.getUserAction(aUser,
+                aLayer, aSuggestion.getDocumentName(), aSuggestion.getBegin(),
+                aSuggestion.getEnd(), aSuggestion.getLabel());
+        if (userAction.isPresent()) {
+            switch (userAction.get()) {
+            case REJECTED:
+                aSuggestion.hide(FLAG_REJECTED);
+                break;
+            case SKIPPED:
+                aSuggestion.hide(FLAG_SKIPPED);
+                break;
+            default:
+                // Nothing to do for the other cases. ACCEPTED annotation are filtered out
+                // because the overlap with a created annotation and the same for CORRECTED
             }
         }
     }
@@ -19,14 +19,27 @@ package de.tudarmstadt.ukp.inception.recommendation.tasks;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.persistence.NoResultException;
 
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
 import org.apache.commons.lang3.concurrent.LazyInitializer;
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
-import org.apache.uima.jcas.JCas;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,9 +57,16 @@ import de.tudarmstadt.ukp.inception.recommendation.api.evaluation.PercentageBase
 import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommendationEngine;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommendationEngineFactory;
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
 import de.tudarmstadt.ukp.inception.recommendation.event.RecommenderEvaluationResultEvent;
+import de.tudarmstadt.ukp.inception.recommendation.service.CasSnapshotCache;
+import de.tudarmstadt.ukp.inception.recommendation.service.EvaluationResultCache;
+import de.tudarmstadt.ukp.inception.recommendation.service.EvaluationResultCache.EvaluationResult;
+import de.tudarmstadt.ukp.inception.recommendation.service.RecommendationExecutor;
 import de.tudarmstadt.ukp.inception.scheduling.SchedulingService;
 import de.tudarmstadt.ukp.inception.scheduling.Task;
+import de.tudarmstadt.ukp.inception.scheduling.TaskMetrics;
+import de.tudarmstadt.ukp.inception.scheduling.TaskPriority;
 
 /**
  * This task evaluates all available classification tools for all annotation layers of the current
@@ -63,12 +83,22 @@ public class SelectionTask
     private @Autowired RecommendationService recommendationService;
     private @Autowired ApplicationEventPublisher appEventPublisher;
     private @Autowired SchedulingService schedulingService;
+    private @Autowired CasSnapshotCache casSnapshotCache;
+    private @Autowired EvaluationResultCache evaluationResultCache;
+    private @Autowired RecommendationExecutor recommendationExecutor;
+    private @Autowired RecommendationProperties properties;
 
     public SelectionTask(Project aProject, User aUser, String aTrigger)
     {
         super(aUser, aProject, aTrigger);
     }
 
+    @Override
+    public TaskPriority getPriority()
+    {
+        return TaskPriority.LOW;
+    }
+
     @Override
     public void run()
     {
@@ -87,110 +117,284 @@ public class SelectionTask
                 return readCasses(project, userName);
             }
         };
-
-        for (AnnotationLayer layer : annoService.listAnnotationLayer(getProject())) {
-            if (!layer.isEnabled()) {
-                continue;
-            }
-            
-            List<Recommender> recommenders = recommendationService.listRecommenders(layer);
-            if (recommenders == null || recommenders.isEmpty()) {
-                log.debug("[{}][{}]: No recommenders, skipping selection.", userName,
-                        layer.getUiName());
-                continue;
+        
+        LazyInitializer<String> dataFingerprint = new LazyInitializer<String>()
+        {
+            @Override
+            protected String initialize()
+            {
+                return getDataFingerprint(project, userName);
             }
-    
-            List<Recommender> activeRecommenders = new ArrayList<>();
+        };
+
+        // The evaluations of all recommenders are submitted first and the recommenders of each
+        // layer are activated once their evaluations are complete
+        boolean parallel = properties.getEvaluationThreads() > 1;
+        try {
+            Map<AnnotationLayer, Map<Recommender, Future<Boolean>>> evaluations =
+                    new LinkedHashMap<>();
             
-            for (Recommender r : recommenders) {
-                // Make sure we have the latest recommender config from the DB - the one from
-                // the active recommenders list may be outdated
-                Recommender recommender;
-                try {
-                    recommender = recommendationService.getRecommender(r.getId());
-                }
-                catch (NoResultException e) {
-                    log.info("[{}][{}]: Recommender no longer available... skipping",
-                            user.getUsername(), r.getName());
+            for (AnnotationLayer layer : annoService.listAnnotationLayer(getProject())) {
+                if (!layer.isEnabled()) {
                     continue;
                 }
-
-                if (!recommender.isEnabled()) {
-                    log.debug("[{}][{}]: Disabled - skipping", userName, recommender.getName());
+                
+                List<Recommender> recommenders = recommendationService.listRecommenders(layer);
+                if (recommenders == null || recommenders.isEmpty()) {
+                    log.debug("[{}][{}]: No recommenders, skipping selection.", userName,
+                            layer.getUiName());
                     continue;
                 }
-
-                String recommenderName = recommender.getName();
+        
+                Map<Recommender, Future<Boolean>> layerEvaluations = new LinkedHashMap<>();
+                evaluations.put(layer, layerEvaluations);
                 
-                try {
-                    long start = System.currentTimeMillis();
-                    RecommendationEngineFactory factory = recommendationService
-                        .getRecommenderFactory(recommender);
-                    RecommendationEngine recommendationEngine = factory.build(recommender);
-
-                    if (recommender.isAlwaysSelected()) {
-                        log.debug("[{}][{}]: Activating [{}] without evaluating - always selected",
-                                userName, recommenderName, recommenderName);
-                        activeRecommenders.add(recommender);
+                for (Recommender r : recommenders) {
+                    if (isCancelled()) {
+                        log.info("[{}]: Selection cancelled - superseded by a newer task",
+                                userName);
+                        return;
+                    }
+                    
+                    // Make sure we have the latest recommender config from the DB - the one from
+                    // the active recommenders list may be outdated
+                    Recommender recommender;
+                    try {
+                        recommender = recommendationService.getRecommender(r.getId());
+                    }
+                    catch (NoResultException e) {
+                        log.info("[{}][{}]: Recommender no longer available... skipping",
+                                user.getUsername(), r.getName());
                         continue;
-                    } else if (!factory.isEvaluable()) {
-                        log.debug("[{}][{}]: Activating [{}] without evaluating - not evaluable",
-                                userName, recommenderName, recommenderName);
-                        activeRecommenders.add(recommender);
+                    }
+    
+                    if (!recommender.isEnabled()) {
+                        log.debug("[{}][{}]: Disabled - skipping", userName,
+                                recommender.getName());
                         continue;
                     }
     
-                    log.info("[{}][{}]: Evaluating...", userName, recommenderName);
-
-                    DataSplitter splitter = new PercentageBasedSplitter(0.8, 10);
-                    double score = recommendationEngine.evaluate(casses.get(), splitter);
-
-                    Double threshold = recommender.getThreshold();
-                    boolean activated;
-                    if (score >= threshold) {
-                        activated = true;
-                        activeRecommenders.add(recommender);
-                        log.info("[{}][{}]: Activated ({} is above threshold {})",
-                                user.getUsername(), recommenderName, score,
-                                threshold);
+                    layerEvaluations.put(recommender, submit(parallel,
+                        () -> evaluate(recommender, casses, dataFingerprint)));
+                }
+            }
+            
+            for (Entry<AnnotationLayer, Map<Recommender, Future<Boolean>>> layerEvaluations :
+                    evaluations.entrySet()) {
+                List<Recommender> activeRecommenders = new ArrayList<>();
+                for (Entry<Recommender, Future<Boolean>> evaluation : layerEvaluations.getValue()
+                        .entrySet()) {
+                    try {
+                        if (evaluation.getValue().get()) {
+                            activeRecommenders.add(evaluation.getKey());
+                        }
                     }
-                    else {
-                        activated = false;
-                        log.info("[{}][{}]: Not activated ({} is not above threshold {})",
-                                user.getUsername(), recommenderName, score,
-                                threshold);
+                    catch (ExecutionException e) {
+                        log.error("[{}][{}]: Failed", userName, evaluation.getKey().getName(),
+                                e.getCause());
                     }
-
-                    appEventPublisher.publishEvent(new RecommenderEvaluationResultEvent(this,
-                            recommender, user.getUsername(), score,
-                            System.currentTimeMillis() - start, activated));
                 }
-                catch (Throwable e) {
-                    log.error("[{}][{}]: Failed", user.getUsername(), recommenderName, e);
+                
+                if (isCancelled()) {
+                    log.info("[{}]: Selection cancelled - superseded by a newer task", userName);
+                    return;
                 }
+                
+                recommendationService.setActiveRecommenders(user, layerEvaluations.getKey(),
+                        activeRecommenders);
             }
-    
-            recommendationService.setActiveRecommenders(user, layer, activeRecommenders);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            return;
         }
 
         schedulingService.enqueue(new TrainingTask(user, getProject(),
                 "SelectionTask after activating recommenders"));
     }
+    
+    /**
+     * Queues the given evaluation in the thread pool shared with the tasks of other users or runs
+     * it right away if the evaluations are not run in parallel.
+     */
+    private Future<Boolean> submit(boolean aParallel, Callable<Boolean> aEvaluation)
+    {
+        if (aParallel) {
+            return recommendationExecutor.submit(aEvaluation);
+        }
+        
+        FutureTask<Boolean> task = new FutureTask<>(aEvaluation);
+        task.run();
+        return task;
+    }
+
+    /**
+     * @return whether the recommender is activated.
+     */
+    private boolean evaluate(Recommender aRecommender, LazyInitializer<List<CAS>> aCasses,
+            LazyInitializer<String> aDataFingerprint)
+        throws Exception
+    {
+        String userName = getUser().getUsername();
+        String recommenderName = aRecommender.getName();
+        
+        if (isCancelled()) {
+            return false;
+        }
+        
+        long start = System.currentTimeMillis();
+        RecommendationEngineFactory factory = recommendationService
+            .getRecommenderFactory(aRecommender);
+        RecommendationEngine recommendationEngine = factory.build(aRecommender);
+
+        if (aRecommender.isAlwaysSelected()) {
+            log.debug("[{}][{}]: Activating [{}] without evaluating - always selected",
+                    userName, recommenderName, recommenderName);
+            return true;
+        } else if (!factory.isEvaluable()) {
+            log.debug("[{}][{}]: Activating [{}] without evaluating - not evaluable",
+                    userName, recommenderName, recommenderName);
+            return true;
+        }
+
+        List<CAS> evaluationCasses = aCasses.get();
+        if (isCancelled()) {
+            return false;
+        }
+        
+        // Re-use the previous score unless the configuration of the recommender has changed or
+        // enough annotations have been added or removed since the previous evaluation
+        String configuration = getConfiguration(aRecommender);
+        String dataFingerprint = aDataFingerprint.get();
+        int[] annotations = hashAnnotations(evaluationCasses, aRecommender.getLayer());
+        Optional<EvaluationResult> previousResult = evaluationResultCache
+                .get(userName, aRecommender)
+                .filter(result -> result.isReusable(configuration, dataFingerprint, annotations,
+                        properties.getReevaluationAnnotationCount()));
+        
+        double score;
+        if (previousResult.isPresent()) {
+            score = previousResult.get().getScore();
+            log.info("[{}][{}]: Using previous evaluation result", userName, recommenderName);
+        }
+        else {
+            log.info("[{}][{}]: Evaluating...", userName, recommenderName);
+            
+            DataSplitter splitter = new PercentageBasedSplitter(0.8, 10);
+            long evaluateStartTime = System.currentTimeMillis();
+            score = recommendationEngine.evaluate(evaluationCasses, splitter);
+            schedulingService.getMetrics().recordTime(TaskMetrics.EVALUATE, this,
+                    aRecommender.getTool(), System.currentTimeMillis() - evaluateStartTime);
+            
+            evaluationResultCache.put(userName, aRecommender, new EvaluationResult(
+                    configuration, dataFingerprint, annotations, score));
+        }
+
+        Double threshold = aRecommender.getThreshold();
+        boolean activated;
+        if (score >= threshold) {
+            activated = true;
+            log.info("[{}][{}]: Activated ({} is above threshold {})", userName,
+                    recommenderName, score, threshold);
+        }
+        else {
+            activated = false;
+            log.info("[{}][{}]: Not activated ({} is not above threshold {})", userName,
+                    recommenderName, score, threshold);
+        }
+
+        if (!previousResult.isPresent()) {
+            appEventPublisher.publishEvent(new RecommenderEvaluationResultEvent(this,
+                    aRecommender, userName, score, System.currentTimeMillis() - start,
+                    activated));
+        }
+        
+        return activated;
+    }
+    
+    /**
+     * @return the settings of the given recommender which affect its evaluation.
+     */
+    private String getConfiguration(Recommender aRecommender)
+    {
+        return new ToStringBuilder(aRecommender, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("tool", aRecommender.getTool())
+                .append("layer", aRecommender.getLayer().getId())
+                .append("feature", aRecommender.getFeature() != null
+                        ? aRecommender.getFeature().getName() : null)
+                .append("maxRecommendations", aRecommender.getMaxRecommendations())
+                .append("traits", aRecommender.getTraits())
+                .toString();
+    }
+
+    /**
+     * @return a hash code for each annotation on the given layer which is based on its position,
+     *         its text and its primitive feature values, so that annotations which have been
+     *         added, removed or changed between two evaluations can be counted.
+     */
+    private int[] hashAnnotations(List<CAS> aCasses, AnnotationLayer aLayer)
+    {
+        List<Integer> hashes = new ArrayList<>();
+        for (CAS cas : aCasses) {
+            Type type = cas.getTypeSystem().getType(aLayer.getName());
+            if (type == null) {
+                continue;
+            }
+            
+            for (AnnotationFS annotation : cas.getAnnotationIndex(type)) {
+                int hash = Objects.hash(annotation.getBegin(), annotation.getEnd(),
+                        annotation.getCoveredText());
+                for (Feature feature : type.getFeatures()) {
+                    if (feature.getRange().isPrimitive()) {
+                        hash = 31 * hash
+                                + Objects.hashCode(annotation.getFeatureValueAsString(feature));
+                    }
+                }
+                hashes.add(hash);
+            }
+        }
+        return hashes.stream().mapToInt(Integer::intValue).toArray();
+    }
+    
+    /**
+     * @return a fingerprint of the annotations of the given user in all documents of the project
+     *         or {@code null} if the version of a document cannot be determined.
+     */
+    private String getDataFingerprint(Project aProject, String aUserName)
+    {
+        StringBuilder fingerprint = new StringBuilder();
+        for (SourceDocument document : documentService.listSourceDocuments(aProject)) {
+            try {
+                fingerprint.append(document.getId()).append(':')
+                        .append(casSnapshotCache.getCasVersion(document, aUserName))
+                        .append('\n');
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+        return fingerprint.toString();
+    }
 
     private List<CAS> readCasses(Project aProject, String aUserName)
     {
+        long startTime = System.currentTimeMillis();
         List<CAS> casses = new ArrayList<>();
         for (SourceDocument document : documentService.listSourceDocuments(aProject)) {
+            // Cancellation is checked again before the incomplete list is used
+            if (isCancelled()) {
+                break;
+            }
+            
             try {
-                JCas jCas = documentService.readAnnotationCas(document, aUserName);
-                annoService.upgradeCasIfRequired(jCas.getCas(), document, aUserName);
-                casses.add(jCas.getCas());
-            } catch (IOException e) {
+                casses.add(casSnapshotCache.getSnapshot(document, aUserName));
+            } catch (IOException | UIMAException e) {
                 log.error("Cannot read annotation CAS.", e);
-            } catch (UIMAException e) {
-                log.error("Cannot upgrade annotation CAS.", e);
             }
         }
+        schedulingService.getMetrics().recordTime(TaskMetrics.CAS_LOAD, this, null,
+                System.currentTimeMillis() - startTime);
         return casses;
     }
 }
@@ -17,19 +17,30 @@
  */
 package de.tudarmstadt.ukp.inception.recommendation.tasks;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
+import static java.util.Comparator.comparing;
+
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.persistence.NoResultException;
 
 import org.apache.commons.lang3.concurrent.LazyInitializer;
+import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.Type;
 import org.apache.uima.fit.util.CasUtil;
-import org.apache.uima.jcas.JCas;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -46,9 +57,15 @@ import de.tudarmstadt.ukp.inception.recommendation.api.RecommendationService;
 import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommendationEngine;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommendationEngineFactory;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommendationException;
 import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext.Key;
+import de.tudarmstadt.ukp.inception.recommendation.service.CasSnapshotCache;
+import de.tudarmstadt.ukp.inception.recommendation.service.RecommenderModelStore;
+import de.tudarmstadt.ukp.inception.recommendation.service.SharedModelCache;
 import de.tudarmstadt.ukp.inception.scheduling.SchedulingService;
 import de.tudarmstadt.ukp.inception.scheduling.Task;
+import de.tudarmstadt.ukp.inception.scheduling.TaskMetrics;
 
 /**
  * This consumer trains a new classifier model, if a classification tool was selected before.
@@ -56,12 +73,27 @@ import de.tudarmstadt.ukp.inception.scheduling.Task;
 public class TrainingTask
     extends Task
 {
+    /**
+     * The recommender configuration the model in a context has been trained with.
+     */
+    private static final Key<String> KEY_TRAINED_CONFIGURATION = new Key<>(
+            "trainingTask.configuration");
+    
+    /**
+     * The versions of the documents the model in a context has been trained on by name.
+     */
+    private static final Key<Map<String, Long>> KEY_TRAINED_DOCUMENTS = new Key<>(
+            "trainingTask.documents");
+    
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private @Autowired AnnotationSchemaService annoService;
     private @Autowired DocumentService documentService;
     private @Autowired RecommendationService recommendationService;
     private @Autowired SchedulingService schedulingService;
+    private @Autowired CasSnapshotCache casSnapshotCache;
+    private @Autowired RecommenderModelStore modelStore;
+    private @Autowired SharedModelCache sharedModelCache;
 
     public TrainingTask(User aUser, Project aProject, String aTrigger)
     {
@@ -89,6 +121,15 @@ public class TrainingTask
             }
         };
         
+        LazyInitializer<String> dataFingerprint = new LazyInitializer<String>()
+        {
+            @Override
+            protected String initialize()
+            {
+                return getTrainingDataFingerprint(project, user);
+            }
+        };
+        
         for (AnnotationLayer layer : annoService.listAnnotationLayer(project)) {
             if (!layer.isEnabled()) {
                 continue;
@@ -104,6 +145,12 @@ public class TrainingTask
             }
             
             for (Recommender r : recommenders) {
+                if (isCancelled()) {
+                    log.info("[{}]: Training cancelled - superseded by a newer task",
+                            user.getUsername());
+                    return;
+                }
+                
                 // Make sure we have the latest recommender config from the DB - the one from the
                 // active recommenders list may be outdated
                 Recommender recommender;
@@ -130,28 +177,101 @@ public class TrainingTask
                     RecommendationEngine recommendationEngine = factory.build(recommender);
                     
                     // If the engine does not require/support training, then we mark the context
-                    // as ready for prediction and skip the training step
+                    // as ready for prediction once and skip the training step
                     if (!recommendationEngine.requiresTraining()) {
-                        log.info("[{}][{}]: Engine does not require training",
+                        log.debug("[{}][{}]: Engine does not require training",
+                                user.getUsername(), recommender.getName());
+                        if (!context.isReadyForPrediction()) {
+                            context.markAsReadyForPrediction();
+                        }
+                        continue;
+                    }
+                    
+                    // After a restart or a new login, re-use the model persisted after the last
+                    // training if the recommender would be trained on the same data again
+                    String fingerprint = getFingerprint(recommender, dataFingerprint.get());
+                    if (!context.isReadyForPrediction() && fingerprint != null
+                            && modelStore.load(user, recommender, fingerprint, context)) {
+                        log.info("[{}][{}]: Training data unchanged - using persisted model",
                                 user.getUsername(), recommender.getName());
-                        context.markAsReadyForPrediction();
                         continue;
                     }
                     
-                    List<CAS> cassesForTraining = casses.get()
+                    List<TrainingDocument> documentsForTraining = casses.get()
                             .stream()
                             .filter(e -> !recommender.getStatesIgnoredForTraining()
                                     .contains(e.state))
                             .filter(e -> containsTargetAnnotation(recommender, e.cas))
+                            .collect(Collectors.toList());
+                    List<CAS> cassesForTraining = documentsForTraining.stream()
                             .map(e -> e.cas)
                             .collect(Collectors.toList());
 
+                    if (isCancelled()) {
+                        return;
+                    }
+                    
+                    // Another user may already have trained the recommender on the same data.
+                    // The model is then used by the prediction tasks of several users at the same
+                    // time, so it can only be shared if the engine supports that. If the existing
+                    // model can be updated incrementally, that is cheaper than fingerprinting the
+                    // content of all documents.
+                    boolean shareable = sharedModelCache.isEnabled()
+                            && !cassesForTraining.isEmpty()
+                            && recommendationEngine.isPredictionThreadSafe();
+                    boolean incremental = recommendationEngine.supportsIncrementalTraining()
+                            && getTrainedDocuments(recommender, context).isPresent();
+                    String sharedFingerprint = null;
+                    if (shareable && !incremental) {
+                        sharedFingerprint = getFingerprint(recommender,
+                                getContentFingerprint(documentsForTraining));
+                        if (sharedModelCache.restore(recommender, sharedFingerprint, context)) {
+                            log.info("[{}][{}]: Using shared model trained on the same data",
+                                    user.getUsername(), recommender.getName());
+                            // The model has been trained on the documents of another user, but
+                            // their content is the same as the current versions of the documents
+                            // of this user
+                            if (context.get(KEY_TRAINED_DOCUMENTS).isPresent()) {
+                                context.put(KEY_TRAINED_DOCUMENTS,
+                                        getVersions(documentsForTraining));
+                            }
+                            if (fingerprint != null) {
+                                modelStore.save(user, recommender, fingerprint, context);
+                            }
+                            continue;
+                        }
+                    }
+                    
                     if (!cassesForTraining.isEmpty()) {
                         log.info("[{}][{}]: Training model on [{}] out of [{}] documents ...",
                                 user.getUsername(), recommender.getName(), cassesForTraining.size(),
                                 casses.get().size());
                         
-                        recommendationEngine.train(context, cassesForTraining);
+                        long trainStartTime = System.currentTimeMillis();
+                        long previousVersion = context.getVersion();
+                        if (!recommendationEngine.supportsIncrementalTraining()
+                                || !trainIncrementally(recommendationEngine, recommender,
+                                        context, documentsForTraining)) {
+                            recommendationEngine.train(context, cassesForTraining);
+                        }
+                        schedulingService.getMetrics().recordTime(TaskMetrics.TRAIN, this,
+                                recommender.getTool(),
+                                System.currentTimeMillis() - trainStartTime);
+                        
+                        // Only a new model needs to be persisted and shared - if the training
+                        // data is unchanged, the model is kept as it is
+                        boolean modelChanged = context.getVersion() != previousVersion;
+                        if (modelChanged && fingerprint != null
+                                && context.isReadyForPrediction()) {
+                            modelStore.save(user, recommender, fingerprint, context);
+                        }
+                        if (modelChanged && shareable && context.isReadyForPrediction()) {
+                            if (sharedFingerprint == null) {
+                                sharedFingerprint = getFingerprint(recommender,
+                                        getContentFingerprint(documentsForTraining));
+                            }
+                            sharedModelCache.put(recommender, sharedFingerprint, context);
+                        }
                         
                         log.info("[{}][{}]: Training complete ({} ms)", user.getUsername(),
                                 recommender.getName(), (System.currentTimeMillis() - startTime));
@@ -174,39 +294,254 @@ public class TrainingTask
 
     private List<TrainingDocument> readCasses(Project aProject, User aUser)
     {
+        long startTime = System.currentTimeMillis();
         List<TrainingDocument> casses = new ArrayList<>();
         Map<SourceDocument, AnnotationDocument> allDocuments =
                 documentService.listAllDocuments(aProject, aUser);
         for (Map.Entry<SourceDocument, AnnotationDocument> entry : allDocuments.entrySet()) {
+            // Cancellation is checked again before the incomplete list is used
+            if (isCancelled()) {
+                break;
+            }
+            
             try {
                 SourceDocument sourceDocument = entry.getKey();
                 AnnotationDocument annotationDocument = entry.getValue();
                 AnnotationDocumentState state = annotationDocument != null ?
                         annotationDocument.getState() : AnnotationDocumentState.NEW;
 
-                JCas jCas = documentService.readAnnotationCas(sourceDocument, aUser.getUsername());
-                casses.add(new TrainingDocument(jCas.getCas(), state));
-            } catch (IOException e) {
+                // The version is read first - if the document changes in the meantime, it is
+                // considered changed again by the next incremental training
+                long version = casSnapshotCache.getCasVersion(sourceDocument,
+                        aUser.getUsername());
+                CAS cas = casSnapshotCache.getSnapshot(sourceDocument, aUser.getUsername());
+                casses.add(new TrainingDocument(sourceDocument.getId(), sourceDocument.getName(),
+                        version, cas, state));
+            } catch (IOException | UIMAException e) {
                 log.error("Cannot read annotation CAS.", e);
             }
         }
+        schedulingService.getMetrics().recordTime(TaskMetrics.CAS_LOAD, this, null,
+                System.currentTimeMillis() - startTime);
+        
+        // Train on the documents in the same order for every user, so that models trained on the
+        // same data are the same
+        casses.sort(comparing(doc -> doc.documentId));
         return casses;
     }
 
+    /**
+     * @return a fingerprint of the documents which a recommender may be trained on, i.e. their
+     *         states and the versions of the annotations of the user, or {@code null} if the
+     *         version of a document cannot be determined.
+     */
+    private String getTrainingDataFingerprint(Project aProject, User aUser)
+    {
+        StringBuilder fingerprint = new StringBuilder();
+        List<Map.Entry<SourceDocument, AnnotationDocument>> documents = new ArrayList<>(
+                documentService.listAllDocuments(aProject, aUser).entrySet());
+        documents.sort(comparing(entry -> entry.getKey().getId()));
+        for (Map.Entry<SourceDocument, AnnotationDocument> entry : documents) {
+            AnnotationDocumentState state = entry.getValue() != null
+                    ? entry.getValue().getState() : AnnotationDocumentState.NEW;
+            try {
+                fingerprint.append(entry.getKey().getId()).append(':').append(state).append(':')
+                        .append(casSnapshotCache.getCasVersion(entry.getKey(),
+                                aUser.getUsername()))
+                        .append('\n');
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * @return a fingerprint of the given recommender configuration and training data, or
+     *         {@code null} if there is no fingerprint of the training data.
+     */
+    private String getFingerprint(Recommender aRecommender, String aDataFingerprint)
+    {
+        if (aDataFingerprint == null) {
+            return null;
+        }
+        
+        StringBuilder input = new StringBuilder();
+        input.append(aRecommender.getTool()).append('\n');
+        input.append(aRecommender.getLayer().getId()).append('\n');
+        input.append(aRecommender.getFeature() != null ? aRecommender.getFeature().getName()
+                : null).append('\n');
+        input.append(aRecommender.getTraits()).append('\n');
+        aRecommender.getStatesIgnoredForTraining().stream().sorted()
+                .forEach(state -> input.append(state).append(' '));
+        input.append('\n');
+        input.append(aDataFingerprint);
+        
+        MessageDigest digest = sha256();
+        digest.update(input.toString().getBytes(UTF_8));
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] aBytes)
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : aBytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
     private boolean containsTargetAnnotation(Recommender aRecommender, CAS aCas)
     {
         Type type = CasUtil.getType(aCas, aRecommender.getLayer().getName());
         return CasUtil.iterator(aCas, type).hasNext();
     }
 
+    /**
+     * Updates the model in the given context with the documents which have changed since it has
+     * last been trained. If the context holds no model which has been trained incrementally with
+     * the current recommender configuration, the engine builds a new model from all documents.
+     * 
+     * @return whether the model is up to date. If not, it needs to be trained using
+     *         {@link RecommendationEngine#train}.
+     */
+    private boolean trainIncrementally(RecommendationEngine aEngine, Recommender aRecommender,
+            RecommenderContext aContext, List<TrainingDocument> aDocuments)
+        throws RecommendationException
+    {
+        Map<String, Long> versions = getVersions(aDocuments);
+        
+        Optional<Map<String, Long>> trainedDocuments = getTrainedDocuments(aRecommender, aContext);
+        if (trainedDocuments.isPresent()) {
+            Map<String, Long> previousVersions = trainedDocuments.get();
+            Map<String, CAS> changedCasses = new LinkedHashMap<>();
+            for (TrainingDocument document : aDocuments) {
+                if (!Long.valueOf(document.version)
+                        .equals(previousVersions.get(document.name))) {
+                    changedCasses.put(document.name, document.cas);
+                }
+            }
+            Set<String> removedDocuments = new HashSet<>(previousVersions.keySet());
+            removedDocuments.removeAll(versions.keySet());
+            
+            if (changedCasses.isEmpty() && removedDocuments.isEmpty()) {
+                log.info("[{}][{}]: Training data unchanged - keeping model",
+                        getUser().getUsername(), aRecommender.getName());
+                return true;
+            }
+            
+            // The model is updated in a copy of the context which then replaces the values of
+            // the context as a whole, so predictions never see a partially updated model
+            RecommenderContext updatedContext = new RecommenderContext();
+            updatedContext.setValues(aContext.getValues());
+            if (aEngine.update(updatedContext, changedCasses, removedDocuments)) {
+                updatedContext.put(KEY_TRAINED_DOCUMENTS, versions);
+                aContext.setValues(updatedContext.getValues());
+                aContext.markAsReadyForPrediction();
+                log.info("[{}][{}]: Updated model with [{}] changed and [{}] removed documents",
+                        getUser().getUsername(), aRecommender.getName(), changedCasses.size(),
+                        removedDocuments.size());
+                return true;
+            }
+        }
+        
+        // Build a new model in a separate context, so that the existing model remains available
+        // for predictions in the meantime
+        Map<String, CAS> allCasses = new LinkedHashMap<>();
+        for (TrainingDocument document : aDocuments) {
+            allCasses.put(document.name, document.cas);
+        }
+        RecommenderContext newContext = new RecommenderContext();
+        if (!aEngine.update(newContext, allCasses, emptyList())) {
+            return false;
+        }
+        
+        newContext.put(KEY_TRAINED_CONFIGURATION, getFingerprint(aRecommender, ""));
+        newContext.put(KEY_TRAINED_DOCUMENTS, versions);
+        aContext.setValues(newContext.getValues());
+        aContext.markAsReadyForPrediction();
+        return true;
+    }
+
+    /**
+     * @return the versions of the documents the model in the given context has been trained on if
+     *         the model can be updated incrementally, i.e. if it has been trained incrementally
+     *         with the current configuration of the recommender.
+     */
+    private Optional<Map<String, Long>> getTrainedDocuments(Recommender aRecommender,
+            RecommenderContext aContext)
+    {
+        String configuration = getFingerprint(aRecommender, "");
+        if (aContext.isReadyForPrediction() && aContext.get(KEY_TRAINED_CONFIGURATION)
+                .map(configuration::equals).orElse(false)) {
+            return aContext.get(KEY_TRAINED_DOCUMENTS);
+        }
+        return Optional.empty();
+    }
+
+    private Map<String, Long> getVersions(List<TrainingDocument> aDocuments)
+    {
+        Map<String, Long> versions = new HashMap<>();
+        for (TrainingDocument document : aDocuments) {
+            versions.put(document.name, document.version);
+        }
+        return versions;
+    }
+
+    /**
+     * @return a fingerprint of the content of the given documents which is the same for all users
+     *         if they have the same annotations, unlike a fingerprint based on CAS versions.
+     */
+    private String getContentFingerprint(List<TrainingDocument> aDocuments)
+    {
+        StringBuilder fingerprint = new StringBuilder();
+        for (TrainingDocument document : aDocuments) {
+            fingerprint.append(document.documentId).append(':')
+                    .append(document.getContentFingerprint()).append('\n');
+        }
+        return fingerprint.toString();
+    }
+
     private static class TrainingDocument
     {
+        private final long documentId;
+        private final String name;
+        private final long version;
         private final CAS cas;
         private final AnnotationDocumentState state;
+        private String contentFingerprint;
 
-        private TrainingDocument(CAS aCas, AnnotationDocumentState aState) {
+        private TrainingDocument(long aDocumentId, String aName, long aVersion, CAS aCas,
+                AnnotationDocumentState aState) {
+            documentId = aDocumentId;
+            name = aName;
+            version = aVersion;
             cas = aCas;
             state = aState;
         }
+        
+        /**
+         * Digest of the text and all annotations, see
+         * {@link SharedModelCache#getContentFingerprint}. The same document may be used by several
+         * recommenders, so it is only calculated once.
+         */
+        private String getContentFingerprint()
+        {
+            if (contentFingerprint == null) {
+                contentFingerprint = SharedModelCache.getContentFingerprint(cas);
+            }
+            return contentFingerprint;
+        }
     }
 }
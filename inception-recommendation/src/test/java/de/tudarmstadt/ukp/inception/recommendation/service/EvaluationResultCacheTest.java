@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
+import de.tudarmstadt.ukp.inception.recommendation.service.EvaluationResultCache.EvaluationResult;
+
+public class EvaluationResultCacheTest
+{
+    private EvaluationResultCache sut;
+    private Recommender recommender;
+    private EvaluationResult result;
+
+    @Before
+    public void setUp()
+    {
+        sut = new EvaluationResultCache();
+        
+        recommender = new Recommender();
+        recommender.setId(1L);
+        
+        result = new EvaluationResult("configuration", "fingerprint", new int[] { 1, 2, 3 }, 0.5);
+    }
+
+    @Test
+    public void thatResultIsReusedForSameData()
+    {
+        assertThat(result.isReusable("configuration", "fingerprint", new int[] { 1, 2, 3 }, 1))
+                .isTrue();
+        assertThat(result.isReusable("other configuration", "fingerprint",
+                new int[] { 1, 2, 3 }, 1)).isFalse();
+    }
+
+    @Test
+    public void thatResultIsReusedForFewChanges()
+    {
+        assertThat(result.isReusable("configuration", null, new int[] { 3, 2, 1, 4 }, 2))
+                .isTrue();
+        assertThat(result.isReusable("configuration", null, new int[] { 1, 2, 4, 5 }, 2))
+                .isFalse();
+    }
+
+    @Test
+    public void thatAddedAndRemovedAnnotationsDoNotCancelOut()
+    {
+        // Same number of annotations, but two have been removed and two others have been added
+        int[] annotations = { 1, 4, 5 };
+        
+        assertThat(result.countChangedAnnotations(annotations)).isEqualTo(4);
+        assertThat(result.isReusable("configuration", "other fingerprint", annotations, 3))
+                .isFalse();
+    }
+
+    @Test
+    public void thatDuplicateAnnotationsAreCounted()
+    {
+        assertThat(result.countChangedAnnotations(new int[] { 1, 2, 3, 3 })).isEqualTo(1);
+        assertThat(result.countChangedAnnotations(new int[] { 1, 2 })).isEqualTo(1);
+    }
+
+    @Test
+    public void thatResultsAreInvalidatedForAllUsers()
+    {
+        sut.put("user1", recommender, result);
+        sut.put("user2", recommender, result);
+        
+        sut.invalidate(recommender);
+        
+        assertThat(sut.get("user1", recommender)).isEmpty();
+        assertThat(sut.get("user2", recommender)).isEmpty();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import static de.tudarmstadt.ukp.inception.recommendation.api.model.LearningRecordChangeLocation.MAIN_EDITOR;
+import static de.tudarmstadt.ukp.inception.recommendation.api.model.LearningRecordType.ACCEPTED;
+import static de.tudarmstadt.ukp.inception.recommendation.api.model.LearningRecordType.REJECTED;
+import static de.tudarmstadt.ukp.inception.recommendation.api.model.LearningRecordType.SHOWN;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.uima.cas.CAS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeDocumentRemovedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.inception.recommendation.api.model.AnnotationSuggestion;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(classes = SpringConfig.class)
+@Transactional
+@DataJpaTest
+public class LearningRecordServiceImplIntegrationTest
+{
+    private static final String USER_NAME = "user";
+    
+    @Autowired
+    private TestEntityManager testEntityManager;
+
+    private LearningRecordServiceImpl sut;
+    private Project project;
+    private SourceDocument document;
+    private AnnotationLayer layer;
+    private AnnotationFeature feature;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        sut = new LearningRecordServiceImpl(testEntityManager.getEntityManager());
+        project = createProject("Test project");
+        document = createSourceDocument(project, "doc.txt");
+        layer = createAnnotationLayer();
+        feature = createAnnotationFeature(layer, "strFeat");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        testEntityManager.clear();
+    }
+
+    @Test
+    public void thatUserActionIsFoundForLoggedSuggestion()
+    {
+        sut.logRecord(document, USER_NAME, buildSuggestion(0, 4, "PER"), layer, feature,
+                ACCEPTED, MAIN_EDITOR);
+        
+        assertThat(sut.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "PER"))
+                .contains(ACCEPTED);
+        assertThat(sut.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "LOC"))
+                .isEmpty();
+        assertThat(sut.getUserAction("other user", layer, document.getName(), 0, 4, "PER"))
+                .isEmpty();
+    }
+
+    @Test
+    public void thatIndexIsUpdatedWhenRecordIsLogged()
+    {
+        // Load the index before the records are logged
+        assertThat(sut.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "PER"))
+                .isEmpty();
+        
+        sut.logRecord(document, USER_NAME, buildSuggestion(0, 4, "PER"), layer, feature,
+                REJECTED, MAIN_EDITOR);
+        assertThat(sut.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "PER"))
+                .contains(REJECTED);
+        
+        sut.logRecord(document, USER_NAME, buildSuggestion(0, 4, "PER"), layer, feature,
+                SHOWN, MAIN_EDITOR);
+        assertThat(sut.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "PER"))
+                .isEmpty();
+    }
+
+    @Test
+    public void thatIndexIsLoadedFromStoredRecords()
+    {
+        sut.logRecord(document, USER_NAME, buildSuggestion(0, 4, "PER"), layer, feature,
+                ACCEPTED, MAIN_EDITOR);
+        sut.logRecord(document, USER_NAME, buildSuggestion(5, 9, "PER"), layer, feature,
+                SHOWN, MAIN_EDITOR);
+        
+        LearningRecordServiceImpl otherService = new LearningRecordServiceImpl(
+                testEntityManager.getEntityManager());
+        
+        assertThat(otherService.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "PER"))
+                .contains(ACCEPTED);
+        assertThat(otherService.getUserAction(USER_NAME, layer, document.getName(), 5, 9, "PER"))
+                .isEmpty();
+    }
+
+    @Test
+    public void thatIndexIsInvalidatedWhenDocumentIsRemoved()
+    {
+        sut.logRecord(document, USER_NAME, buildSuggestion(0, 4, "PER"), layer, feature,
+                ACCEPTED, MAIN_EDITOR);
+        assertThat(sut.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "PER"))
+                .contains(ACCEPTED);
+        
+        // Removing the document removes its records without going through the service
+        sut.beforeDocumentRemove(new BeforeDocumentRemovedEvent(this, document));
+        testEntityManager.getEntityManager()
+                .createQuery("DELETE FROM LearningRecord WHERE sourceDocument = :document")
+                .setParameter("document", document)
+                .executeUpdate();
+        
+        assertThat(sut.getUserAction(USER_NAME, layer, document.getName(), 0, 4, "PER"))
+                .isEmpty();
+    }
+
+    private AnnotationSuggestion buildSuggestion(int aBegin, int aEnd, String aLabel)
+    {
+        return new AnnotationSuggestion(1, 1L, "recommender", layer.getId(), feature.getName(),
+                document.getName(), aBegin, aEnd, "text", aLabel, aLabel, 1.0);
+    }
+
+    // Helper
+    private Project createProject(String aName)
+    {
+        Project project = new Project();
+        project.setName(aName);
+        project.setMode(WebAnnoConst.PROJECT_TYPE_ANNOTATION);
+        return testEntityManager.persist(project);
+    }
+
+    private SourceDocument createSourceDocument(Project aProject, String aName)
+    {
+        SourceDocument document = new SourceDocument();
+        document.setProject(aProject);
+        document.setName(aName);
+        document.setFormat("text");
+        return testEntityManager.persist(document);
+    }
+
+    private AnnotationLayer createAnnotationLayer()
+    {
+        AnnotationLayer layer = new AnnotationLayer();
+        layer.setEnabled(true);
+        layer.setName("annotation type name");
+        layer.setReadonly(false);
+        layer.setType("test type");
+        layer.setUiName("test ui name");
+        layer.setAnchoringMode(false, false);
+       
+        return testEntityManager.persist(layer);
+    }
+
+    private AnnotationFeature createAnnotationFeature(AnnotationLayer aLayer, String aName)
+    {
+        AnnotationFeature feature = new AnnotationFeature();
+        feature.setLayer(aLayer);
+        feature.setName(aName);
+        feature.setUiName(aName);
+        feature.setType(CAS.TYPE_NAME_STRING);
+               
+        return testEntityManager.persist(feature);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.RepositoryProperties;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext.Key;
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
+
+public class RecommenderModelStoreTest
+{
+    private static final Key<String> KEY_MODEL = new Key<>("model");
+    
+    public @Rule TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private RecommenderModelStore sut;
+    private User user;
+    private Recommender recommender;
+
+    @Before
+    public void setUp()
+    {
+        RepositoryProperties repoProps = new RepositoryProperties();
+        repoProps.setPath(temporaryFolder.getRoot());
+        
+        sut = new RecommenderModelStore(repoProps, new RecommendationProperties());
+        
+        Project project = new Project();
+        project.setId(1L);
+        
+        recommender = new Recommender();
+        recommender.setId(2L);
+        recommender.setName("recommender");
+        recommender.setProject(project);
+        
+        user = new User("user");
+    }
+
+    @Test
+    public void thatModelIsRestoredOnlyForSameFingerprint()
+    {
+        RecommenderContext context = new RecommenderContext();
+        context.put(KEY_MODEL, "trained model");
+        context.markAsReadyForPrediction();
+        sut.save(user, recommender, "fingerprint", context);
+        
+        RecommenderContext otherData = new RecommenderContext();
+        assertThat(sut.load(user, recommender, "other fingerprint", otherData)).isFalse();
+        assertThat(otherData.isReadyForPrediction()).isFalse();
+        
+        RecommenderContext sameData = new RecommenderContext();
+        assertThat(sut.load(user, recommender, "fingerprint", sameData)).isTrue();
+        assertThat(sameData.isReadyForPrediction()).isTrue();
+        assertThat(sameData.get(KEY_MODEL)).contains("trained model");
+    }
+
+    @Test
+    public void thatNonSerializableModelIsNotPersisted()
+    {
+        RecommenderContext context = new RecommenderContext();
+        context.put(new Key<Object>("model"), new Object());
+        sut.save(user, recommender, "fingerprint", context);
+        
+        assertThat(sut.load(user, recommender, "fingerprint", new RecommenderContext()))
+                .isFalse();
+    }
+
+    @Test
+    public void thatModelsAreDeletedWithRecommender()
+    {
+        RecommenderContext context = new RecommenderContext();
+        context.put(KEY_MODEL, "trained model");
+        sut.save(user, recommender, "fingerprint", context);
+        
+        sut.delete(recommender);
+        
+        assertThat(sut.load(user, recommender, "fingerprint", new RecommenderContext()))
+                .isFalse();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.recommendation.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.TypeSystemDescriptionFactory;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.inception.recommendation.api.model.Recommender;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext;
+import de.tudarmstadt.ukp.inception.recommendation.api.recommender.RecommenderContext.Key;
+import de.tudarmstadt.ukp.inception.recommendation.config.RecommendationProperties;
+
+public class SharedModelCacheTest
+{
+    private static final Key<String> KEY_MODEL = new Key<>("model");
+    private static final String SPAN_TYPE = "webanno.custom.Span";
+    private static final String RELATION_TYPE = "webanno.custom.Relation";
+    
+    private TypeSystemDescription tsd;
+    private SharedModelCache sut;
+    private Recommender recommender;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tsd = TypeSystemDescriptionFactory.createTypeSystemDescription();
+        TypeDescription span = tsd.addType(SPAN_TYPE, "", CAS.TYPE_NAME_ANNOTATION);
+        span.addFeature("value", "", CAS.TYPE_NAME_STRING);
+        TypeDescription relation = tsd.addType(RELATION_TYPE, "", CAS.TYPE_NAME_ANNOTATION);
+        relation.addFeature("Governor", "", SPAN_TYPE);
+        relation.addFeature("Dependent", "", SPAN_TYPE);
+        
+        RecommendationProperties properties = new RecommendationProperties();
+        properties.setSharedModelCacheSize(10);
+        sut = new SharedModelCache(properties);
+        
+        Project project = new Project();
+        project.setId(1L);
+        
+        recommender = new Recommender();
+        recommender.setId(2L);
+        recommender.setProject(project);
+    }
+
+    @Test
+    public void thatModelIsSharedForIdenticalData() throws Exception
+    {
+        String fingerprint = SharedModelCache.getContentFingerprint(createCas(0, 4));
+        String sameFingerprint = SharedModelCache.getContentFingerprint(createCas(0, 4));
+        assertThat(sameFingerprint).isEqualTo(fingerprint);
+        
+        sut.put(recommender, fingerprint, createTrainedContext());
+        
+        RecommenderContext context = new RecommenderContext();
+        assertThat(sut.restore(recommender, sameFingerprint, context)).isTrue();
+        assertThat(context.isReadyForPrediction()).isTrue();
+        assertThat(context.get(KEY_MODEL)).contains("trained model");
+    }
+
+    @Test
+    public void thatModelIsNotSharedForDifferentRelations() throws Exception
+    {
+        // Same text and spans, but the relation points to a different governor
+        String fingerprint = SharedModelCache.getContentFingerprint(createCas(0, 4));
+        String otherFingerprint = SharedModelCache.getContentFingerprint(createCas(18, 22));
+        assertThat(otherFingerprint).isNotEqualTo(fingerprint);
+        
+        sut.put(recommender, fingerprint, createTrainedContext());
+        
+        RecommenderContext context = new RecommenderContext();
+        assertThat(sut.restore(recommender, otherFingerprint, context)).isFalse();
+        assertThat(context.isReadyForPrediction()).isFalse();
+    }
+
+    @Test
+    public void thatModelsAreNotSharedWhenCacheIsDisabled() throws Exception
+    {
+        SharedModelCache disabled = new SharedModelCache(new RecommendationProperties());
+        String fingerprint = SharedModelCache.getContentFingerprint(createCas(0, 4));
+        
+        disabled.put(recommender, fingerprint, createTrainedContext());
+        
+        assertThat(disabled.isEnabled()).isFalse();
+        assertThat(disabled.restore(recommender, fingerprint, new RecommenderContext()))
+                .isFalse();
+    }
+
+    /**
+     * Creates a CAS with the spans "John", "Mary" and "Paul" and a relation from the span at the
+     * given position to "Mary".
+     */
+    private CAS createCas(int aGovernorBegin, int aGovernorEnd) throws Exception
+    {
+        CAS cas = CasCreationUtils.createCas(tsd, null, null);
+        cas.setDocumentText("John met Mary and Paul.");
+        
+        Type spanType = cas.getTypeSystem().getType(SPAN_TYPE);
+        Feature valueFeature = spanType.getFeatureByBaseName("value");
+        AnnotationFS john = createSpan(cas, spanType, valueFeature, 0, 4);
+        AnnotationFS mary = createSpan(cas, spanType, valueFeature, 9, 13);
+        AnnotationFS paul = createSpan(cas, spanType, valueFeature, 18, 22);
+        
+        AnnotationFS governor = aGovernorBegin == john.getBegin() ? john : paul;
+        assertThat(governor.getEnd()).isEqualTo(aGovernorEnd);
+        
+        Type relationType = cas.getTypeSystem().getType(RELATION_TYPE);
+        AnnotationFS relation = cas.createAnnotation(relationType, mary.getBegin(),
+                mary.getEnd());
+        relation.setFeatureValue(relationType.getFeatureByBaseName("Governor"), governor);
+        relation.setFeatureValue(relationType.getFeatureByBaseName("Dependent"), mary);
+        cas.addFsToIndexes(relation);
+        
+        return cas;
+    }
+
+    private AnnotationFS createSpan(CAS aCas, Type aType, Feature aValueFeature, int aBegin,
+            int aEnd)
+    {
+        AnnotationFS span = aCas.createAnnotation(aType, aBegin, aEnd);
+        span.setStringValue(aValueFeature, "PER");
+        aCas.addFsToIndexes(span);
+        return span;
+    }
+
+    private RecommenderContext createTrainedContext()
+    {
+        RecommenderContext context = new RecommenderContext();
+        context.put(KEY_MODEL, "trained model");
+        context.markAsReadyForPrediction();
+        return context;
+    }
+}
@@ -17,7 +17,7 @@
  */
 package de.tudarmstadt.ukp.inception.scheduling;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -31,13 +31,16 @@ public class InspectableThreadPoolExecutor
     private final BiConsumer<Thread, Runnable> beforeExecuteCallback;
     private final BiConsumer<Runnable, Throwable> afterExecuteCallback;
 
+    /**
+     * Creates a new executor. The work queue of the executor is unbounded, so the caller is
+     * responsible for not submitting more tasks than there are threads to run them.
+     */
     public InspectableThreadPoolExecutor(int aNumberOfThreads,
-                                         int queueSize,
                                          BiConsumer<Thread, Runnable> aBeforeExecuteCallback,
                                          BiConsumer<Runnable, Throwable> aAfterExecuteCallback)
     {
         super(aNumberOfThreads, aNumberOfThreads, 0L, TimeUnit.MILLISECONDS,
-                new ArrayBlockingQueue<>(queueSize, true), buildThreadFactory());
+                new LinkedBlockingQueue<>(), buildThreadFactory());
 
         beforeExecuteCallback = aBeforeExecuteCallback;
         afterExecuteCallback = aAfterExecuteCallback;
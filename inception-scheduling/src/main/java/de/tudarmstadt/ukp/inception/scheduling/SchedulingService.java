@@ -17,9 +17,18 @@
  */
 package de.tudarmstadt.ukp.inception.scheduling;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import org.slf4j.Logger;
@@ -32,6 +41,17 @@ import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.inception.scheduling.config.SchedulingProperties;
 
+/**
+ * Runs {@link Task tasks} in the background. Waiting tasks are not handed to the thread pool
+ * in the order in which they were enqueued. Instead, whenever a worker thread becomes available,
+ * the scheduler picks a task from the highest {@link TaskPriority priority} for which tasks are
+ * waiting. Within a priority, the users take turns and no user may occupy more than the configured
+ * number of threads per user at the same time.
+ * <p>
+ * A newly enqueued task supersedes a running task of the same kind for the same user and project
+ * if the task {@link Task#isCancelledWhenSuperseded() allows this}, i.e. the running task is
+ * {@link Task#cancel() cancelled} because its results would be outdated anyway.
+ */
 @Component
 public class SchedulingService
         implements DisposableBean
@@ -39,45 +59,96 @@ public class SchedulingService
     private static final Logger log = LoggerFactory.getLogger(SchedulingService.class);
 
     private final ApplicationContext applicationContext;
+    private final SchedulingProperties properties;
     private final ThreadPoolExecutor executor;
+    private final TaskMetrics metrics;
 
+    // All of the following fields are guarded by the service's monitor.
+    
+    // Waiting tasks by priority and then by user. The order of the users in the map determines
+    // whose turn it is - after one of the tasks of a user has been started, the user moves to the
+    // end of the map.
+    private final Map<TaskPriority, LinkedHashMap<String, Deque<Task>>> pendingTasks;
+    
+    // Same tasks as in pendingTasks - allows checking for duplicates in constant time
+    private final Set<Task> pendingTaskSet;
+    
     private final List<Task> runningTasks;
+    private final Map<String, Integer> runningTasksPerUser;
 
     @Autowired
     public SchedulingService(ApplicationContext aApplicationContext, SchedulingProperties aConfig)
     {
         applicationContext = aApplicationContext;
-        executor = new InspectableThreadPoolExecutor(
-                aConfig.getNumberOfThreads(), aConfig.getQueueSize(),
+        properties = aConfig;
+        executor = new InspectableThreadPoolExecutor(aConfig.getNumberOfThreads(),
                 this::beforeExecute, this::afterExecute);
-        runningTasks = Collections.synchronizedList(new ArrayList<>());
+        
+        pendingTasks = new EnumMap<>(TaskPriority.class);
+        for (TaskPriority priority : TaskPriority.values()) {
+            pendingTasks.put(priority, new LinkedHashMap<>());
+        }
+        pendingTaskSet = new HashSet<>();
+        runningTasks = new ArrayList<>();
+        runningTasksPerUser = new HashMap<>();
+        metrics = new TaskMetrics();
     }
 
     private void beforeExecute(Thread aThread, Runnable aRunnable)
     {
-        runningTasks.add((Task) aRunnable);
+        log.debug("Running task [{}]", aRunnable);
     }
 
-    private void afterExecute(Runnable aRunnable, Throwable aThrowable)
+    private synchronized void afterExecute(Runnable aRunnable, Throwable aThrowable)
     {
-        runningTasks.remove(aRunnable);
+        Task task = (Task) aRunnable;
+        long runTime = System.currentTimeMillis() - task.startTime;
+        metrics.recordTime(TaskMetrics.RUN, task, null, runTime);
+        if (aThrowable != null) {
+            metrics.increment(TaskMetrics.FAILED);
+            log.error("Task [{}] failed ({} ms)", task, runTime, aThrowable);
+        }
+        else {
+            log.debug("Task [{}] finished ({} ms)", task, runTime);
+        }
+        
+        // A superseded task is equal to the task superseding it, so we need to compare identities
+        runningTasks.removeIf(t -> t == task);
+        runningTasksPerUser.computeIfPresent(task.getUser().getUsername(),
+            (user, count) -> count > 1 ? count - 1 : null);
+        
+        dispatch();
     }
 
-    public List<Task> getScheduledTasks()
+    /**
+     * @return the tasks waiting to be run in the order in which they would be run if no other
+     *         tasks were enqueued in the meantime (ignoring the per-user thread limit).
+     */
+    public synchronized List<Task> getScheduledTasks()
     {
         List<Task> result = new ArrayList<>();
-        executor.getQueue().forEach(r -> result.add((Task) r));
+        for (LinkedHashMap<String, Deque<Task>> tasksByUser : pendingTasks.values()) {
+            tasksByUser.values().forEach(result::addAll);
+        }
         return result;
     }
 
-    public List<Task> getRunningTasks()
+    /**
+     * @return the timings and counters of the tasks run by this service.
+     */
+    public TaskMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public synchronized List<Task> getRunningTasks()
     {
         // We return copy here, as else the list the receiver sees might be updated
         // when new tasks are running or existing ones stopped.
         return new ArrayList<>(runningTasks);
     }
 
-    public List<Task> getScheduledAndRunningTasks()
+    public synchronized List<Task> getScheduledAndRunningTasks()
     {
         List<Task> result = new ArrayList<>();
         result.addAll(getScheduledTasks());
@@ -85,13 +156,30 @@ public class SchedulingService
         return result;
     }
 
+    /**
+     * Enqueues the given task unless an equal task is already waiting to be run. If the queue is
+     * full, the oldest waiting task of a lower priority is dropped to make room. If there is no
+     * such task, the given task is dropped instead. Once the task has been enqueued, an equal
+     * task which is already running is cancelled if it may be superseded.
+     * 
+     * @param aTask
+     *            the task to run.
+     */
     public synchronized void enqueue(Task aTask)
     {
-        if (getScheduledTasks().contains(aTask)) {
+        if (pendingTaskSet.contains(aTask)) {
             log.debug("Task already in queue: {}", aTask);
+            metrics.increment(TaskMetrics.DEDUPLICATED);
             return;
         }
 
+        if (pendingTaskSet.size() >= properties.getQueueSize() && !dropTaskBelow(aTask)) {
+            log.warn("Task queue is full ({} tasks) - dropping task [{}]", pendingTaskSet.size(),
+                    aTask);
+            metrics.increment(TaskMetrics.DROPPED);
+            return;
+        }
+        
         log.debug("Enqueuing task [{}]", aTask);
 
         // This autowires the task fields manually.
@@ -99,28 +187,137 @@ public class SchedulingService
         factory.autowireBean(aTask);
         factory.initializeBean(aTask, "transientTask");
 
-        executor.execute(aTask);
+        pendingTasks.get(aTask.getPriority())
+                .computeIfAbsent(aTask.getUser().getUsername(), user -> new ArrayDeque<>())
+                .addLast(aTask);
+        pendingTaskSet.add(aTask);
+        aTask.enqueueTime = System.currentTimeMillis();
+        metrics.increment(TaskMetrics.ENQUEUED);
+        
+        // Only now that the new task is sure to run, a running task it supersedes can be stopped
+        for (Task runningTask : runningTasks) {
+            if (runningTask.equals(aTask) && runningTask.isCancelledWhenSuperseded()
+                    && !runningTask.isCancelled()) {
+                log.debug("Task [{}] superseded by [{}] - cancelling", runningTask, aTask);
+                runningTask.cancel();
+                metrics.increment(TaskMetrics.SUPERSEDED);
+            }
+        }
+        
+        dispatch();
     }
 
     /**
-     * Removes all task for the user with name {@code aUsername} from the scheduler's queue.
+     * Removes all task for the user with name {@code aUsername} from the scheduler's queue and
+     * cancels the running tasks of the user.
      * @param aUserName The name of the user whose tasks will be removed.
      */
     public synchronized void stopAllTasksForUser(String aUserName)
     {
-        // TODO: Stop the running tasks also
-        executor.getQueue().removeIf(e -> {
-            Task task = (Task) e;
-            return task.getUser().getUsername().equals(aUserName);
-        });
+        for (Task runningTask : runningTasks) {
+            if (runningTask.getUser().getUsername().equals(aUserName)) {
+                runningTask.cancel();
+            }
+        }
+        
+        for (LinkedHashMap<String, Deque<Task>> tasksByUser : pendingTasks.values()) {
+            Deque<Task> tasks = tasksByUser.remove(aUserName);
+            if (tasks != null) {
+                pendingTaskSet.removeAll(tasks);
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest waiting task with the lowest priority if that priority is lower than the
+     * priority of the given task.
+     * 
+     * @return whether a task was dropped.
+     */
+    private boolean dropTaskBelow(Task aTask)
+    {
+        TaskPriority[] priorities = TaskPriority.values();
+        for (int i = priorities.length - 1; i > aTask.getPriority().ordinal(); i--) {
+            Iterator<Deque<Task>> queues = pendingTasks.get(priorities[i]).values().iterator();
+            if (queues.hasNext()) {
+                Deque<Task> queue = queues.next();
+                Task droppedTask = queue.pollFirst();
+                if (queue.isEmpty()) {
+                    queues.remove();
+                }
+                pendingTaskSet.remove(droppedTask);
+                log.warn("Task queue is full - dropping task [{}] in favor of task [{}]",
+                        droppedTask, aTask);
+                metrics.increment(TaskMetrics.DROPPED);
+                return true;
+            }
+        }
+        
+        return false;
+    }
+
+    /**
+     * Hands waiting tasks to the thread pool as long as there are idle threads.
+     */
+    private void dispatch()
+    {
+        if (executor.isShutdown()) {
+            return;
+        }
+        
+        while (runningTasks.size() < properties.getNumberOfThreads()) {
+            Task task = pollNextTask();
+            if (task == null) {
+                return;
+            }
+            
+            task.startTime = System.currentTimeMillis();
+            metrics.recordTime(TaskMetrics.QUEUE_WAIT, task, null,
+                    task.startTime - task.enqueueTime);
+            
+            runningTasks.add(task);
+            runningTasksPerUser.merge(task.getUser().getUsername(), 1, Integer::sum);
+            executor.execute(task);
+        }
+    }
+
+    private Task pollNextTask()
+    {
+        int threadsPerUser = properties.getNumberOfThreadsPerUser();
+        
+        for (LinkedHashMap<String, Deque<Task>> tasksByUser : pendingTasks.values()) {
+            Iterator<Entry<String, Deque<Task>>> i = tasksByUser.entrySet().iterator();
+            while (i.hasNext()) {
+                Entry<String, Deque<Task>> entry = i.next();
+                String user = entry.getKey();
+                
+                if (threadsPerUser > 0
+                        && runningTasksPerUser.getOrDefault(user, 0) >= threadsPerUser) {
+                    continue;
+                }
+                
+                Deque<Task> queue = entry.getValue();
+                Task task = queue.pollFirst();
+                pendingTaskSet.remove(task);
+                
+                // Move the user to the end of the line
+                i.remove();
+                if (!queue.isEmpty()) {
+                    tasksByUser.put(user, queue);
+                }
+                
+                return task;
+            }
+        }
+        
+        return null;
     }
 
     @Override
     public void destroy()
     {
         log.info("Shutting down scheduling service!");
+        log.info("Task metrics: {}", metrics);
         executor.shutdownNow();
     }
-
-
 }
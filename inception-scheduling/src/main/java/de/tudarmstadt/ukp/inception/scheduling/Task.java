@@ -30,6 +30,12 @@ public abstract class Task
     private final User user;
     private final Project project;
     private final String trigger;
+    
+    private volatile boolean cancelled;
+    
+    // Set by the scheduling service for the task metrics
+    long enqueueTime;
+    long startTime;
 
     public Task(User aUser, Project aProject, String aTrigger)
     {
@@ -57,11 +63,46 @@ public abstract class Task
         return trigger;
     }
 
+    /**
+     * Requests the task to stop. Cancellation is cooperative: the task checks
+     * {@link #isCancelled()} between its units of work (e.g. documents or recommenders) and returns
+     * early if it has been cancelled. A cancelled task must not schedule follow-up tasks.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return whether the task is cancelled while running when an equal task is enqueued. Tasks
+     *         which are enqueued frequently should only allow this if they produce partial results
+     *         or are quick enough to finish in between - otherwise they might never complete. By
+     *         default, a running task is allowed to finish and the newer task runs afterwards.
+     */
+    public boolean isCancelledWhenSuperseded()
+    {
+        return false;
+    }
+
     public String getName()
     {
         return getClass().getSimpleName();
     }
 
+    /**
+     * @return the priority with which the task is scheduled. Override this to change the default
+     *         {@link TaskPriority#NORMAL normal} priority.
+     */
+    public TaskPriority getPriority()
+    {
+        return TaskPriority.NORMAL;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.scheduling;
+
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+/**
+ * Collects timings and counters of the tasks run by the {@link SchedulingService}. Timings are
+ * recorded per metric (e.g. {@link #QUEUE_WAIT} or {@link #TRAIN}), task type, recommender tool and
+ * project, so that e.g. the number of scheduler threads can be sized based on the observed queue
+ * wait times.
+ */
+public class TaskMetrics
+{
+    // Timers recorded by the scheduler for every task
+    public static final String QUEUE_WAIT = "queue-wait";
+    public static final String RUN = "run";
+
+    // Timers recorded by the tasks themselves
+    public static final String CAS_LOAD = "cas-load";
+    public static final String TRAIN = "train";
+    public static final String PREDICT = "predict";
+    public static final String EVALUATE = "evaluate";
+
+    // Counters
+    public static final String ENQUEUED = "enqueued";
+    public static final String DEDUPLICATED = "deduplicated";
+    public static final String SUPERSEDED = "superseded";
+    public static final String DROPPED = "dropped";
+    public static final String FAILED = "failed";
+
+    /**
+     * Upper bounds (exclusive, in milliseconds) of the histogram buckets of a {@link Timer}. The
+     * last bucket of the histogram collects all values above the last bound.
+     */
+    public static final long[] BUCKET_LIMITS = { 10, 100, 1_000, 10_000, 60_000, 600_000 };
+
+    private final ConcurrentMap<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Records a timing.
+     * 
+     * @param aMetric
+     *            the measured metric, e.g. {@link #TRAIN}.
+     * @param aTask
+     *            the task during which the time was measured.
+     * @param aTool
+     *            the recommender tool, or {@code null} if the timing does not relate to a specific
+     *            recommender.
+     * @param aMillis
+     *            the measured time in milliseconds.
+     */
+    public void recordTime(String aMetric, Task aTask, String aTool, long aMillis)
+    {
+        TimerKey key = new TimerKey(aMetric, aTask.getName(), aTool, aTask.getProject());
+        timers.computeIfAbsent(key, k -> new Timer()).record(aMillis);
+    }
+
+    public void increment(String aCounter)
+    {
+        counters.computeIfAbsent(aCounter, k -> new LongAdder()).increment();
+    }
+
+    public long getCount(String aCounter)
+    {
+        LongAdder counter = counters.get(aCounter);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    public Map<TimerKey, Timer> getTimers()
+    {
+        return unmodifiableMap(timers);
+    }
+
+    /**
+     * @return the timings aggregated over all task types, tools and projects for the given metric.
+     */
+    public Timer getTimer(String aMetric)
+    {
+        Timer total = new Timer();
+        timers.forEach((key, timer) -> {
+            if (key.getMetric().equals(aMetric)) {
+                total.add(timer);
+            }
+        });
+        return total;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("counters=").append(counters);
+        timers.forEach((key, timer) -> sb.append("\n  ").append(key).append(": ").append(timer));
+        return sb.toString();
+    }
+
+    public static class TimerKey
+    {
+        private final String metric;
+        private final String taskType;
+        private final String tool;
+        private final String project;
+
+        public TimerKey(String aMetric, String aTaskType, String aTool, Project aProject)
+        {
+            metric = aMetric;
+            taskType = aTaskType;
+            tool = aTool;
+            project = aProject.getName();
+        }
+
+        public String getMetric()
+        {
+            return metric;
+        }
+
+        public String getTaskType()
+        {
+            return taskType;
+        }
+
+        public String getTool()
+        {
+            return tool;
+        }
+
+        public String getProject()
+        {
+            return project;
+        }
+
+        @Override
+        public boolean equals(Object aOther)
+        {
+            if (!(aOther instanceof TimerKey)) {
+                return false;
+            }
+            TimerKey castOther = (TimerKey) aOther;
+            return new EqualsBuilder().append(metric, castOther.metric)
+                    .append(taskType, castOther.taskType).append(tool, castOther.tool)
+                    .append(project, castOther.project).isEquals();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return new HashCodeBuilder().append(metric).append(taskType).append(tool)
+                    .append(project).toHashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[" + metric + "][" + taskType + "][" + (tool != null ? tool : "-") + "]["
+                    + project + "]";
+        }
+    }
+
+    public static class Timer
+    {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalTime = new LongAdder();
+        private final LongAccumulator maxTime = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+
+        private void record(long aMillis)
+        {
+            count.increment();
+            totalTime.add(aMillis);
+            maxTime.accumulate(aMillis);
+            
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS.length && aMillis >= BUCKET_LIMITS[bucket]) {
+                bucket++;
+            }
+            histogram.incrementAndGet(bucket);
+        }
+
+        private void add(Timer aOther)
+        {
+            count.add(aOther.getCount());
+            totalTime.add(aOther.getTotalTime());
+            maxTime.accumulate(aOther.getMaxTime());
+            for (int i = 0; i < histogram.length(); i++) {
+                histogram.addAndGet(i, aOther.histogram.get(i));
+            }
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        public long getTotalTime()
+        {
+            return totalTime.sum();
+        }
+
+        public long getMaxTime()
+        {
+            return maxTime.get();
+        }
+
+        public double getMeanTime()
+        {
+            long n = getCount();
+            return n > 0 ? (double) getTotalTime() / n : 0.0;
+        }
+
+        /**
+         * @return the number of recorded values per bucket as defined by {@link #BUCKET_LIMITS}.
+         */
+        public long[] getHistogram()
+        {
+            long[] result = new long[histogram.length()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = histogram.get(i);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("count=%d, mean=%.1f ms, max=%d ms, histogram=%s", getCount(),
+                    getMeanTime(), getMaxTime(), Arrays.toString(getHistogram()));
+        }
+    }
+}
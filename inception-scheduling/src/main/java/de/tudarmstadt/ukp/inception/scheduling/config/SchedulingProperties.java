@@ -25,6 +25,7 @@ import org.springframework.stereotype.Component;
 public class SchedulingProperties
 {
     private int numberOfThreads = 4;
+    private int numberOfThreadsPerUser = 2;
     private int queueSize = 100;
 
     public int getNumberOfThreads()
@@ -37,6 +38,16 @@ public class SchedulingProperties
         numberOfThreads = aNumberOfThreads;
     }
 
+    public int getNumberOfThreadsPerUser()
+    {
+        return numberOfThreadsPerUser;
+    }
+
+    public void setNumberOfThreadsPerUser(int aNumberOfThreadsPerUser)
+    {
+        numberOfThreadsPerUser = aNumberOfThreadsPerUser;
+    }
+
     public int getQueueSize()
     {
         return queueSize;
@@ -44,6 +55,6 @@ public class SchedulingProperties
 
     public void setQueueSize(int aQueueSize)
     {
-        queueSize = queueSize;
+        queueSize = aQueueSize;
     }
 }
@@ -19,13 +19,19 @@ package de.tudarmstadt.ukp.inception.scheduling;
 
 import static java.util.Arrays.asList;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static de.tudarmstadt.ukp.inception.scheduling.TaskPriority.HIGH;
+import static de.tudarmstadt.ukp.inception.scheduling.TaskPriority.LOW;
+import static de.tudarmstadt.ukp.inception.scheduling.TaskPriority.NORMAL;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.awaitility.Awaitility.await;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 import org.junit.Before;
@@ -54,6 +60,7 @@ public class SchedulingServiceTest {
         when(mockContext.getAutowireCapableBeanFactory())
                 .thenReturn(mock(AutowireCapableBeanFactory.class));
 
+        executedTasks = Collections.synchronizedList(new ArrayList<>());
         sut = new SchedulingService(mockContext, new SchedulingProperties());
     }
 
@@ -115,6 +122,158 @@ public class SchedulingServiceTest {
                 .doesNotContain(tasksToRemove);
     }
 
+    @Test
+    public void thatRunningTaskIsSupersededByNewerTask()
+    {
+        Task oldTask = new DummyTask(buildUser("user1"), buildProject("project1"), true);
+        sut.enqueue(oldTask);
+        
+        Task newTask = new DummyTask(buildUser("user1"), buildProject("project1"), true);
+        sut.enqueue(newTask);
+        
+        assertThat(oldTask.isCancelled()).isTrue();
+        assertThat(newTask.isCancelled()).isFalse();
+        
+        // The old task stops at its next check and leaves the new task running
+        await().atMost(5, SECONDS).until(() -> sut.getRunningTasks().size() == 1);
+        assertThat(sut.getRunningTasks().get(0)).isSameAs(newTask);
+    }
+
+    @Test
+    public void thatRunningTaskIsNotSupersededByDefault()
+    {
+        Task oldTask = buildDummyTask("user1", "project1");
+        sut.enqueue(oldTask);
+        await().atMost(5, SECONDS).until(() -> sut.getRunningTasks().contains(oldTask));
+        
+        Task newTask = buildDummyTask("user1", "project1");
+        sut.enqueue(newTask);
+        
+        assertThat(oldTask.isCancelled()).isFalse();
+        assertThat(sut.getRunningTasks()).anyMatch(task -> task == oldTask);
+    }
+
+    @Test
+    public void thatRunningTasksForUserCanBeStopped()
+    {
+        Task task1 = buildDummyTask("testUser", "project1");
+        Task task2 = buildDummyTask("otherUser", "project1");
+        sut.enqueue(task1);
+        sut.enqueue(task2);
+        
+        sut.stopAllTasksForUser("testUser");
+        
+        assertThat(task1.isCancelled()).isTrue();
+        assertThat(task2.isCancelled()).isFalse();
+        await().atMost(5, SECONDS).until(() -> sut.getRunningTasks().size() == 1);
+    }
+
+    @Test
+    public void thatTasksAreRunByPriority() throws Exception
+    {
+        startSingleThreadedScheduler(100);
+        
+        CountDownLatch blocker = new CountDownLatch(1);
+        sut.enqueue(new RecordingTask("blocker", "project1", NORMAL, blocker));
+        
+        Task low = new RecordingTask("user1", "project1", LOW, null);
+        Task normal = new RecordingTask("user1", "project2", NORMAL, null);
+        Task high = new RecordingTask("user1", "project3", HIGH, null);
+        sut.enqueue(low);
+        sut.enqueue(normal);
+        sut.enqueue(high);
+        
+        blocker.countDown();
+        
+        await().atMost(5, SECONDS).until(() -> executedTasks.size() == 4);
+        assertThat(executedTasks.subList(1, 4)).containsExactly(high, normal, low);
+    }
+
+    @Test
+    public void thatUsersTakeTurns() throws Exception
+    {
+        startSingleThreadedScheduler(100);
+        
+        CountDownLatch blocker = new CountDownLatch(1);
+        sut.enqueue(new RecordingTask("blocker", "project1", NORMAL, blocker));
+        
+        Task user1Task1 = new RecordingTask("user1", "project1", NORMAL, null);
+        Task user1Task2 = new RecordingTask("user1", "project2", NORMAL, null);
+        Task user1Task3 = new RecordingTask("user1", "project3", NORMAL, null);
+        Task user2Task1 = new RecordingTask("user2", "project1", NORMAL, null);
+        Task user2Task2 = new RecordingTask("user2", "project2", NORMAL, null);
+        asList(user1Task1, user1Task2, user1Task3, user2Task1, user2Task2).forEach(sut::enqueue);
+        
+        blocker.countDown();
+        
+        await().atMost(5, SECONDS).until(() -> executedTasks.size() == 6);
+        assertThat(executedTasks.subList(1, 6)).containsExactly(user1Task1, user2Task1,
+                user1Task2, user2Task2, user1Task3);
+    }
+
+    @Test
+    public void thatUserCannotOccupyAllThreads()
+    {
+        List<Task> tasks = asList(
+                buildDummyTask("user1", "project1"),
+                buildDummyTask("user1", "project2"),
+                buildDummyTask("user1", "project3"));
+        
+        tasks.forEach(sut::enqueue);
+        
+        assertThat(sut.getRunningTasks()).containsExactlyInAnyOrder(tasks.get(0), tasks.get(1));
+        assertThat(sut.getScheduledTasks()).containsExactly(tasks.get(2));
+    }
+
+    @Test
+    public void thatFullQueueDropsTasksOfLowerPriority()
+    {
+        startSingleThreadedScheduler(2);
+        
+        CountDownLatch blocker = new CountDownLatch(1);
+        sut.enqueue(new RecordingTask("blocker", "project1", NORMAL, blocker));
+        
+        Task low1 = new RecordingTask("user1", "project1", LOW, null);
+        Task low2 = new RecordingTask("user1", "project2", LOW, null);
+        Task high = new RecordingTask("user1", "project3", HIGH, null);
+        Task normal = new RecordingTask("user1", "project4", NORMAL, null);
+        Task low3 = new RecordingTask("user1", "project5", LOW, null);
+        asList(low1, low2, high, normal, low3).forEach(sut::enqueue);
+        
+        assertThat(sut.getScheduledTasks()).containsExactly(high, normal);
+        
+        blocker.countDown();
+    }
+
+    @Test
+    public void thatMetricsAreRecorded()
+    {
+        startSingleThreadedScheduler(100);
+        
+        Task task1 = new RecordingTask("user1", "project1", NORMAL, null);
+        Task task2 = new RecordingTask("user1", "project2", NORMAL, null);
+        asList(task1, task2, task2).forEach(sut::enqueue);
+        
+        await().atMost(5, SECONDS).until(() -> executedTasks.size() == 2
+                && sut.getRunningTasks().isEmpty());
+        
+        TaskMetrics metrics = sut.getMetrics();
+        assertThat(metrics.getCount(TaskMetrics.ENQUEUED)).isEqualTo(2);
+        assertThat(metrics.getCount(TaskMetrics.DEDUPLICATED)).isEqualTo(1);
+        assertThat(metrics.getTimer(TaskMetrics.QUEUE_WAIT).getCount()).isEqualTo(2);
+        assertThat(metrics.getTimer(TaskMetrics.RUN).getCount()).isEqualTo(2);
+    }
+
+    private void startSingleThreadedScheduler(int aQueueSize)
+    {
+        sut.destroy();
+        
+        SchedulingProperties properties = new SchedulingProperties();
+        properties.setNumberOfThreads(1);
+        properties.setQueueSize(aQueueSize);
+        sut = new SchedulingService(mockContext, properties);
+    }
+
     private User buildUser(String aUsername)
     {
         return new User(aUsername);
@@ -129,25 +288,73 @@ public class SchedulingServiceTest {
 
     private Task buildDummyTask(String aUsername, String aProjectName)
     {
-        return new DummyTask(buildUser(aUsername), buildProject(aProjectName));
+        return new DummyTask(buildUser(aUsername), buildProject(aProjectName), false);
     }
 
     /**
-     * DummyTask is a task that does nothing and just sleeps until interrupted. if interrupted,
-     * it just finishes running and returns.
+     * RecordingTask records when it is run. If a latch is given, the task does not finish before
+     * the latch has been released.
+     */
+    private class RecordingTask extends Task
+    {
+        private final TaskPriority priority;
+        private final CountDownLatch latch;
+        
+        RecordingTask(String aUsername, String aProjectName, TaskPriority aPriority,
+                CountDownLatch aLatch)
+        {
+            super(buildUser(aUsername), buildProject(aProjectName), "JUnit");
+            priority = aPriority;
+            latch = aLatch;
+        }
+        
+        @Override
+        public TaskPriority getPriority()
+        {
+            return priority;
+        }
+        
+        @Override
+        public void run()
+        {
+            executedTasks.add(this);
+            
+            if (latch != null) {
+                try {
+                    latch.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * DummyTask is a task that does nothing and just sleeps until interrupted or cancelled. If
+     * interrupted or cancelled, it just finishes running and returns.
      */
     private static class DummyTask extends Task
     {
-        DummyTask(User aUser, Project aProject)
+        private final boolean cancelledWhenSuperseded;
+        
+        DummyTask(User aUser, Project aProject, boolean aCancelledWhenSuperseded)
         {
             super(aUser, aProject, "JUnit");
+            cancelledWhenSuperseded = aCancelledWhenSuperseded;
+        }
+        
+        @Override
+        public boolean isCancelledWhenSuperseded()
+        {
+            return cancelledWhenSuperseded;
         }
 
         @Override
         public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
+            while (!Thread.currentThread().isInterrupted() && !isCancelled()) {
                 try {
-                    Thread.sleep(1000);
+                    Thread.sleep(100);
                 } catch (InterruptedException e) {
                     break;
                 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.search;
+
+import java.io.Serializable;
+
+/**
+ * Snapshot of the progress of a running (re)indexing process.
+ */
+public class IndexProgress
+    implements Serializable
+{
+    private static final long serialVersionUID = 4387201384557186340L;
+
+    private final int totalDocuments;
+    private final int indexedDocuments;
+    private final long elapsedTime;
+
+    /**
+     * @param aTotalDocuments
+     *            the number of documents to be indexed.
+     * @param aIndexedDocuments
+     *            the number of documents indexed so far.
+     * @param aElapsedTime
+     *            the time in milliseconds since indexing started.
+     */
+    public IndexProgress(int aTotalDocuments, int aIndexedDocuments, long aElapsedTime)
+    {
+        totalDocuments = aTotalDocuments;
+        indexedDocuments = aIndexedDocuments;
+        elapsedTime = aElapsedTime;
+    }
+
+    public int getTotalDocuments()
+    {
+        return totalDocuments;
+    }
+
+    public int getIndexedDocuments()
+    {
+        return indexedDocuments;
+    }
+
+    public long getElapsedTime()
+    {
+        return elapsedTime;
+    }
+
+    public double getDocumentsPerSecond()
+    {
+        if (elapsedTime <= 0) {
+            return 0.0;
+        }
+
+        return indexedDocuments * 1000.0 / elapsedTime;
+    }
+
+    /**
+     * @return the estimated time in milliseconds until indexing is complete or {@code -1} if no
+     *         estimate is possible yet.
+     */
+    public long getEstimatedRemainingTime()
+    {
+        if (indexedDocuments == 0) {
+            return -1;
+        }
+
+        return (long) ((totalDocuments - indexedDocuments) * (double) elapsedTime
+                / indexedDocuments);
+    }
+
+    @Override
+    public String toString()
+    {
+        long eta = getEstimatedRemainingTime();
+        return String.format("%d/%d documents indexed (%.1f documents/sec, ETA %s)",
+                indexedDocuments, totalDocuments, getDocumentsPerSecond(),
+                eta < 0 ? "unknown" : (eta / 1000) + " sec");
+    }
+}
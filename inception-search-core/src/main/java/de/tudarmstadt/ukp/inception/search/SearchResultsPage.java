@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.search;
+
+import static java.util.Collections.unmodifiableList;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * A page of search results together with the total number of results of the query. Pages are
+ * cached and shared between callers, so the results cannot be modified.
+ */
+public class SearchResultsPage
+    implements Serializable
+{
+    private static final long serialVersionUID = -1489553405935796466L;
+
+    private final List<SearchResult> results;
+    private final long offset;
+    private final long totalResults;
+    private final boolean totalResultsCapped;
+
+    /**
+     * @param aResults
+     *            the results on this page.
+     * @param aOffset
+     *            the position of the first result on this page within all results.
+     * @param aTotalResults
+     *            the total number of results of the query.
+     * @param aTotalResultsCapped
+     *            whether counting the results was stopped at the configured maximum number of
+     *            results, i.e. whether the query has more results than reported.
+     */
+    public SearchResultsPage(List<SearchResult> aResults, long aOffset, long aTotalResults,
+            boolean aTotalResultsCapped)
+    {
+        results = unmodifiableList(aResults);
+        offset = aOffset;
+        totalResults = aTotalResults;
+        totalResultsCapped = aTotalResultsCapped;
+    }
+
+    public List<SearchResult> getResults()
+    {
+        return results;
+    }
+
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    public long getTotalResults()
+    {
+        return totalResults;
+    }
+
+    public boolean isTotalResultsCapped()
+    {
+        return totalResultsCapped;
+    }
+
+    public boolean hasMoreResults()
+    {
+        return totalResultsCapped || offset + results.size() < totalResults;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this).append("offset", offset)
+                .append("results", results.size()).append("totalResults", totalResults)
+                .append("totalResultsCapped", totalResultsCapped).toString();
+    }
+}
@@ -19,10 +19,13 @@ package de.tudarmstadt.ukp.inception.search;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 import org.apache.uima.jcas.JCas;
 
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
@@ -38,6 +41,43 @@ public interface SearchService
     List<SearchResult> query(User aUser, Project aProject, String aQuery, SourceDocument aDocument)
             throws IOException, ExecutionException;
 
+    /**
+     * Runs a query and returns only the given page of its results. Results are only materialized
+     * for the requested page, all other results are merely counted.
+     * 
+     * @param aDocument
+     *            the document to limit the query to or {@code null} to search all documents.
+     * @param aOffset
+     *            the position of the first result to return.
+     * @param aLimit
+     *            the maximum number of results to return.
+     * @return the requested page of results.
+     */
+    SearchResultsPage query(User aUser, Project aProject, String aQuery, SourceDocument aDocument,
+            long aOffset, int aLimit)
+        throws IOException, ExecutionException;
+
+    /**
+     * @param aDocument
+     *            the document to limit the query to or {@code null} to search all documents.
+     * @return the number of results of the query for each source document ID which has results.
+     */
+    Map<Long, Long> countResultsPerDocument(User aUser, Project aProject, String aQuery,
+            SourceDocument aDocument)
+        throws IOException, ExecutionException;
+
+    /**
+     * @param aDocument
+     *            the document to limit the query to or {@code null} to search all documents.
+     * @param aFeature
+     *            the feature whose values are counted.
+     * @return the number of results of the query overlapping with annotations for each value of
+     *         the given feature.
+     */
+    Map<String, Long> countResultsPerFeatureValue(User aUser, Project aProject, String aQuery,
+            SourceDocument aDocument, AnnotationFeature aFeature)
+        throws IOException, ExecutionException;
+
     void reindex(Project aproject) throws IOException;
 
     Index getIndex(Project aProject);
@@ -49,4 +89,22 @@ public interface SearchService
     void indexDocument(AnnotationDocument aAnnotationDocument, JCas aJCas);
 
     boolean isIndexInProgress(Project aProject);
+
+    /**
+     * @return whether the indexing of changed annotation documents of the given project is
+     *         currently deferred, i.e. whether the index does not yet reflect the latest changes
+     *         even though no indexing is in progress.
+     */
+    boolean isIndexDeferred(Project aProject);
+
+    /**
+     * @return the progress of the indexing of the whole project if such an indexing is currently
+     *         running.
+     */
+    Optional<IndexProgress> getIndexProgress(Project aProject);
+
+    /**
+     * Commit all changes which have not yet been committed to the indexes of all projects.
+     */
+    void commitIndexes();
 }
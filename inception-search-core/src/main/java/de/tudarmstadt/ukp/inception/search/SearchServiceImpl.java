@@ -18,18 +18,23 @@
 package de.tudarmstadt.ukp.inception.search;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.uima.jcas.JCas;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.event.EventListener;
@@ -37,18 +42,26 @@ import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.event.TransactionalEventListener;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.DocumentOpenedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterAnnotationUpdateEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterDocumentCreatedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AnnotationStateChangeEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeDocumentRemovedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeProjectRemovedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+import de.tudarmstadt.ukp.inception.search.config.SearchServiceProperties;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndex;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndexFactory;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndexRegistry;
@@ -58,7 +71,7 @@ import de.tudarmstadt.ukp.inception.search.scheduling.IndexScheduler;
 @Component(SearchService.SERVICE_NAME)
 @Transactional
 public class SearchServiceImpl
-    implements SearchService
+    implements SearchService, InitializingBean, DisposableBean
 {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -70,13 +83,17 @@ public class SearchServiceImpl
     private @Autowired ProjectService projectService;
     private @Autowired PhysicalIndexRegistry physicalIndexRegistry;
     private @Autowired IndexScheduler indexScheduler;
+    private @Autowired SearchServiceProperties properties;
 
     // Index factory
-    private PhysicalIndexFactory physicalIndexFactory;
     private String physicalIndexFactoryName = "mtasDocumentIndexFactory";
 
-    // The indexes for each project
+    // The indexes for each project - accessed by request threads and the indexing workers
     private static Map<Long, Index> indexes;
+    private static final Object indexCreationLock = new Object();
+
+    // Recent query results - the values are either lists of results or result pages
+    private Cache<QueryCacheKey, Object> queryCache;
 
     @Value(value = "${repository.path}")
     private String dir;
@@ -84,7 +101,19 @@ public class SearchServiceImpl
     @Autowired
     public SearchServiceImpl()
     {
-        indexes = new HashMap<>();
+        indexes = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        queryCache = Caffeine.newBuilder()
+                .maximumWeight(properties.getQueryCacheSize())
+                .weigher((QueryCacheKey key, Object value) -> value instanceof SearchResultsPage
+                        ? ((SearchResultsPage) value).getResults().size() + 1
+                        : ((List<?>) value).size() + 1)
+                .recordStats()
+                .build();
     }
 
     /** 
@@ -95,12 +124,25 @@ public class SearchServiceImpl
     private Index getIndexFromMemory(Project aProject)
     {
         // Search index entry in the memory map
-        if (!indexes.containsKey(aProject.getId())) {
+        Index index = indexes.get(aProject.getId());
+        if (index != null) {
+            return index;
+        }
+        
+        // The entry is created under a lock, so that there is never more than one physical index
+        // (and index writer) for the same directory. This is not done in computeIfAbsent() because
+        // the database access could take long and must not block other entries of the map.
+        synchronized (indexCreationLock) {
+            index = indexes.get(aProject.getId());
+            if (index != null) {
+                return index;
+            }
+            
             // Not found. Search index entry in the database
             log.trace("Index is not in memory for project [{}]. Retrieve it from DB.",
                     aProject.getName());
 
-            Index index = getIndex(aProject);
+            index = getIndex(aProject);
             
             if (index == null) {
                 // Not found in the DB, create new index instance and store it in DB
@@ -116,20 +158,19 @@ public class SearchServiceImpl
             }
             
             // Get physical index object
-            physicalIndexFactory = physicalIndexRegistry.getIndexFactory(physicalIndexFactoryName);
+            PhysicalIndexFactory factory = physicalIndexRegistry
+                    .getIndexFactory(physicalIndexFactoryName);
 
-            PhysicalIndex physicalIndex = physicalIndexFactory.getNewIndex(aProject,
+            PhysicalIndex physicalIndex = factory.getNewIndex(aProject,
                     annotationSchemaService, documentService, projectService, dir);
             
             // Set physical index object
             index.setPhysicalIndex(physicalIndex);
 
-            // Add index entry to the memory map
             indexes.put(aProject.getId(), index);
             
+            return index;
         }
-
-        return indexes.get(aProject.getId());
     }
 
     /**
@@ -155,6 +196,7 @@ public class SearchServiceImpl
 
         // Remove the index entry from the memory map
         indexes.remove(project.getId());
+        invalidateQueryCache(project);
         
         // Delete the index entry from the DB
         deleteIndexByProject(project);
@@ -307,8 +349,23 @@ public class SearchServiceImpl
     {
         log.trace("Starting afterAnnotationUpdate");
 
-        // Schedule new document index process
-        indexScheduler.enqueueIndexDocument(aEvent.getDocument(), aEvent.getJCas());
+        // Schedule new document index process. Annotation edits tend to come in bursts, so the
+        // indexing is deferred until the edits have settled down a bit.
+        indexScheduler.enqueueIndexDocumentDeferred(aEvent.getDocument());
+    }
+
+    @EventListener
+    public void onDocumentOpened(DocumentOpenedEvent aEvent)
+    {
+        // The user has moved on to another document, so do not defer indexing any longer
+        indexScheduler.flushDeferredTasks(aEvent.getUser());
+    }
+
+    @EventListener
+    public void onAnnotationStateChange(AnnotationStateChangeEvent aEvent)
+    {
+        // The user has finished (or re-opened) the document
+        indexScheduler.flushDeferredTask(aEvent.getAnnotationDocument());
     }
 
     @Override
@@ -328,8 +385,114 @@ public class SearchServiceImpl
         log.debug("Starting query for user [{}] in project [{}]({})", aUser.getUsername(),
                 aProject.getName(), aProject.getId());
 
-        List<SearchResult> results = null;
+        PhysicalIndex physicalIndex = getPhysicalIndexForQuery(aProject);
+
+        QueryCacheKey key = new QueryCacheKey(aProject, aUser.getUsername(), aQuery, aDocument,
+                0, -1, physicalIndex.getGeneration());
+        @SuppressWarnings("unchecked")
+        List<SearchResult> cachedResults = (List<SearchResult>) getCachedResult(key);
+        if (cachedResults != null) {
+            return new ArrayList<>(cachedResults);
+        }
+
+        log.debug("Running query: [{}]", aQuery);
+
+        List<SearchResult> results = physicalIndex.executeQuery(
+                new SearchQueryRequest(aProject, aUser.getUsername(), aQuery, aDocument));
+        queryCache.put(key, new ArrayList<>(results));
+        return results;
+    }
+
+    @Override
+    @Transactional
+    public SearchResultsPage query(User aUser, Project aProject, String aQuery,
+            SourceDocument aDocument, long aOffset, int aLimit)
+        throws IOException, ExecutionException
+    {
+        log.debug("Starting query for user [{}] in project [{}]({}) - offset: {}, limit: {}",
+                aUser.getUsername(), aProject.getName(), aProject.getId(), aOffset, aLimit);
+
+        PhysicalIndex physicalIndex = getPhysicalIndexForQuery(aProject);
+
+        QueryCacheKey key = new QueryCacheKey(aProject, aUser.getUsername(), aQuery, aDocument,
+                aOffset, aLimit, physicalIndex.getGeneration());
+        SearchResultsPage cachedPage = (SearchResultsPage) getCachedResult(key);
+        if (cachedPage != null) {
+            return cachedPage;
+        }
+
+        log.debug("Running query: [{}]", aQuery);
+
+        SearchResultsPage page = physicalIndex.executeQuery(
+                new SearchQueryRequest(aProject, aUser.getUsername(), aQuery, aDocument),
+                aOffset, aLimit);
+        queryCache.put(key, page);
+        return page;
+    }
+
+    private Object getCachedResult(QueryCacheKey aKey)
+    {
+        Object result = queryCache.getIfPresent(aKey);
+        if (log.isDebugEnabled()) {
+            CacheStats stats = queryCache.stats();
+            log.debug("Query cache {}: [{}] - hits: {}, misses: {}, hit rate: {}",
+                    result != null ? "hit" : "miss", aKey.query, stats.hitCount(),
+                    stats.missCount(), String.format("%.2f", stats.hitRate()));
+        }
+        return result;
+    }
+
+    /**
+     * Removes all cached query results for the given project. Cached results are keyed on the
+     * generation of the index and thus become unreachable anyway once the index changes. However,
+     * when the index is rebuilt from scratch, its generation may start over.
+     */
+    private void invalidateQueryCache(Project aProject)
+    {
+        queryCache.asMap().keySet().removeIf(key -> key.projectId == aProject.getId());
+    }
+
+    /**
+     * @return hit and miss statistics of the query result cache.
+     */
+    public CacheStats getQueryCacheStats()
+    {
+        return queryCache.stats();
+    }
+
+    @Override
+    @Transactional
+    public Map<Long, Long> countResultsPerDocument(User aUser, Project aProject, String aQuery,
+            SourceDocument aDocument)
+        throws IOException, ExecutionException
+    {
+        log.debug("Counting results per document for user [{}] in project [{}]({})",
+                aUser.getUsername(), aProject.getName(), aProject.getId());
+
+        return getPhysicalIndexForQuery(aProject).countResultsPerDocument(
+                new SearchQueryRequest(aProject, aUser.getUsername(), aQuery, aDocument));
+    }
+
+    @Override
+    @Transactional
+    public Map<String, Long> countResultsPerFeatureValue(User aUser, Project aProject,
+            String aQuery, SourceDocument aDocument, AnnotationFeature aFeature)
+        throws IOException, ExecutionException
+    {
+        log.debug("Counting results per value of feature [{}] for user [{}] in project [{}]({})",
+                aFeature.getName(), aUser.getUsername(), aProject.getName(), aProject.getId());
+
+        return getPhysicalIndexForQuery(aProject).countResultsPerFeatureValue(
+                new SearchQueryRequest(aProject, aUser.getUsername(), aQuery, aDocument),
+                aFeature);
+    }
 
+    /**
+     * Obtains the open physical index of the given project. If the index is not in a state in
+     * which it can be queried, a rebuild is scheduled and an exception is thrown.
+     */
+    private PhysicalIndex getPhysicalIndexForQuery(Project aProject) throws ExecutionException
+    {
         Index index = getIndexFromMemory(aProject);
 
         if (index.getInvalid()) {
@@ -339,40 +502,35 @@ public class SearchServiceImpl
             }
 
             // Throw execution exception so that the user knows the query was not run
-            throw (new ExecutionException("Query not executed because index is in invalid state. Try again later."));
+            throw (new ExecutionException("Query not executed because index is in invalid state. "
+                    + getIndexProgress(aProject).map(p -> "Indexing: " + p + ". ").orElse("")
+                    + "Try again later."));
         }
-        else {
-            // Index is valid, try to execute the query
-
-            if (!index.getPhysicalIndex().isCreated()) {
-                // Physical index does not exist.
 
-                // Set the invalid flag
-                index.setInvalid(true);
-                updateIndex(index);
+        // Index is valid, try to execute the query
 
-                // Schedule new reindexing process
-                indexScheduler.enqueueReindexTask(aProject);
+        if (!index.getPhysicalIndex().isCreated()) {
+            // Physical index does not exist.
 
-                // Throw execution exception so that the user knows the query was not run
-                throw (new ExecutionException("Query not executed because index is in invalid state. Try again later."));
-            }
-            else {
-                // Physical index exists
+            // Set the invalid flag
+            index.setInvalid(true);
+            updateIndex(index);
 
-                if (!index.getPhysicalIndex().isOpen()) {
-                    // Physical index is not open. Open it.
-                    index.getPhysicalIndex().openPhysicalIndex();
-                }
+            // Schedule new reindexing process
+            indexScheduler.enqueueReindexTask(aProject);
 
-                log.debug("Running query: [{}]", aQuery);
+            // Throw execution exception so that the user knows the query was not run
+            throw (new ExecutionException("Query not executed because index is in invalid state. Try again later."));
+        }
 
-                results = index.getPhysicalIndex().executeQuery(
-                        new SearchQueryRequest(aProject, aUser.getUsername(), aQuery, aDocument));
-            }
+        // Physical index exists
 
+        if (!index.getPhysicalIndex().isOpen()) {
+            // Physical index is not open. Open it.
+            index.getPhysicalIndex().openPhysicalIndex();
         }
-        return results;
+
+        return index.getPhysicalIndex();
     }
 
     @TransactionalEventListener(fallbackExecution = true)
@@ -416,6 +574,12 @@ public class SearchServiceImpl
         
         Index index = getIndexFromMemory(aProject);
 
+        // The index is only valid again once all documents have been indexed and committed. The
+        // physical index does not record the documents it indexes while it is rebuilt, so an
+        // interrupted rebuild can only be detected by the index still being invalid.
+        index.setInvalid(true);
+        updateIndex(index);
+
         if (index.getPhysicalIndex().isCreated()) {
             // Physical index already exists, drop it
             log.debug("Physical index already exists. Drop it.");
@@ -427,6 +591,9 @@ public class SearchServiceImpl
         log.debug("Create new physical index.");
         index.getPhysicalIndex().createPhysicalIndex();
         
+        // Results cached for the previous index must not be mistaken for results of the new one
+        invalidateQueryCache(aProject);
+
         // After reindexing, reset the invalid flag
         log.trace("Set index invalid flag to false.");
 
@@ -477,12 +644,8 @@ public class SearchServiceImpl
     @Override
     public boolean isIndexValid(Project aProject)
     {
-        if (indexes.containsKey(aProject.getId())) {
-            return !indexes.get(aProject.getId()).getInvalid();
-        }
-        else {
-            return false;
-        }
+        Index index = indexes.get(aProject.getId());
+        return index != null && !index.getInvalid();
     }
     
     @Override
@@ -490,4 +653,96 @@ public class SearchServiceImpl
     {
         return indexScheduler.isIndexInProgress(aProject);
     }
+
+    @Override
+    public boolean isIndexDeferred(Project aProject)
+    {
+        return indexScheduler.isIndexDeferred(aProject);
+    }
+
+    @Override
+    public Optional<IndexProgress> getIndexProgress(Project aProject)
+    {
+        Index index = indexes.get(aProject.getId());
+        if (index == null || index.getPhysicalIndex() == null) {
+            return Optional.empty();
+        }
+        
+        return index.getPhysicalIndex().getIndexProgress();
+    }
+
+    @Override
+    public void commitIndexes()
+    {
+        for (Index index : new ArrayList<>(indexes.values())) {
+            PhysicalIndex physicalIndex = index.getPhysicalIndex();
+            if (physicalIndex != null && physicalIndex.isOpen()) {
+                try {
+                    physicalIndex.commit();
+                }
+                catch (IOException e) {
+                    log.error("Error committing index for project [{}]({})",
+                            index.getProject().getName(), index.getProject().getId(), e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        // Make sure that changes which have not been committed yet are not lost on shutdown
+        for (Index index : new ArrayList<>(indexes.values())) {
+            PhysicalIndex physicalIndex = index.getPhysicalIndex();
+            if (physicalIndex != null && physicalIndex.isOpen()) {
+                physicalIndex.closePhysicalIndex();
+            }
+        }
+    }
+
+    private static class QueryCacheKey
+    {
+        private final long projectId;
+        private final String user;
+        private final String query;
+        private final Long documentId;
+        private final long offset;
+        private final int limit;
+        private final long generation;
+
+        public QueryCacheKey(Project aProject, String aUser, String aQuery,
+                SourceDocument aDocument, long aOffset, int aLimit, long aGeneration)
+        {
+            projectId = aProject.getId();
+            user = aUser;
+            // Surrounding whitespace does not change the meaning of the query
+            query = aQuery.trim();
+            documentId = aDocument != null ? aDocument.getId() : null;
+            offset = aOffset;
+            limit = aLimit;
+            generation = aGeneration;
+        }
+
+        @Override
+        public boolean equals(final Object other)
+        {
+            if (!(other instanceof QueryCacheKey)) {
+                return false;
+            }
+            QueryCacheKey castOther = (QueryCacheKey) other;
+            return new EqualsBuilder().append(projectId, castOther.projectId)
+                    .append(user, castOther.user).append(query, castOther.query)
+                    .append(documentId, castOther.documentId).append(offset, castOther.offset)
+                    .append(limit, castOther.limit).append(generation, castOther.generation)
+                    .isEquals();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return new HashCodeBuilder().append(projectId).append(user).append(query)
+                    .append(documentId).append(offset).append(limit).append(generation)
+                    .toHashCode();
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.search.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("inception.search")
+public class SearchServiceProperties
+{
+    private long indexRefreshInterval = 1000;
+    private int indexCommitBatchSize = 100;
+    private long indexCommitInterval = 5000;
+    private int indexThreads = 2;
+    private int indexQueueSize = 1000;
+    private long indexDebounceDelay = 5000;
+    private int reindexThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int reindexQueueSize = 16;
+    private int maxResults = 10000;
+    private long queryCacheSize = 50000;
+
+    public long getIndexRefreshInterval()
+    {
+        return indexRefreshInterval;
+    }
+
+    public void setIndexRefreshInterval(long aIndexRefreshInterval)
+    {
+        indexRefreshInterval = aIndexRefreshInterval;
+    }
+
+    public int getIndexCommitBatchSize()
+    {
+        return indexCommitBatchSize;
+    }
+
+    public void setIndexCommitBatchSize(int aIndexCommitBatchSize)
+    {
+        indexCommitBatchSize = aIndexCommitBatchSize;
+    }
+
+    public long getIndexCommitInterval()
+    {
+        return indexCommitInterval;
+    }
+
+    public void setIndexCommitInterval(long aIndexCommitInterval)
+    {
+        indexCommitInterval = aIndexCommitInterval;
+    }
+
+    public int getIndexThreads()
+    {
+        return indexThreads;
+    }
+
+    public void setIndexThreads(int aIndexThreads)
+    {
+        indexThreads = aIndexThreads;
+    }
+
+    public int getIndexQueueSize()
+    {
+        return indexQueueSize;
+    }
+
+    public void setIndexQueueSize(int aIndexQueueSize)
+    {
+        indexQueueSize = aIndexQueueSize;
+    }
+
+    public long getIndexDebounceDelay()
+    {
+        return indexDebounceDelay;
+    }
+
+    public void setIndexDebounceDelay(long aIndexDebounceDelay)
+    {
+        indexDebounceDelay = aIndexDebounceDelay;
+    }
+
+    public int getReindexThreads()
+    {
+        return reindexThreads;
+    }
+
+    public void setReindexThreads(int aReindexThreads)
+    {
+        reindexThreads = aReindexThreads;
+    }
+
+    public int getReindexQueueSize()
+    {
+        return reindexQueueSize;
+    }
+
+    public void setReindexQueueSize(int aReindexQueueSize)
+    {
+        reindexQueueSize = aReindexQueueSize;
+    }
+
+    public int getMaxResults()
+    {
+        return maxResults;
+    }
+
+    public void setMaxResults(int aMaxResults)
+    {
+        maxResults = aMaxResults;
+    }
+
+    public long getQueryCacheSize()
+    {
+        return queryCacheSize;
+    }
+
+    public void setQueryCacheSize(long aQueryCacheSize)
+    {
+        queryCacheSize = aQueryCacheSize;
+    }
+}
@@ -19,15 +19,19 @@ package de.tudarmstadt.ukp.inception.search.index;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.apache.uima.jcas.JCas;
 
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.inception.search.ExecutionException;
+import de.tudarmstadt.ukp.inception.search.IndexProgress;
 import de.tudarmstadt.ukp.inception.search.SearchQueryRequest;
 import de.tudarmstadt.ukp.inception.search.SearchResult;
+import de.tudarmstadt.ukp.inception.search.SearchResultsPage;
 
 public interface PhysicalIndex
 {
@@ -48,6 +52,49 @@ public interface PhysicalIndex
     List<SearchResult> executeQuery(SearchQueryRequest aRequest)
             throws IOException, ExecutionException;
 
+    /**
+     * Executes the query and materializes only the results within the given page. Processing
+     * stops once the page is filled and the results have been counted up to the configured
+     * maximum number of results.
+     * 
+     * @param aRequest
+     *            the query request.
+     * @param aOffset
+     *            the position of the first result to return.
+     * @param aLimit
+     *            the maximum number of results to return.
+     * @return the requested page of results.
+     */
+    SearchResultsPage executeQuery(SearchQueryRequest aRequest, long aOffset, int aLimit)
+            throws IOException, ExecutionException;
+
+    /**
+     * Counts the results of the query per source document without building the individual
+     * results.
+     * 
+     * @param aRequest
+     *            the query request.
+     * @return the number of results for each source document ID which has results.
+     */
+    Map<Long, Long> countResultsPerDocument(SearchQueryRequest aRequest)
+            throws IOException, ExecutionException;
+
+    /**
+     * Counts the results of the query per value of the given feature without building the
+     * individual results. A result is counted for each distinct value of the feature in
+     * annotations overlapping with the result. Results which do not overlap with an annotation
+     * bearing a value for the feature are not counted.
+     * 
+     * @param aRequest
+     *            the query request.
+     * @param aFeature
+     *            the feature whose values are counted.
+     * @return the number of results for each feature value.
+     */
+    Map<String, Long> countResultsPerFeatureValue(SearchQueryRequest aRequest,
+            AnnotationFeature aFeature)
+            throws IOException, ExecutionException;
+
     public void indexDocument(SourceDocument aDocument, JCas aJCas) throws IOException;
 
     public void indexDocument(AnnotationDocument aDocument, JCas aJCas) throws IOException;
@@ -58,6 +105,30 @@ public interface PhysicalIndex
 
     public void deindexDocument(AnnotationDocument aDocument, String aTimestamp) throws IOException;
 
+    /**
+     * Returns a value identifying the state of the index as it is currently visible to queries.
+     * The value changes whenever queries may see different results. Thus, query results can be
+     * cached as long as the generation stays the same.
+     * 
+     * @return the current generation of the index.
+     * @throws IOException
+     */
+    public long getGeneration() throws IOException;
+
+    /**
+     * Commit any changes to the index which have not been committed yet. Implementations may
+     * defer committing index and deindex operations in order to commit several changes at once.
+     * 
+     * @throws IOException
+     */
+    public void commit() throws IOException;
+
+    /**
+     * @return the progress of the indexing of the whole project if such an indexing is currently
+     *         running.
+     */
+    public Optional<IndexProgress> getIndexProgress();
+
     /**
      * Retrieve the timestamp of this annotation document
      * @param aDocument
@@ -17,24 +17,38 @@
  */
 package de.tudarmstadt.ukp.inception.search.scheduling;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.uima.jcas.JCas;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.inception.search.SearchService;
+import de.tudarmstadt.ukp.inception.search.config.SearchServiceProperties;
 import de.tudarmstadt.ukp.inception.search.scheduling.tasks.IndexAnnotationDocumentTask;
 import de.tudarmstadt.ukp.inception.search.scheduling.tasks.IndexSourceDocumentTask;
 import de.tudarmstadt.ukp.inception.search.scheduling.tasks.ReindexTask;
@@ -42,6 +56,11 @@ import de.tudarmstadt.ukp.inception.search.scheduling.tasks.Task;
 
 /**
  * Indexer scheduler. Does the project re-indexing in an asynchronous way.
+ * <p>
+ * Every project has its own queue of indexing tasks. The tasks of a project are run one after
+ * the other, but the tasks of different projects are run in parallel by a pool of worker
+ * threads. After each task, a project goes back to the end of the line, so a long queue of one
+ * project does not starve the other projects.
  */
 @Component
 public class IndexScheduler
@@ -50,25 +69,72 @@ public class IndexScheduler
     private Logger log = LoggerFactory.getLogger(getClass());
 
     private @Autowired ApplicationContext applicationContext;
+    private @Autowired SearchServiceProperties properties;
+
+    private ThreadPoolExecutor executor;
+    // Runs the idle commits and the deferred indexing tasks
+    private ScheduledExecutorService timer;
+
+    // The task queues of all projects which have pending or active tasks by project ID. This map
+    // and the queues are guarded by the scheduler's monitor.
+    private final Map<Long, ProjectQueue> queues = new HashMap<>();
+    private int pendingTaskCount;
+    private int activeTaskCount;
+    
+    // Indexing tasks for changed annotation documents which are only enqueued once the debounce
+    // delay has passed, by annotation document ID. Guarded by the scheduler's monitor.
+    private final Map<Long, DeferredTask> deferredTasks = new HashMap<>();
+    
+    // Used to not block worker threads which enqueue tasks while the queues are full
+    private final ThreadLocal<Boolean> insideTask = ThreadLocal.withInitial(() -> false);
 
-    private TaskConsumer consumer;
-    private Thread consumerThread;
-    private BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(100);
+    private volatile boolean uncommittedChanges;
+    private volatile long lastTaskCompleted;
+
+    // Statistics
+    private final AtomicLong enqueuedTasks = new AtomicLong();
+    private final AtomicLong coalescedTasks = new AtomicLong();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong failedTasks = new AtomicLong();
+    private final AtomicLong blockedEnqueues = new AtomicLong();
 
     @Override
     public void afterPropertiesSet()
     {
-        consumer = new TaskConsumer(applicationContext, queue);
-        consumerThread = new Thread(consumer, "Index task consumer");
-        consumerThread.setPriority(Thread.MIN_PRIORITY);
-        consumerThread.start();
-        log.info("Started Search Indexing Thread");
+        executor = new ThreadPoolExecutor(properties.getIndexThreads(),
+                properties.getIndexThreads(), 0, MILLISECONDS, new LinkedBlockingQueue<>(),
+                new BasicThreadFactory.Builder()
+                        .namingPattern("Index-task-%d")
+                        .daemon(true)
+                        .priority(Thread.MIN_PRIORITY)
+                        .build());
+        
+        // Once no more indexing tasks complete, commit whatever the tasks have indexed so far
+        long commitInterval = properties.getIndexCommitInterval();
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder()
+                        .namingPattern("Index-timer-%d")
+                        .daemon(true)
+                        .build());
+        timer.scheduleWithFixedDelay(this::commitIfIdle, commitInterval,
+                commitInterval, MILLISECONDS);
+        
+        log.info("Started search indexing with {} threads", properties.getIndexThreads());
     }
 
     @Override
     public void destroy()
     {
-        consumerThread.interrupt();
+        synchronized (this) {
+            if (!deferredTasks.isEmpty()) {
+                log.warn("Shutting down with {} deferred annotation document indexing tasks - "
+                        + "these documents are indexed again on their next change",
+                        deferredTasks.size());
+            }
+        }
+        
+        executor.shutdownNow();
+        timer.shutdownNow();
     }
 
     public void enqueueReindexTask(Project aProject)
@@ -88,6 +154,76 @@ public class IndexScheduler
         // Index annotation document
         enqueue(new IndexAnnotationDocumentTask(aAnnotationDocument, aJCas));
     }
+
+    /**
+     * Schedules the indexing of a changed annotation document after the configured debounce
+     * delay. Further changes to the document during the delay do not cause additional indexing.
+     * The CAS is only loaded when the document is actually indexed, so the indexing picks up
+     * the state of the document at that time.
+     * 
+     * @param aAnnotationDocument
+     *            the changed annotation document.
+     */
+    public synchronized void enqueueIndexDocumentDeferred(AnnotationDocument aAnnotationDocument)
+    {
+        long delay = properties.getIndexDebounceDelay();
+        if (delay <= 0) {
+            enqueue(new IndexAnnotationDocumentTask(aAnnotationDocument));
+            return;
+        }
+        
+        if (deferredTasks.containsKey(aAnnotationDocument.getId())) {
+            coalescedTasks.incrementAndGet();
+            log.trace("Indexing of annotation document [{}]({}) already deferred - skipping ...",
+                    aAnnotationDocument.getName(), aAnnotationDocument.getId());
+            return;
+        }
+        
+        long id = aAnnotationDocument.getId();
+        ScheduledFuture<?> future = timer.schedule(() -> flushDeferredTask(id), delay,
+                MILLISECONDS);
+        deferredTasks.put(id, new DeferredTask(aAnnotationDocument, future));
+        log.debug("Deferred indexing of annotation document [{}]({}) by {} ms",
+                aAnnotationDocument.getName(), aAnnotationDocument.getId(), delay);
+    }
+
+    /**
+     * Immediately enqueues the deferred indexing of the given annotation document, e.g. because
+     * the user is done with the document.
+     */
+    public synchronized void flushDeferredTask(AnnotationDocument aAnnotationDocument)
+    {
+        DeferredTask deferredTask = deferredTasks.get(aAnnotationDocument.getId());
+        if (deferredTask != null) {
+            deferredTask.future.cancel(false);
+            flushDeferredTask(aAnnotationDocument.getId());
+        }
+    }
+
+    /**
+     * Immediately enqueues all deferred indexing tasks for annotation documents of the given user,
+     * e.g. because the user has switched to another document.
+     */
+    public synchronized void flushDeferredTasks(String aUser)
+    {
+        for (DeferredTask deferredTask : new ArrayList<>(deferredTasks.values())) {
+            if (deferredTask.document.getUser().equals(aUser)) {
+                deferredTask.future.cancel(false);
+                flushDeferredTask(deferredTask.document.getId());
+            }
+        }
+    }
+
+    private synchronized void flushDeferredTask(long aAnnotationDocumentId)
+    {
+        DeferredTask deferredTask = deferredTasks.remove(aAnnotationDocumentId);
+        if (deferredTask != null) {
+            // Deferred tasks are mostly flushed on the timer thread which must not wait for space
+            // in the queues - it also runs the idle commits. There is at most one deferred task
+            // per annotation document, so this cannot overfill the queues by much.
+            enqueue(new IndexAnnotationDocumentTask(deferredTask.document), false);
+        }
+    }
     
     /**
      * Put a new indexing task in the queue.
@@ -95,77 +231,338 @@ public class IndexScheduler
      *  - Indexing of a whole project
      *  - Indexing of a source document
      *  - Indexing of an annotation document for a given user
+     * If the maximum number of pending tasks has been reached, the caller is blocked until there
+     * is space in the queue again. Tasks for re-indexing a whole project are never blocked.
      *  
      * @param aRunnable
      *          The indexing task
      */
     public synchronized void enqueue(Task aRunnable)
     {
-        Optional<Task> alreadyScheduledTask = findAlreadyScheduled(aRunnable);
+        enqueue(aRunnable, true);
+    }
+    
+    private synchronized void enqueue(Task aRunnable, boolean aWaitForSpace)
+    {
+        boolean reindex = aRunnable instanceof ReindexTask;
+        
+        // Back-pressure: wait for space in the queues. Worker threads are never blocked here
+        // since they are the ones freeing up space.
+        if (aWaitForSpace && !reindex && !insideTask.get()) {
+            boolean blocked = false;
+            while (pendingTaskCount >= properties.getIndexQueueSize()
+                    && !hasPendingTask(aRunnable.getProject(), aRunnable.getCoalescingKey())) {
+                if (!blocked) {
+                    blocked = true;
+                    blockedEnqueues.incrementAndGet();
+                    log.debug("Indexing queues full ({} tasks) - waiting to enqueue: {}",
+                            pendingTaskCount, aRunnable);
+                }
+                
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.error("Interrupted while waiting to enqueue indexing task - task "
+                            + "is not scheduled: {}", aRunnable);
+                    return;
+                }
+            }
+        }
+        
+        ProjectQueue queue = queues.computeIfAbsent(aRunnable.getProject().getId(),
+                ProjectQueue::new);
         
         // Project indexing task
-        if (aRunnable instanceof ReindexTask) {
-            if (alreadyScheduledTask.isPresent()) {
+        if (reindex) {
+            if (queue.pending.containsKey(ReindexTask.COALESCING_KEY)) {
+                coalescedTasks.incrementAndGet();
                 log.debug("Matching project indexing task already scheduled: [{}] - skipping ...",
                         aRunnable);
+                return;
             }
-            else {
-                queue.offer(aRunnable);
-                log.info("Enqueued new project indexing task: {}", aRunnable);
+            
+            // The re-indexing reads all documents from the storage, so it covers any pending
+            // document indexing tasks of the project
+            if (!queue.pending.isEmpty()) {
+                log.debug("Project indexing task supersedes {} pending tasks: {}",
+                        queue.pending.size(), aRunnable);
+                coalescedTasks.addAndGet(queue.pending.size());
+                pendingTaskCount -= queue.pending.size();
+                queue.pending.clear();
+                notifyAll();
             }
         }
-        // Source document indexing task
-        else if (aRunnable instanceof IndexSourceDocumentTask) {
-            if (alreadyScheduledTask.isPresent()) {
-                log.debug(
-                        "Matching source document indexing task already scheduled: [{}] - skipping ...",
-                        aRunnable);
-            }
-            else {
-                queue.offer(aRunnable);
-                log.info("Enqueued new source document indexing task: {}", aRunnable);
+        else if (queue.pending.containsKey(ReindexTask.COALESCING_KEY)) {
+            coalescedTasks.incrementAndGet();
+            log.debug("Project indexing task already scheduled: [{}] - skipping ...", aRunnable);
+            return;
+        }
+        else {
+            Task alreadyScheduledTask = queue.pending.get(aRunnable.getCoalescingKey());
+            if (alreadyScheduledTask != null) {
+                coalescedTasks.incrementAndGet();
+                
+                // Try to update the document CAS in the task currently enqueued for the same
+                // annotation document/user. This must be done so that the task will take into
+                // account the latest changes to the annotation document.
+                if (aRunnable instanceof IndexAnnotationDocumentTask) {
+                    alreadyScheduledTask.setJCas(aRunnable.getJCas());
+                    log.debug("Matching annotation document indexing task already scheduled: "
+                            + "[{}] - updating CAS", aRunnable);
+                }
+                else {
+                    log.debug("Matching source document indexing task already scheduled: [{}] "
+                            + "- skipping ...", aRunnable);
+                }
+                return;
             }
         }
-        // Annotation document indexing task
-        else if (aRunnable instanceof IndexAnnotationDocumentTask) {
-            // Try to update the document CAS in the task currently enqueued for the same 
-            // annotation document/user (if there is an enqueued task).
-            // This must be done so that the task will take into account the
-            // latest changes to the annotation document.
-            if (alreadyScheduledTask.isPresent()) {
-                alreadyScheduledTask.get().setJCas(aRunnable.getJCas());
-                log.debug(
-                        "Matching source document indexing task already scheduled: [{}] - updating CAS",
-                        aRunnable);
+        
+        queue.pending.put(aRunnable.getCoalescingKey(), aRunnable);
+        pendingTaskCount++;
+        enqueuedTasks.incrementAndGet();
+        log.info("Enqueued new indexing task: {} - pending tasks: {} in project, {} total",
+                aRunnable, queue.pending.size(), pendingTaskCount);
+        
+        if (!queue.scheduled) {
+            queue.scheduled = true;
+            schedule(queue);
+        }
+    }
+
+    private void schedule(ProjectQueue aQueue)
+    {
+        try {
+            executor.execute(() -> runNextTask(aQueue));
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Indexing scheduler has been shut down - not running further tasks");
+        }
+    }
+
+    private void runNextTask(ProjectQueue aQueue)
+    {
+        Task task;
+        synchronized (this) {
+            Iterator<Task> i = aQueue.pending.values().iterator();
+            if (!i.hasNext()) {
+                // Pending tasks have been removed in the meantime
+                aQueue.scheduled = false;
+                removeIfIdle(aQueue);
+                return;
             }
-            else {
-                queue.offer(aRunnable);
-                log.info("Enqueued new annotation document indexing task: {}", aRunnable);
+            
+            task = i.next();
+            i.remove();
+            pendingTaskCount--;
+            activeTaskCount++;
+            aQueue.activeTask = task;
+            notifyAll();
+        }
+        
+        insideTask.set(true);
+        try {
+            AutowireCapableBeanFactory factory = applicationContext
+                    .getAutowireCapableBeanFactory();
+            factory.autowireBean(task);
+            factory.initializeBean(task, "transientTask");
+
+            log.debug("Indexing task started: {}", task);
+            task.run();
+            log.debug("Indexing task completed: {}", task);
+            completedTasks.incrementAndGet();
+        }
+        catch (Throwable e) {
+            failedTasks.incrementAndGet();
+            log.error("Indexing task failed: {}", task, e);
+        }
+        finally {
+            insideTask.set(false);
+            uncommittedChanges = true;
+            lastTaskCompleted = System.currentTimeMillis();
+            
+            synchronized (this) {
+                activeTaskCount--;
+                aQueue.activeTask = null;
+                
+                // Go back to the end of the line to give other projects a chance
+                if (aQueue.pending.isEmpty()) {
+                    aQueue.scheduled = false;
+                    removeIfIdle(aQueue);
+                }
+                else {
+                    schedule(aQueue);
+                }
             }
         }
     }
 
+    private void removeIfIdle(ProjectQueue aQueue)
+    {
+        if (aQueue.pending.isEmpty() && aQueue.activeTask == null && !aQueue.scheduled) {
+            queues.remove(aQueue.projectId);
+        }
+    }
+
+    private void commitIfIdle()
+    {
+        if (!uncommittedChanges || System.currentTimeMillis()
+                - lastTaskCompleted < properties.getIndexCommitInterval()) {
+            return;
+        }
+        
+        uncommittedChanges = false;
+        try {
+            log.trace("No indexing tasks completed recently - committing indexes");
+            applicationContext.getBean(SearchService.class).commitIndexes();
+        }
+        catch (Throwable e) {
+            log.error("Unable to commit indexes", e);
+        }
+    }
+
+    private boolean hasPendingTask(Project aProject, String aCoalescingKey)
+    {
+        ProjectQueue queue = queues.get(aProject.getId());
+        return queue != null && (queue.pending.containsKey(aCoalescingKey)
+                || queue.pending.containsKey(ReindexTask.COALESCING_KEY));
+    }
+
     public synchronized void stopAllTasksForUser(String username)
     {
-        Iterator<Task> taskIterator = queue.iterator();
-        while (taskIterator.hasNext()) {
-            Task task = taskIterator.next();
-            if (task.getUser().equals(username)) {
-                queue.remove(task);
+        for (ProjectQueue queue : queues.values()) {
+            Iterator<Task> taskIterator = queue.pending.values().iterator();
+            while (taskIterator.hasNext()) {
+                Task task = taskIterator.next();
+                if (username.equals(task.getUser())) {
+                    taskIterator.remove();
+                    pendingTaskCount--;
+                }
             }
         }
+        notifyAll();
     }
 
-    public boolean isIndexInProgress(Project aProject)
+    /**
+     * @return whether indexing tasks of the given project are waiting or running. Deferred tasks
+     *         are not considered since no indexing is happening for them yet.
+     * @see #isIndexDeferred(Project)
+     */
+    public synchronized boolean isIndexInProgress(Project aProject)
     {
         Validate.notNull(aProject, "Project cannot be null");
         
-        return queue.stream().anyMatch(task -> aProject.equals(task.getProject())) ||
-                consumer.getActiveTask().map(t -> aProject.equals(t.getProject())).orElse(false);
+        ProjectQueue queue = queues.get(aProject.getId());
+        return queue != null && (!queue.pending.isEmpty() || queue.activeTask != null);
     }
-    
-    private Optional<Task> findAlreadyScheduled(Task aTask)
+
+    /**
+     * @return whether the indexing of changed annotation documents of the given project is
+     *         currently deferred.
+     */
+    public synchronized boolean isIndexDeferred(Project aProject)
     {
-        return queue.stream().filter(aTask::matches).findAny();
+        Validate.notNull(aProject, "Project cannot be null");
+        
+        return deferredTasks.values().stream()
+                .anyMatch(t -> aProject.equals(t.document.getProject()));
+    }
+
+    /**
+     * @return the number of annotation documents whose indexing is currently deferred.
+     */
+    public synchronized int getDeferredTaskCount()
+    {
+        return deferredTasks.size();
+    }
+
+    /**
+     * @return the number of tasks waiting to be run in all projects.
+     */
+    public synchronized int getPendingTaskCount()
+    {
+        return pendingTaskCount;
+    }
+
+    /**
+     * @return the number of tasks waiting to be run in the given project.
+     */
+    public synchronized int getPendingTaskCount(Project aProject)
+    {
+        ProjectQueue queue = queues.get(aProject.getId());
+        return queue != null ? queue.pending.size() : 0;
+    }
+
+    /**
+     * @return the number of tasks currently being run.
+     */
+    public synchronized int getActiveTaskCount()
+    {
+        return activeTaskCount;
+    }
+
+    /**
+     * @return the number of tasks which have been added to the queues.
+     */
+    public long getEnqueuedTaskCount()
+    {
+        return enqueuedTasks.get();
+    }
+
+    /**
+     * @return the number of tasks which have not been added to the queues because a matching task
+     *         was already pending, or which have been removed from the queues because a
+     *         re-indexing of the whole project superseded them.
+     */
+    public long getCoalescedTaskCount()
+    {
+        return coalescedTasks.get();
+    }
+
+    public long getCompletedTaskCount()
+    {
+        return completedTasks.get();
+    }
+
+    public long getFailedTaskCount()
+    {
+        return failedTasks.get();
+    }
+
+    /**
+     * @return the number of times a caller had to wait because the queues were full.
+     */
+    public long getBlockedEnqueueCount()
+    {
+        return blockedEnqueues.get();
+    }
+
+    private static class DeferredTask
+    {
+        private final AnnotationDocument document;
+        private final ScheduledFuture<?> future;
+
+        public DeferredTask(AnnotationDocument aDocument, ScheduledFuture<?> aFuture)
+        {
+            document = aDocument;
+            future = aFuture;
+        }
+    }
+
+    private static class ProjectQueue
+    {
+        private final long projectId;
+        
+        // Pending tasks in the order they were enqueued and by their coalescing key
+        private final Map<String, Task> pending = new LinkedHashMap<>();
+        private Task activeTask;
+        private boolean scheduled;
+        
+        public ProjectQueue(long aProjectId)
+        {
+            projectId = aProjectId;
+        }
     }
 }
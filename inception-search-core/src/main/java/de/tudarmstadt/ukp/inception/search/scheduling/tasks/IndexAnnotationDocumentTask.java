@@ -17,9 +17,14 @@
  */
 package de.tudarmstadt.ukp.inception.search.scheduling.tasks;
 
+import java.io.IOException;
+
 import org.apache.uima.jcas.JCas;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.inception.search.SearchService;
 
@@ -29,23 +34,48 @@ import de.tudarmstadt.ukp.inception.search.SearchService;
 public class IndexAnnotationDocumentTask
     extends Task
 {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
     private @Autowired SearchService searchService;
+    private @Autowired DocumentService documentService;
     
     public IndexAnnotationDocumentTask(AnnotationDocument aAnnotationDocument, JCas aJCas)
     {
         super(aAnnotationDocument, aJCas);
     }
 
+    /**
+     * Creates a task which indexes the annotation document as it is stored at the time the task
+     * is run.
+     */
+    public IndexAnnotationDocumentTask(AnnotationDocument aAnnotationDocument)
+    {
+        super(aAnnotationDocument);
+    }
+
     @Override
     public void run()
     {
-        searchService.indexDocument(super.getAnnotationDocument(), super.getJCas());
+        JCas jcas = super.getJCas();
+        if (jcas == null) {
+            try {
+                jcas = documentService.readAnnotationCas(super.getAnnotationDocument());
+            }
+            catch (IOException e) {
+                log.error("Unable to load annotation document [{}]({}) for indexing",
+                        super.getAnnotationDocument().getName(),
+                        super.getAnnotationDocument().getId(), e);
+                return;
+            }
+        }
+        
+        searchService.indexDocument(super.getAnnotationDocument(), jcas);
     }
     
     @Override
-    public boolean matches(Task aTask)
+    public String getCoalescingKey()
     {
-        return getAnnotationDocument().getId() == aTask.getAnnotationDocument().getId();
+        return "annotation-" + getAnnotationDocument().getId();
     }
 
 }
@@ -49,8 +49,8 @@ public class IndexSourceDocumentTask
     }
     
     @Override
-    public boolean matches(Task aTask)
+    public String getCoalescingKey()
     {
-        return getSourceDocument().getId() == aTask.getSourceDocument().getId();
+        return "source-" + getSourceDocument().getId();
     }
 }
@@ -30,6 +30,8 @@ import de.tudarmstadt.ukp.inception.search.SearchService;
 public class ReindexTask
     extends Task
 {
+    public static final String COALESCING_KEY = "reindex";
+
     private @Autowired SearchService searchService;
 
     public ReindexTask(Project aProject)
@@ -50,8 +52,8 @@ public class ReindexTask
     }
     
     @Override
-    public boolean matches(Task aTask)
+    public String getCoalescingKey()
     {
-        return getProject().getId() == aTask.getProject().getId();
+        return COALESCING_KEY;
     }
 }
@@ -59,12 +59,21 @@ public abstract class Task
 
     public Task(AnnotationDocument aAnnotationDocument, JCas aJCas)
     {
-        notNull(aAnnotationDocument);
+        this(aAnnotationDocument);
         notNull(aJCas);
 
+        jCas = aJCas;
+    }
+
+    /**
+     * Creates a task without a CAS. The task has to load the CAS itself when it is run.
+     */
+    public Task(AnnotationDocument aAnnotationDocument)
+    {
+        notNull(aAnnotationDocument);
+
         project = aAnnotationDocument.getProject();
         annotationDocument = aAnnotationDocument;
-        jCas = aJCas;
         user = aAnnotationDocument.getUser();
     }
 
@@ -116,10 +125,10 @@ public abstract class Task
     }
     
     /**
-     * Used to avoid scheduling duplicate tasks. Returns true if the current task is a duplicate of
-     * the given task.
+     * Tasks of the same project which have the same key are duplicates of each other. The
+     * scheduler uses the key to look up an already scheduled duplicate without scanning the queue.
      */
-    public abstract boolean matches(Task aTask);
+    public abstract String getCoalescingKey();
 
     @Override
     public int hashCode()
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2019
+ * Ubiquitous Knowledge Processing (UKP) Lab
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.inception.search.scheduling;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.DocumentOpenedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AnnotationStateChangeEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.inception.search.SearchService;
+import de.tudarmstadt.ukp.inception.search.SearchServiceImpl;
+import de.tudarmstadt.ukp.inception.search.config.SearchServiceProperties;
+import de.tudarmstadt.ukp.inception.search.scheduling.tasks.IndexAnnotationDocumentTask;
+import de.tudarmstadt.ukp.inception.search.scheduling.tasks.IndexSourceDocumentTask;
+import de.tudarmstadt.ukp.inception.search.scheduling.tasks.ReindexTask;
+import de.tudarmstadt.ukp.inception.search.scheduling.tasks.Task;
+
+public class IndexSchedulerTest
+{
+    private SearchServiceProperties properties;
+    private SearchService searchService;
+    private DocumentService documentService;
+    private AnnotationConfigApplicationContext context;
+    private IndexScheduler sut;
+    
+    private Project project;
+    
+    // Released at the end of each test so that no worker thread remains blocked
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp()
+    {
+        properties = new SearchServiceProperties();
+        // Keep the idle commits out of the way of the tests
+        properties.setIndexCommitInterval(60_000);
+        
+        searchService = mock(SearchService.class);
+        documentService = mock(DocumentService.class);
+        
+        project = buildProject(1L);
+    }
+
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+        
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void thatEditsToDocumentAreIndexedOnce()
+    {
+        properties.setIndexDebounceDelay(500);
+        startScheduler();
+        
+        AnnotationDocument document = buildAnnotationDocument(1L, "user");
+        sut.enqueueIndexDocumentDeferred(document);
+        sut.enqueueIndexDocumentDeferred(document);
+        sut.enqueueIndexDocumentDeferred(document);
+        
+        assertThat(sut.getDeferredTaskCount()).isEqualTo(1);
+        assertThat(sut.isIndexDeferred(project)).isTrue();
+        assertThat(sut.isIndexInProgress(project)).isFalse();
+        
+        verify(searchService, timeout(5_000)).indexDocument(eq(document), isNull());
+        verify(searchService, after(1_000).times(1)).indexDocument(eq(document), isNull());
+        assertThat(sut.getCoalescedTaskCount()).isEqualTo(2);
+        assertThat(sut.isIndexDeferred(project)).isFalse();
+    }
+
+    @Test
+    public void thatDocumentIsIndexedRightAwayWithoutDebounceDelay()
+    {
+        properties.setIndexDebounceDelay(0);
+        startScheduler();
+        
+        AnnotationDocument document = buildAnnotationDocument(1L, "user");
+        sut.enqueueIndexDocumentDeferred(document);
+        
+        assertThat(sut.getDeferredTaskCount()).isEqualTo(0);
+        verify(searchService, timeout(5_000)).indexDocument(eq(document), isNull());
+    }
+
+    @Test
+    public void thatOpeningDocumentFlushesDeferredTasksOfUser()
+    {
+        properties.setIndexDebounceDelay(60_000);
+        startScheduler();
+        SearchServiceImpl listener = buildSearchService();
+        
+        AnnotationDocument document = buildAnnotationDocument(1L, "user");
+        AnnotationDocument otherUsersDocument = buildAnnotationDocument(2L, "other");
+        sut.enqueueIndexDocumentDeferred(document);
+        sut.enqueueIndexDocumentDeferred(otherUsersDocument);
+        
+        DocumentOpenedEvent event = mock(DocumentOpenedEvent.class);
+        when(event.getUser()).thenReturn("user");
+        listener.onDocumentOpened(event);
+        
+        verify(searchService, timeout(5_000)).indexDocument(eq(document), isNull());
+        verify(searchService, after(500).never()).indexDocument(eq(otherUsersDocument),
+                isNull());
+        assertThat(sut.getDeferredTaskCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void thatStateChangeFlushesDeferredTaskOfDocument()
+    {
+        properties.setIndexDebounceDelay(60_000);
+        startScheduler();
+        SearchServiceImpl listener = buildSearchService();
+        
+        AnnotationDocument document = buildAnnotationDocument(1L, "user");
+        AnnotationDocument otherDocument = buildAnnotationDocument(2L, "user");
+        sut.enqueueIndexDocumentDeferred(document);
+        sut.enqueueIndexDocumentDeferred(otherDocument);
+        
+        AnnotationStateChangeEvent event = mock(AnnotationStateChangeEvent.class);
+        when(event.getAnnotationDocument()).thenReturn(document);
+        listener.onAnnotationStateChange(event);
+        
+        verify(searchService, timeout(5_000)).indexDocument(eq(document), isNull());
+        verify(searchService, never()).indexDocument(eq(otherDocument), isNull());
+        assertThat(sut.getDeferredTaskCount()).isEqualTo(1);
+        assertThat(sut.isIndexDeferred(project)).isTrue();
+    }
+
+    @Test(timeout = 10_000)
+    public void thatDuplicateTasksAreCoalesced() throws Exception
+    {
+        properties.setIndexThreads(1);
+        startScheduler();
+        
+        // Keep the worker busy so that the following tasks remain pending
+        TestTask blocker = new TestTask(project, "blocker", this::awaitRelease);
+        sut.enqueue(blocker);
+        await(blocker.started);
+        
+        SourceDocument sourceDocument = buildSourceDocument(1L);
+        AnnotationDocument annotationDocument = buildAnnotationDocument(1L, "user");
+        sut.enqueue(new IndexSourceDocumentTask(sourceDocument, null));
+        sut.enqueue(new IndexSourceDocumentTask(sourceDocument, null));
+        sut.enqueue(new IndexAnnotationDocumentTask(annotationDocument));
+        sut.enqueue(new IndexSourceDocumentTask(sourceDocument, null));
+        sut.enqueue(new IndexAnnotationDocumentTask(annotationDocument));
+        
+        assertThat(sut.getPendingTaskCount(project)).isEqualTo(2);
+        assertThat(sut.getCoalescedTaskCount()).isEqualTo(3);
+        
+        release.countDown();
+        
+        verify(searchService, timeout(5_000)).indexDocument(eq(sourceDocument), isNull());
+        verify(searchService, timeout(5_000)).indexDocument(eq(annotationDocument), isNull());
+        verify(searchService, after(500).times(1)).indexDocument(eq(sourceDocument), isNull());
+        verify(searchService, times(1)).indexDocument(eq(annotationDocument), isNull());
+    }
+
+    @Test(timeout = 10_000)
+    public void thatReindexingSupersedesPendingTasks() throws Exception
+    {
+        properties.setIndexThreads(1);
+        startScheduler();
+        
+        TestTask blocker = new TestTask(project, "blocker", this::awaitRelease);
+        sut.enqueue(blocker);
+        await(blocker.started);
+        
+        SourceDocument sourceDocument = buildSourceDocument(1L);
+        sut.enqueue(new IndexSourceDocumentTask(sourceDocument, null));
+        sut.enqueue(new IndexAnnotationDocumentTask(buildAnnotationDocument(1L, "user")));
+        sut.enqueue(new ReindexTask(project));
+        sut.enqueue(new IndexSourceDocumentTask(buildSourceDocument(2L), null));
+        sut.enqueue(new ReindexTask(project));
+        
+        assertThat(sut.getPendingTaskCount(project)).isEqualTo(1);
+        assertThat(sut.getCoalescedTaskCount()).isEqualTo(4);
+        
+        release.countDown();
+        
+        verify(searchService, timeout(5_000)).reindex(project);
+        verify(searchService, after(500).never()).indexDocument(eq(sourceDocument), isNull());
+    }
+
+    @Test(timeout = 10_000)
+    public void thatEnqueueBlocksWhileQueuesAreFull() throws Exception
+    {
+        properties.setIndexThreads(1);
+        properties.setIndexQueueSize(2);
+        startScheduler();
+        
+        TestTask blocker = new TestTask(project, "blocker", this::awaitRelease);
+        sut.enqueue(blocker);
+        await(blocker.started);
+        
+        TestTask first = new TestTask(project, "first", () -> { });
+        sut.enqueue(first);
+        sut.enqueue(new TestTask(project, "second", () -> { }));
+        assertThat(sut.getPendingTaskCount()).isEqualTo(2);
+        
+        // A duplicate of a pending task does not need any space and is not blocked
+        sut.enqueue(new TestTask(project, "first", () -> { }));
+        assertThat(sut.getBlockedEnqueueCount()).isEqualTo(0);
+        
+        TestTask third = new TestTask(project, "third", () -> { });
+        Thread producer = new Thread(() -> sut.enqueue(third));
+        producer.start();
+        
+        producer.join(500);
+        assertThat(producer.isAlive()).isTrue();
+        assertThat(sut.getBlockedEnqueueCount()).isEqualTo(1);
+        
+        // Once the worker continues, there is space in the queue again
+        release.countDown();
+        
+        producer.join(5_000);
+        assertThat(producer.isAlive()).isFalse();
+        await(first.completed);
+        await(third.completed);
+    }
+
+    @Test(timeout = 10_000)
+    public void thatReindexingIsNotBlockedWhileQueuesAreFull() throws Exception
+    {
+        properties.setIndexThreads(1);
+        properties.setIndexQueueSize(1);
+        startScheduler();
+        
+        TestTask blocker = new TestTask(project, "blocker", this::awaitRelease);
+        sut.enqueue(blocker);
+        await(blocker.started);
+        
+        Project otherProject = buildProject(2L);
+        sut.enqueue(new TestTask(otherProject, "first", () -> { }));
+        
+        sut.enqueue(new ReindexTask(project));
+        
+        assertThat(sut.getBlockedEnqueueCount()).isEqualTo(0);
+        assertThat(sut.getPendingTaskCount()).isEqualTo(2);
+    }
+
+    @Test(timeout = 10_000)
+    public void thatWorkerThreadsAreNotBlockedWhileQueuesAreFull() throws Exception
+    {
+        properties.setIndexThreads(1);
+        properties.setIndexQueueSize(1);
+        startScheduler();
+        
+        TestTask first = new TestTask(project, "first", () -> { });
+        TestTask second = new TestTask(project, "second", () -> { });
+        TestTask producer = new TestTask(project, "producer", () -> {
+            sut.enqueue(first);
+            sut.enqueue(second);
+        });
+        sut.enqueue(producer);
+        
+        await(producer.completed);
+        await(first.completed);
+        await(second.completed);
+        assertThat(sut.getBlockedEnqueueCount()).isEqualTo(0);
+    }
+
+    @Test(timeout = 10_000)
+    public void thatProjectsAreIndexedIndependently() throws Exception
+    {
+        properties.setIndexThreads(2);
+        startScheduler();
+        
+        TestTask blocker = new TestTask(project, "blocker", this::awaitRelease);
+        sut.enqueue(blocker);
+        await(blocker.started);
+        
+        // The tasks of one project run one after the other...
+        TestTask next = new TestTask(project, "next", () -> { });
+        sut.enqueue(next);
+        
+        // ... but a busy project does not hold up the other projects
+        Project otherProject = buildProject(2L);
+        TestTask other = new TestTask(otherProject, "other", () -> { });
+        sut.enqueue(other);
+        await(other.completed);
+        
+        assertThat(next.started.getCount()).isEqualTo(1);
+        assertThat(sut.getPendingTaskCount(project)).isEqualTo(1);
+        assertThat(sut.getPendingTaskCount(otherProject)).isEqualTo(0);
+        assertThat(sut.isIndexInProgress(project)).isTrue();
+        
+        release.countDown();
+        await(next.completed);
+    }
+
+    private void startScheduler()
+    {
+        context = new AnnotationConfigApplicationContext();
+        context.getBeanFactory().registerSingleton("searchServiceProperties", properties);
+        context.getBeanFactory().registerSingleton("searchService", searchService);
+        context.getBeanFactory().registerSingleton("documentService", documentService);
+        context.register(IndexScheduler.class);
+        context.refresh();
+        
+        sut = context.getBean(IndexScheduler.class);
+    }
+
+    /**
+     * @return a search service which only forwards the document events to the scheduler.
+     */
+    private SearchServiceImpl buildSearchService()
+    {
+        SearchServiceImpl service = new SearchServiceImpl();
+        ReflectionTestUtils.setField(service, "indexScheduler", sut);
+        return service;
+    }
+
+    private void awaitRelease()
+    {
+        try {
+            release.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void await(CountDownLatch aLatch) throws InterruptedException
+    {
+        assertThat(aLatch.await(5, SECONDS)).isTrue();
+    }
+    
+    private Project buildProject(long aId)
+    {
+        Project p = new Project();
+        p.setId(aId);
+        p.setName("project " + aId);
+        return p;
+    }
+
+    private SourceDocument buildSourceDocument(long aId)
+    {
+        SourceDocument document = new SourceDocument();
+        document.setId(aId);
+        document.setName("source " + aId);
+        document.setProject(project);
+        return document;
+    }
+
+    private AnnotationDocument buildAnnotationDocument(long aId, String aUser)
+    {
+        AnnotationDocument document = new AnnotationDocument();
+        document.setId(aId);
+        document.setName("document " + aId);
+        document.setUser(aUser);
+        document.setProject(project);
+        return document;
+    }
+
+    private static class TestTask
+        extends Task
+    {
+        private final String key;
+        private final Runnable action;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+        
+        public TestTask(Project aProject, String aKey, Runnable aAction)
+        {
+            super(aProject, null);
+            key = aKey;
+            action = aAction;
+        }
+        
+        @Override
+        public void run()
+        {
+            started.countDown();
+            action.run();
+            completed.countDown();
+        }
+        
+        @Override
+        public String getCoalescingKey()
+        {
+            return key;
+        }
+    }
+}
@@ -18,28 +18,46 @@
 package de.tudarmstadt.ukp.inception.search.index.mtas;
 
 import static de.tudarmstadt.ukp.clarin.webanno.api.ProjectService.PROJECT_FOLDER;
+import static de.tudarmstadt.ukp.inception.search.FeatureIndexingSupport.ATTRIBUTE_SEP;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.DSYNC;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.file.Files;
+import java.text.ParseException;
 import java.text.BreakIterator;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.custom.CustomAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
@@ -54,25 +72,34 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.spans.SpanWeight;
 import org.apache.lucene.search.spans.Spans;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.uima.cas.TypeSystem;
-import org.apache.uima.cas.impl.XmiCasSerializer;
 import org.apache.uima.jcas.JCas;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.SAXException;
 
 import com.github.openjson.JSONObject;
 
@@ -80,13 +107,17 @@ import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
 import de.tudarmstadt.ukp.inception.search.ExecutionException;
+import de.tudarmstadt.ukp.inception.search.IndexProgress;
 import de.tudarmstadt.ukp.inception.search.SearchQueryRequest;
 import de.tudarmstadt.ukp.inception.search.SearchResult;
+import de.tudarmstadt.ukp.inception.search.SearchResultsPage;
+import de.tudarmstadt.ukp.inception.search.config.SearchServiceProperties;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndex;
 import mtas.analysis.token.MtasTokenString;
 import mtas.analysis.util.MtasTokenizerFactory;
@@ -135,9 +166,25 @@ public class MtasDocumentIndex
      */
     private static final String FIELD_USER = "user";
 
+    /**
+     * Stored fields to load if only the source document ID is required.
+     */
+    private static final Set<String> FIELDS_SOURCE_ID = singleton(FIELD_SOURCE_DOCUMENT_ID);
+
     /** The Constant FIELD_TIMESTAMP. */
     private static final String FIELD_TIMESTAMP = "timestamp";
 
+    /**
+     * Name of the file inside the index folder which records the IDs of all index documents that
+     * have been changed since the last commit.
+     */
+    private static final String PENDING_CHANGES_JOURNAL = "pending-changes.journal";
+
+    /**
+     * Key of the commit user data entry which carries the time of the last commit.
+     */
+    private static final String COMMIT_DATA_LAST_COMMITTED = "lastCommitted";
+
     // Default prefix for CQL queries
     private static final String DEFAULT_PREFIX = "Token";
 
@@ -150,22 +197,50 @@ public class MtasDocumentIndex
     static ProjectService projectService;
     Project project;
 
+    private final SearchServiceProperties properties;
+
     // The index writers for this index
     private IndexWriter indexWriter;
 
+    // Provides near-real-time searchers on top of the index writer which are shared between
+    // concurrent queries and refreshed after changes have been committed
+    private volatile SearcherManager searcherManager;
+
+    // Reader statistics
+    private final AtomicInteger acquiredSearchers = new AtomicInteger();
+    private final AtomicLong readerRefreshes = new AtomicLong();
+    private volatile long lastReaderRefresh;
+
+    // For each user, the source documents which have an annotation document for the user in the
+    // index. Only valid for the reader it has been computed on.
+    private volatile IndexReader visibilityCacheReader;
+    private final Map<String, Set<Long>> visibilityCache = new ConcurrentHashMap<>();
+
+    // Changes which have been written to the index but not yet committed
+    private int pendingChanges;
+    private long firstPendingChangeTime;
+
+    // Progress of a running re-indexing of the whole project
+    private volatile boolean reindexInProgress;
+    private volatile int reindexTotalDocuments;
+    private volatile long reindexStartTime;
+    private final AtomicInteger reindexIndexedDocuments = new AtomicInteger();
+
     // The annotations to be indexed
     private List<String> annotationShortNames;
 
     private File resourceDir;
 
     public MtasDocumentIndex(Project aProject, AnnotationSchemaService aAnnotationSchemaService,
-            DocumentService aDocumentService, ProjectService aProjectService, String aDir)
+            DocumentService aDocumentService, ProjectService aProjectService, String aDir,
+            SearchServiceProperties aProperties)
         throws IOException
     {
         annotationSchemaService = aAnnotationSchemaService;
         documentService = aDocumentService;
         projectService = aProjectService;
         project = aProject;
+        properties = aProperties;
 
         // Create list with the annotation types of the layer (only the enabled ones)
         annotationShortNames = annotationSchemaService.listAnnotationLayer(project).stream()
@@ -187,12 +262,108 @@ public class MtasDocumentIndex
     public List<SearchResult> executeQuery(SearchQueryRequest aRequest)
         throws IOException, ExecutionException
     {
-        try {
-            log.trace("Executing query {} on index {}", aRequest, getIndexDir());
-            
-            Directory directory = FSDirectory.open(getIndexDir().toPath());
-            IndexReader indexReader = DirectoryReader.open(directory);
+        SearchResultsPage page = executeQuery(aRequest, 0, properties.getMaxResults());
+        if (page.hasMoreResults()) {
+            log.warn("Query [{}] has more than {} results - returning only the first {}",
+                    aRequest.getQuery(), page.getTotalResults(), page.getResults().size());
+        }
+        return new ArrayList<>(page.getResults());
+    }
+
+    @Override
+    public SearchResultsPage executeQuery(SearchQueryRequest aRequest, long aOffset, int aLimit)
+        throws IOException, ExecutionException
+    {
+        log.trace("Executing query {} on index {} - offset: {}, limit: {}", aRequest,
+                getIndexDir(), aOffset, aLimit);
+        
+        return runQuery(aRequest, (searcher, query) -> doQuery(searcher, aRequest, FIELD_CONTENT,
+                query, annotationShortNames, aOffset, aLimit));
+    }
+
+    @Override
+    public Map<Long, Long> countResultsPerDocument(SearchQueryRequest aRequest)
+        throws IOException, ExecutionException
+    {
+        log.trace("Counting results per document for query {} on index {}", aRequest,
+                getIndexDir());
+        
+        return runQuery(aRequest, (searcher, query) -> {
+            Map<Long, Long> counts = new TreeMap<>();
+            visitSpans(searcher, aRequest, FIELD_CONTENT, query, new SpanVisitor()
+            {
+                private SegmentReader reader;
+                private int docId = -1;
+                private Long sourceDocumentId;
+                
+                @Override
+                public boolean visit(SegmentReader aReader, CodecInfo aCodecInfo, Spans aSpans)
+                    throws IOException
+                {
+                    // Only the first hit in each index document requires loading its source
+                    // document ID
+                    if (aReader != reader || aSpans.docID() != docId) {
+                        reader = aReader;
+                        docId = aSpans.docID();
+                        String rawSourceDocumentId = aReader.document(docId, FIELDS_SOURCE_ID)
+                                .get(FIELD_SOURCE_DOCUMENT_ID);
+                        sourceDocumentId = rawSourceDocumentId != null
+                                ? Long.valueOf(rawSourceDocumentId)
+                                : null;
+                    }
+                    
+                    if (sourceDocumentId != null) {
+                        counts.merge(sourceDocumentId, 1L, Long::sum);
+                    }
+                    return true;
+                }
+            });
+            return counts;
+        });
+    }
+
+    @Override
+    public Map<String, Long> countResultsPerFeatureValue(SearchQueryRequest aRequest,
+            AnnotationFeature aFeature)
+        throws IOException, ExecutionException
+    {
+        log.trace("Counting results per value of feature {} for query {} on index {}",
+                aFeature.getName(), aRequest, getIndexDir());
+        
+        // Same field name as used by the MtasUimaParser when indexing the feature values
+        String prefix = (aFeature.getLayer().getUiName() + ATTRIBUTE_SEP + aFeature.getUiName())
+                .replace(" ", "_");
+        List<String> prefixes = singletonList(prefix);
+        
+        return runQuery(aRequest, (searcher, query) -> {
+            Map<String, Long> counts = new TreeMap<>();
+            visitSpans(searcher, aRequest, FIELD_CONTENT, query, (reader, codecInfo, spans) -> {
+                // Count every value only once per hit even if it occurs on several positions
+                // within the hit
+                Set<String> values = new HashSet<>();
+                for (MtasTokenString token : codecInfo.getPrefixFilteredObjectsByPositions(
+                        FIELD_CONTENT, spans.docID(), prefixes, spans.startPosition(),
+                        spans.endPosition() - 1)) {
+                    values.add(CodecUtil.termValue(token.getValue()));
+                }
+                for (String value : values) {
+                    counts.merge(value, 1L, Long::sum);
+                }
+                return true;
+            });
+            return counts;
+        });
+    }
 
+    /**
+     * Parses the query of the given request, acquires a searcher and passes both on to the given
+     * function.
+     */
+    private <T> T runQuery(SearchQueryRequest aRequest, QueryFunction<T> aFunction)
+        throws ExecutionException
+    {
+        IndexSearcher searcher = null;
+        try {
             String modifiedQuery = parseQuery(aRequest.getQuery());
             MtasSpanQuery mtasSpanQuery;
             try (Reader reader = new StringReader(modifiedQuery)) {
@@ -200,8 +371,9 @@ public class MtasDocumentIndex
                 mtasSpanQuery = parser.parse(FIELD_CONTENT, DEFAULT_PREFIX, null, null, null);
             }
             
-            return doQuery(indexReader, aRequest, FIELD_CONTENT, mtasSpanQuery,
-                    annotationShortNames);
+            searcher = acquireSearcher();
+            
+            return aFunction.apply(searcher, mtasSpanQuery);
         }
         catch (mtas.parser.cql.ParseException e) {
             log.error("Unable to parse query: [{}]" + aRequest.getQuery(), e);
@@ -211,6 +383,236 @@ public class MtasDocumentIndex
             log.error("Query execution error", e);
             throw (new ExecutionException("Query execution error", e));
         }
+        finally {
+            if (searcher != null) {
+                releaseSearcher(searcher);
+            }
+        }
+    }
+
+    /**
+     * Acquires a searcher from the shared searcher manager. If the current reader has not been
+     * refreshed for longer than the configured refresh interval, a non-blocking refresh is
+     * attempted first such that uncommitted changes become visible within a bounded time.
+     * Every searcher obtained here must be returned using {@link #releaseSearcher}.
+     */
+    private IndexSearcher acquireSearcher() throws IOException
+    {
+        SearcherManager manager = searcherManager;
+        if (manager == null) {
+            throw new IOException("Index for project [" + project.getName() + "]("
+                    + project.getId() + ") is not open");
+        }
+
+        if (System.currentTimeMillis() - lastReaderRefresh > properties
+                .getIndexRefreshInterval()) {
+            manager.maybeRefresh();
+        }
+
+        IndexSearcher searcher = manager.acquire();
+        int acquired = acquiredSearchers.incrementAndGet();
+        log.trace("Acquired searcher for project [{}]({}) - searchers in use: {}, "
+                + "reader refreshes: {}", project.getName(), project.getId(), acquired,
+                readerRefreshes.get());
+        return searcher;
+    }
+
+    private void releaseSearcher(IndexSearcher aSearcher)
+    {
+        try {
+            // If the manager has been closed in the meantime, release the reader directly.
+            if (searcherManager != null) {
+                searcherManager.release(aSearcher);
+            }
+            else {
+                aSearcher.getIndexReader().decRef();
+            }
+        }
+        catch (IOException e) {
+            log.error("Unable to release searcher for project [{}]({})", project.getName(),
+                    project.getId(), e);
+        }
+        finally {
+            acquiredSearchers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of searchers currently acquired by running queries.
+     */
+    public int getAcquiredSearcherCount()
+    {
+        return acquiredSearchers.get();
+    }
+
+    /**
+     * @return the number of times the shared index reader has been refreshed since the index was
+     *         opened.
+     */
+    public long getReaderRefreshCount()
+    {
+        return readerRefreshes.get();
+    }
+
+    @Override
+    public long getGeneration() throws IOException
+    {
+        // Use the same (possibly refreshed) reader which a query started now would use
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).getVersion();
+        }
+        finally {
+            releaseSearcher(searcher);
+        }
+    }
+
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        if (indexWriter != null && indexWriter.isOpen() && pendingChanges > 0) {
+            commitPendingChanges();
+        }
+    }
+
+    /**
+     * Records that the given index document is about to be changed. The record is appended to the
+     * pending changes journal before the change is applied, such that documents changed after the
+     * last commit can be re-indexed if the changes are lost, e.g. because the application crashed.
+     * The record is written through to the disk, otherwise it could get lost along with the change.
+     */
+    private void recordChange(long aSourceDocumentId, long aAnnotationDocumentId, String aUser)
+        throws IOException
+    {
+        Files.write(getPendingChangesJournal().toPath(),
+                singletonList(String.format("%d/%d/%s", aSourceDocumentId,
+                        aAnnotationDocumentId, aUser)),
+                UTF_8, CREATE, APPEND, DSYNC);
+
+        if (pendingChanges == 0) {
+            firstPendingChangeTime = System.currentTimeMillis();
+        }
+        pendingChanges++;
+    }
+
+    /**
+     * Commits pending changes if either the configured number of changes has accumulated or if the
+     * oldest pending change is older than the configured commit interval.
+     */
+    private void maybeCommit() throws IOException
+    {
+        if (pendingChanges >= properties.getIndexCommitBatchSize()
+                || System.currentTimeMillis() - firstPendingChangeTime >= properties
+                        .getIndexCommitInterval()) {
+            commitPendingChanges();
+        }
+    }
+
+    /**
+     * Commits pending changes to the index, clears the pending changes journal and makes the
+     * changes visible to subsequent queries.
+     */
+    private void commitPendingChanges() throws IOException
+    {
+        Map<String, String> commitData = new HashMap<>();
+        commitData.put(COMMIT_DATA_LAST_COMMITTED,
+                DateTools.dateToString(new Date(), DateTools.Resolution.MILLISECOND));
+        indexWriter.setLiveCommitData(commitData.entrySet());
+        
+        indexWriter.commit();
+        
+        log.debug("Committed {} pending change(s) to index in project [{}]({})", pendingChanges,
+                project.getName(), project.getId());
+        
+        pendingChanges = 0;
+        Files.deleteIfExists(getPendingChangesJournal().toPath());
+        
+        if (searcherManager != null) {
+            searcherManager.maybeRefreshBlocking();
+        }
+    }
+
+    /**
+     * Re-indexes all documents listed in the pending changes journal. If the journal exists when
+     * the index is opened, then the changes recorded in it have not been committed before the
+     * index was closed the last time and may have been lost.
+     */
+    private void recoverPendingChanges() throws IOException
+    {
+        File journal = getPendingChangesJournal();
+        if (!journal.exists()) {
+            return;
+        }
+
+        Set<String> changes = new LinkedHashSet<>(Files.readAllLines(journal.toPath(), UTF_8));
+        
+        log.info("Recovering {} change(s) made since the last commit at [{}] in index for "
+                + "project [{}]({})", changes.size(), getLastCommitTime().orElse("unknown"),
+                project.getName(), project.getId());
+        
+        for (String change : changes) {
+            String[] fields = change.split("/", 3);
+            if (fields.length != 3) {
+                log.warn("Ignoring malformed pending changes journal entry: [{}]", change);
+                continue;
+            }
+            
+            long sourceDocumentId = Long.valueOf(fields[0]);
+            long annotationDocumentId = Long.valueOf(fields[1]);
+            
+            try {
+                // Remove whatever version of the document made it into the index
+                recordChange(sourceDocumentId, annotationDocumentId, fields[2]);
+                indexWriter.deleteDocuments(new Term(FIELD_ID,
+                        String.format("%d/%d", sourceDocumentId, annotationDocumentId)));
+                
+                // ... and add the current version again if the document still exists
+                SourceDocument sourceDocument = documentService
+                        .getSourceDocument(project.getId(), sourceDocumentId);
+                if (annotationDocumentId == -1) {
+                    indexDocument(sourceDocument,
+                            documentService.createOrReadInitialCas(sourceDocument));
+                }
+                else {
+                    Optional<AnnotationDocument> annotationDocument = documentService
+                            .listAnnotationDocuments(sourceDocument).stream()
+                            .filter(doc -> Objects.equals(doc.getId(), annotationDocumentId))
+                            .findFirst();
+                    if (annotationDocument.isPresent()) {
+                        indexDocument(annotationDocument.get(),
+                                documentService.readAnnotationCas(annotationDocument.get()));
+                    }
+                }
+            }
+            catch (Exception e) {
+                log.info("Unable to re-index document [{}] - it may have been deleted", change, e);
+            }
+        }
+        
+        commitPendingChanges();
+    }
+    
+    /**
+     * @return the time of the last commit recorded in the commit user data of the index, if any.
+     */
+    private Optional<String> getLastCommitTime()
+    {
+        for (Map.Entry<String, String> entry : indexWriter.getLiveCommitData()) {
+            if (COMMIT_DATA_LAST_COMMITTED.equals(entry.getKey())) {
+                try {
+                    return Optional.of(DateTools.stringToDate(entry.getValue()).toString());
+                }
+                catch (ParseException e) {
+                    return Optional.of(entry.getValue());
+                }
+            }
+        }
+        return Optional.empty();
+    }
+    
+    File getPendingChangesJournal()
+    {
+        return new File(getIndexDir(), PENDING_CHANGES_JOURNAL);
     }
 
     private String parseQuery(String aQuery)
@@ -248,221 +650,177 @@ public class MtasDocumentIndex
         return result;
     }
 
-    private List<SearchResult> doQuery(IndexReader aIndexReader, SearchQueryRequest aRequest,
-            String field, MtasSpanQuery q, List<String> prefixes)
+    /**
+     * Builds a filter matching the index documents whose results are visible to the querying
+     * user: the annotation documents of the user as well as the source documents for which the
+     * user has no annotation document in the index yet. If the query is limited to a particular
+     * document, only index documents belonging to that document are matched.
+     */
+    private Query buildVisibilityFilter(IndexSearcher aSearcher, SearchQueryRequest aRequest)
         throws IOException
     {
-        List<SearchResult> results = new ArrayList<>();
+        String user = aRequest.getUsername();
+        
+        BooleanQuery.Builder userDocuments = new BooleanQuery.Builder();
+        userDocuments.add(new TermQuery(new Term(FIELD_USER, user)), BooleanClause.Occur.FILTER);
+        userDocuments.add(new TermQuery(new Term(FIELD_ANNOTATION_DOCUMENT_ID, "-1")),
+                BooleanClause.Occur.MUST_NOT);
+
+        BooleanQuery.Builder sourceDocuments = new BooleanQuery.Builder();
+        sourceDocuments.add(new TermQuery(new Term(FIELD_ANNOTATION_DOCUMENT_ID, "-1")),
+                BooleanClause.Occur.FILTER);
+        Set<Long> annotatedSourceDocuments = getAnnotatedSourceDocuments(aSearcher, user);
+        if (!annotatedSourceDocuments.isEmpty()) {
+            sourceDocuments.add(new TermInSetQuery(FIELD_SOURCE_DOCUMENT_ID,
+                    annotatedSourceDocuments.stream()
+                            .map(id -> new BytesRef(String.valueOf(id)))
+                            .collect(Collectors.toList())),
+                    BooleanClause.Occur.MUST_NOT);
+        }
+        
+        BooleanQuery.Builder visible = new BooleanQuery.Builder();
+        visible.add(userDocuments.build(), BooleanClause.Occur.SHOULD);
+        visible.add(sourceDocuments.build(), BooleanClause.Occur.SHOULD);
+        
+        Optional<SourceDocument> limitedToDocument = aRequest.getLimitedToDocument();
+        if (!limitedToDocument.isPresent()) {
+            return visible.build();
+        }
+        
+        BooleanQuery.Builder filter = new BooleanQuery.Builder();
+        filter.add(visible.build(), BooleanClause.Occur.FILTER);
+        filter.add(new TermQuery(new Term(FIELD_SOURCE_DOCUMENT_ID,
+                String.valueOf(limitedToDocument.get().getId()))), BooleanClause.Occur.FILTER);
+        return filter.build();
+    }
 
-        ListIterator<LeafReaderContext> leafReaderContextIterator = aIndexReader.leaves()
-                .listIterator();
+    /**
+     * Determines the source documents for which the given user has an annotation document in the
+     * index. The result is cached until the searchers are refreshed, i.e. until documents have
+     * been added to or removed from the index.
+     */
+    private Set<Long> getAnnotatedSourceDocuments(IndexSearcher aSearcher, String aUser)
+        throws IOException
+    {
+        IndexReader reader = aSearcher.getIndexReader();
+        synchronized (visibilityCache) {
+            if (visibilityCacheReader != reader) {
+                visibilityCache.clear();
+                visibilityCacheReader = reader;
+            }
+        }
+        
+        Set<Long> annotatedSourceDocuments = visibilityCache.get(aUser);
+        if (annotatedSourceDocuments != null) {
+            return annotatedSourceDocuments;
+        }
+        
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        query.add(new TermQuery(new Term(FIELD_USER, aUser)), BooleanClause.Occur.FILTER);
+        query.add(new TermQuery(new Term(FIELD_ANNOTATION_DOCUMENT_ID, "-1")),
+                BooleanClause.Occur.MUST_NOT);
+        
+        Set<Long> result = new HashSet<>();
+        aSearcher.search(query.build(), new SimpleCollector()
+        {
+            private LeafReader leafReader;
+            
+            @Override
+            protected void doSetNextReader(LeafReaderContext aContext)
+            {
+                leafReader = aContext.reader();
+            }
+            
+            @Override
+            public void collect(int aDoc) throws IOException
+            {
+                String sourceDocumentId = leafReader.document(aDoc, FIELDS_SOURCE_ID)
+                        .get(FIELD_SOURCE_DOCUMENT_ID);
+                if (sourceDocumentId != null) {
+                    result.add(Long.valueOf(sourceDocumentId));
+                }
+            }
+            
+            @Override
+            public boolean needsScores()
+            {
+                return false;
+            }
+        });
+        
+        synchronized (visibilityCache) {
+            if (visibilityCacheReader == reader) {
+                visibilityCache.put(aUser, result);
+            }
+        }
+        
+        return result;
+    }
 
-        IndexSearcher searcher = new IndexSearcher(aIndexReader);
+    private SearchResultsPage doQuery(IndexSearcher aSearcher, SearchQueryRequest aRequest,
+            String field, MtasSpanQuery q, List<String> prefixes, long aOffset, int aLimit)
+        throws IOException
+    {
+        // Results beyond the requested page are only counted and counting stops at the maximum
+        // number of results unless the requested page lies beyond that
+        long countLimit = Math.max(properties.getMaxResults(), aOffset + aLimit);
+        
+        PageCollector collector = new PageCollector(field, prefixes, aOffset, aLimit,
+                countLimit);
+        
+        visitSpans(aSearcher, aRequest, field, q, collector);
+        
+        return new SearchResultsPage(collector.results, aOffset, collector.matchCount,
+                collector.capped);
+    }
 
+    /**
+     * Passes every hit of the query in the index documents visible to the querying user to the
+     * given visitor until the visitor asks to stop.
+     */
+    private void visitSpans(IndexSearcher aSearcher, SearchQueryRequest aRequest, String field,
+            MtasSpanQuery q, SpanVisitor aVisitor)
+        throws IOException
+    {
+        IndexReader indexReader = aSearcher.getIndexReader();
+        
         final float boost = 0;
-        SpanWeight spanweight = q.rewrite(aIndexReader).createWeight(searcher, false, boost);
+        SpanWeight spanweight = q.rewrite(indexReader).createWeight(aSearcher, false, boost);
+        
+        Query visibilityFilter = buildVisibilityFilter(aSearcher, aRequest);
+        Weight visibilityWeight = aSearcher
+                .createWeight(aSearcher.rewrite(visibilityFilter), false, 1.0f);
 
-        while (leafReaderContextIterator.hasNext()) {
-            LeafReaderContext leafReaderContext = leafReaderContextIterator.next();
+        for (LeafReaderContext leafReaderContext : indexReader.leaves()) {
             try {
                 Spans spans = spanweight.getSpans(leafReaderContext, SpanWeight.Postings.POSITIONS);
                 SegmentReader segmentReader = (SegmentReader) leafReaderContext.reader();
                 Terms terms = segmentReader.terms(field);
                 CodecInfo mtasCodecInfo = CodecInfo.getCodecInfoFromTerms(terms);
-                if (spans != null) {
-                    while (spans.nextDoc() != Spans.NO_MORE_DOCS) {
-                        if (segmentReader.numDocs() == segmentReader.maxDoc()
-                                || segmentReader.getLiveDocs().get(spans.docID())) {
-                            Document document = segmentReader.document(spans.docID());
-
-                            // Retrieve user
-                            String user = document.get(FIELD_USER);
-
-                            // Retrieve source and annotation document ids
-                            String rawSourceDocumentId = document.get(FIELD_SOURCE_DOCUMENT_ID);
-                            String rawAnnotationDocumentId = document
-                                    .get(FIELD_ANNOTATION_DOCUMENT_ID);
-                            if (rawSourceDocumentId == null || rawAnnotationDocumentId == null) {
-                                log.trace("Indexed document lacks source/annotation document IDs"
-                                        + " - source: {}, annotation: {}",
-                                        rawSourceDocumentId, rawAnnotationDocumentId);
-                                continue;
-
-                            }
-                            long sourceDocumentId = Long.valueOf(rawSourceDocumentId);
-                            long annotationDocumentId = Long.valueOf(rawAnnotationDocumentId);
-                            
-                            // If the query is limited to a given document, skip any results
-                            // which are not in the given document
-                            Optional<SourceDocument> limitedToDocument = aRequest
-                                    .getLimitedToDocument();
-                            if (limitedToDocument.isPresent() && !Objects
-                                    .equals(limitedToDocument.get().getId(), sourceDocumentId)) {
-                                log.trace("Query limited to document {}, skipping results for "
-                                        + "document {}",
-                                        limitedToDocument.get().getId(), sourceDocumentId);
-                                continue;
-                            }
-
-                            // FIXME Checking for every document whether an annotation document
-                            // exists will heavily slow down search in larger projects. We have
-                            // TWO DB accesses here, one for the source document and one checking
-                            // whether there is an annotation document. This is quite bad. However,
-                            // if we do not do this here, then the user will not get any results
-                            // from documents which the user has not opened yet or alternatively
-                            // duplicate results. Better find a solution which handles this during
-                            // indexing time.
-                            // See: https://github.com/inception-project/inception/issues/790
-                            SourceDocument sourceDocument = documentService
-                                    .getSourceDocument(project.getId(), sourceDocumentId);
-                            if (documentService.existsAnnotationDocument(sourceDocument,
-                                    aRequest.getUsername()) && annotationDocumentId == -1) {
-                                // Exclude result if the retrieved document is a sourcedocument
-                                // (that is, has annotationDocument = -1) AND it has a
-                                // corresponding annotation document for this user
-                                log.trace("Skipping results from indexed source document {} in"
-                                        + "favor of results from the corresponding annotation "
-                                        + "document", sourceDocument.getId());
-                                continue;
-                            }
-                            else if (annotationDocumentId != -1
-                                    && !aRequest.getUsername().equals(user)) {
-                                // Exclude result if the retrieved document is an annotation
-                                // document (that is, annotationDocument != -1 and its username
-                                // is different from the quering user
-                                log.trace("Skipping results from annotation document for user {} "
-                                        + "which does not match the requested user {}", user,
-                                        aRequest.getUsername());
-                                continue;
-                            }
-
-                            // Retrieve document title
-                            String documentTitle = document.get(FIELD_TITLE);
-
-                            String idValue = segmentReader.document(spans.docID())
-                                    .getField(FIELD_ID).stringValue();
-                            log.debug("********  New doc {}-{}", + spans.docID(), idValue);
-
-                            while (spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
-
-                                int resultWindowStartPosition = spans.startPosition()
-                                        - RESULT_WINDOW_SIZE;
-
-                                // Avoid the window starting before the beginning of the text
-                                if (resultWindowStartPosition < 0) {
-                                    resultWindowStartPosition = 0;
-                                }
-
-                                int resultWindowEndPosition = spans.endPosition()
-                                        + RESULT_WINDOW_SIZE + 1;
-
-                                // Avoid the window ending after the end of the text
-                                if (resultWindowEndPosition > spans.endPosition()) {
-                                    resultWindowEndPosition = spans.endPosition();
-                                }
-                                List<MtasTokenString> tokens = mtasCodecInfo
-                                        .getPrefixFilteredObjectsByPositions(field, spans.docID(),
-                                                prefixes, resultWindowStartPosition,
-                                                resultWindowEndPosition);
-
-                                Collections.sort(tokens, new Comparator<MtasTokenString>()
-                                {
-                                    @Override
-                                    public int compare(MtasTokenString token2,
-                                            MtasTokenString token1)
-                                    {
-                                        return token2.getPositionStart() > token1.getPositionStart()
-                                                ? 1
-                                                : -1;
-                                    }
-                                });
-
-                                SearchResult result = new SearchResult();
-                                String resultText = "";
-                                String leftContext = "";
-                                String rightContext = "";
-                                result.setDocumentId(sourceDocumentId);
-                                result.setDocumentTitle(documentTitle);
-
-                                int startToken = 0;
-                                while (startToken < tokens.size()) {
-                                    if (tokens.get(startToken).getPositionStart()
-                                            .equals(tokens.get(startToken).getPositionEnd())
-                                            && tokens.get(startToken).getPositionStart() == spans
-                                                    .startPosition()) {
-                                        break;
-                                    }
-                                    startToken++;
-                                }
-
-                                if (startToken >= tokens.size()) {
-                                    startToken = 0;
-                                }
-
-                                int endToken = 0;
-                                while (endToken < tokens.size()) {
-                                    if (tokens.get(endToken).getPositionStart()
-                                            .equals(tokens.get(endToken).getPositionEnd())
-                                            && tokens.get(endToken).getPositionStart() == spans
-                                                    .endPosition()) {
-                                        break;
-                                    }
-                                    endToken++;
-                                }
-
-                                if (endToken >= tokens.size()) {
-                                    endToken = 0;
-                                }
-
-                                result.setOffsetStart(tokens.get(startToken).getOffsetStart());
-                                result.setOffsetEnd(tokens.get(endToken - 1).getOffsetEnd());
-                                result.setTokenStart(spans.startPosition());
-                                result.setTokenLength(spans.endPosition() - spans.startPosition());
-                                for (int i = 0; i < tokens.size(); i++) {
-                                    MtasTokenString token = tokens.get(i);
-                                    if (token.getPrefix().equals(DEFAULT_PREFIX)) {
-                                        if (token.getPositionStart() < spans.startPosition()) {
-                                            leftContext += CodecUtil.termValue(token.getValue())
-                                                    + " ";
-                                        }
-                                        else if (token.getPositionStart() >= spans.endPosition()) {
-                                            rightContext += CodecUtil.termValue(token.getValue())
-                                                    + " ";
-                                        }
-                                        else {
-                                            resultText += CodecUtil.termValue(token.getValue())
-                                                    + " ";
-                                        }
-
-                                        if (log.isTraceEnabled()) {
-                                            if (token.getPositionEnd() != token
-                                                    .getPositionStart()) {
-                                                log.trace(
-                                                        " doc: {}-{}, mtasID: {} offset: {}-{} position: {}-{}",
-                                                        sourceDocumentId, documentTitle,
-                                                        token.getId(), token.getOffsetStart(),
-                                                        token.getOffsetEnd(),
-                                                        token.getPositionStart(),
-                                                        token.getPositionEnd());
-                                            }
-                                            else {
-                                                log.trace(
-                                                        " doc: {}-{}, mtasID: {} offset: {}-{} position: {} {}:{}",
-                                                        sourceDocumentId, documentTitle,
-                                                        token.getId(), token.getOffsetStart(),
-                                                        token.getOffsetEnd(),
-                                                        token.getPositionStart(), token.getPrefix(),
-                                                        token.getPostfix());
-
-                                            }
-                                        }
-                                    }
-                                }
-                                result.setText(resultText);
-                                result.setLeftContext(leftContext);
-                                result.setRightContext(rightContext);
-                                results.add(result);
-                            }
+                Scorer visibilityScorer = visibilityWeight.scorer(leafReaderContext);
+                if (spans == null || visibilityScorer == null) {
+                    continue;
+                }
+                
+                DocIdSetIterator visibleDocs = visibilityScorer.iterator();
+                while (spans.nextDoc() != Spans.NO_MORE_DOCS) {
+                    // Skip documents which are not visible to the user without loading them
+                    int visibleDoc = visibleDocs.docID();
+                    if (visibleDoc < spans.docID()) {
+                        visibleDoc = visibleDocs.advance(spans.docID());
+                    }
+                    if (visibleDoc != spans.docID()) {
+                        continue;
+                    }
+                    
+                    if (segmentReader.numDocs() != segmentReader.maxDoc()
+                            && !segmentReader.getLiveDocs().get(spans.docID())) {
+                        continue;
+                    }
+                    
+                    while (spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
+                        if (!aVisitor.visit(segmentReader, mtasCodecInfo, spans)) {
+                            return;
                         }
                     }
                 }
@@ -471,61 +829,176 @@ public class MtasDocumentIndex
                 log.error("Unable to process query results", e);
             }
         }
-        return results;
     }
 
-    private void indexDocument(String aDocumentTitle, long aSourceDocumentId,
-            long aAnnotationDocumentId, String aUser, JCas aJCas)
+    private SearchResult createSearchResult(CodecInfo aCodecInfo, String aField,
+            List<String> aPrefixes, Spans aSpans, long aSourceDocumentId, String aDocumentTitle)
         throws IOException
     {
-        if (indexWriter != null) {
-            try {
-                log.debug(
-                        "Indexing document in project [{}]({}). sourceId: {}, annotationId: {}, "
-                                + "user: {}",
-                        project.getName(), project.getId(), aSourceDocumentId,
-                        aAnnotationDocumentId, aUser);
-                
-                // Prepare bytearray with document content to be indexed
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                XmiCasSerializer.serialize(aJCas.getCas(), null, bos, true, null);
-                bos.close();
+        int resultWindowStartPosition = aSpans.startPosition() - RESULT_WINDOW_SIZE;
 
-                // Calculate timestamp that will be indexed
-                String timestamp = DateTools.dateToString(new Date(),
-                        DateTools.Resolution.MILLISECOND);
+        // Avoid the window starting before the beginning of the text
+        if (resultWindowStartPosition < 0) {
+            resultWindowStartPosition = 0;
+        }
 
-                // Create new Lucene document
-                Document doc = new Document();
-                
-                // Add indexed fields
-                doc.add(new StringField(FIELD_ID, String.valueOf(aSourceDocumentId) + "/"
-                        + String.valueOf(aAnnotationDocumentId), Field.Store.YES));
-                doc.add(new StringField(FIELD_SOURCE_DOCUMENT_ID, String.valueOf(aSourceDocumentId),
-                        Field.Store.YES));
-                doc.add(new StringField(FIELD_ANNOTATION_DOCUMENT_ID,
-                        String.valueOf(aAnnotationDocumentId), Field.Store.YES));
-                doc.add(new StringField(FIELD_TITLE, aDocumentTitle, Field.Store.YES));
-                doc.add(new StringField(FIELD_USER, aUser, Field.Store.YES));
-                doc.add(new StringField(FIELD_TIMESTAMP, timestamp, Field.Store.YES));
-                doc.add(new TextField(FIELD_CONTENT, new String(bos.toByteArray(), "UTF-8"),
-                        Field.Store.YES));
-    
-                // Add document to the Lucene index
-                indexWriter.addDocument(doc);
-    
-                // commit
-                indexWriter.commit();
-    
-                log.debug(
-                        "Document indexed in project [{}]({}). sourceId: {}, annotationId: {}, "
-                                + "user: {}, timestamp: {}",
-                        project.getName(), project.getId(), aSourceDocumentId,
-                        aAnnotationDocumentId, aUser, timestamp);
+        int resultWindowEndPosition = aSpans.endPosition() + RESULT_WINDOW_SIZE + 1;
+
+        // Avoid the window ending after the end of the text
+        if (resultWindowEndPosition > aSpans.endPosition()) {
+            resultWindowEndPosition = aSpans.endPosition();
+        }
+        List<MtasTokenString> tokens = aCodecInfo.getPrefixFilteredObjectsByPositions(aField,
+                aSpans.docID(), aPrefixes, resultWindowStartPosition, resultWindowEndPosition);
+
+        tokens.sort(Comparator.comparing(MtasTokenString::getPositionStart));
+
+        SearchResult result = new SearchResult();
+        StringBuilder resultText = new StringBuilder();
+        StringBuilder leftContext = new StringBuilder();
+        StringBuilder rightContext = new StringBuilder();
+        result.setDocumentId(aSourceDocumentId);
+        result.setDocumentTitle(aDocumentTitle);
+
+        int startToken = 0;
+        while (startToken < tokens.size()) {
+            if (tokens.get(startToken).getPositionStart()
+                    .equals(tokens.get(startToken).getPositionEnd())
+                    && tokens.get(startToken).getPositionStart() == aSpans.startPosition()) {
+                break;
             }
-            catch (SAXException e) {
-                log.error("Unable to index document", e);
+            startToken++;
+        }
+
+        if (startToken >= tokens.size()) {
+            startToken = 0;
+        }
+
+        int endToken = 0;
+        while (endToken < tokens.size()) {
+            if (tokens.get(endToken).getPositionStart()
+                    .equals(tokens.get(endToken).getPositionEnd())
+                    && tokens.get(endToken).getPositionStart() == aSpans.endPosition()) {
+                break;
             }
+            endToken++;
+        }
+
+        if (endToken >= tokens.size()) {
+            endToken = 0;
+        }
+
+        result.setOffsetStart(tokens.get(startToken).getOffsetStart());
+        result.setOffsetEnd(tokens.get(endToken - 1).getOffsetEnd());
+        result.setTokenStart(aSpans.startPosition());
+        result.setTokenLength(aSpans.endPosition() - aSpans.startPosition());
+        for (MtasTokenString token : tokens) {
+            if (!token.getPrefix().equals(DEFAULT_PREFIX)) {
+                continue;
+            }
+            
+            if (token.getPositionStart() < aSpans.startPosition()) {
+                leftContext.append(CodecUtil.termValue(token.getValue())).append(" ");
+            }
+            else if (token.getPositionStart() >= aSpans.endPosition()) {
+                rightContext.append(CodecUtil.termValue(token.getValue())).append(" ");
+            }
+            else {
+                resultText.append(CodecUtil.termValue(token.getValue())).append(" ");
+            }
+
+            if (log.isTraceEnabled()) {
+                if (token.getPositionEnd() != token.getPositionStart()) {
+                    log.trace(" doc: {}-{}, mtasID: {} offset: {}-{} position: {}-{}",
+                            aSourceDocumentId, aDocumentTitle, token.getId(),
+                            token.getOffsetStart(), token.getOffsetEnd(),
+                            token.getPositionStart(), token.getPositionEnd());
+                }
+                else {
+                    log.trace(" doc: {}-{}, mtasID: {} offset: {}-{} position: {} {}:{}",
+                            aSourceDocumentId, aDocumentTitle, token.getId(),
+                            token.getOffsetStart(), token.getOffsetEnd(),
+                            token.getPositionStart(), token.getPrefix(), token.getPostfix());
+                }
+            }
+        }
+        result.setText(resultText.toString());
+        result.setLeftContext(leftContext.toString());
+        result.setRightContext(rightContext.toString());
+        return result;
+    }
+
+    /**
+     * Builds the index document and adds it to the index. The CAS is handed over to the
+     * {@link MtasUimaParser} directly while the document is analyzed - it is neither serialized
+     * nor stored in the index.
+     * 
+     * @return the timestamp of the new index document.
+     */
+    private String addLuceneDocument(String aDocumentTitle, long aSourceDocumentId,
+            long aAnnotationDocumentId, String aUser, JCas aJCas)
+        throws IOException
+    {
+        String casReference = MtasUimaParser.registerCas(aJCas);
+        try {
+            Document doc = buildLuceneDocument(aDocumentTitle, aSourceDocumentId,
+                    aAnnotationDocumentId, aUser, casReference);
+            indexWriter.addDocument(doc);
+            return doc.get(FIELD_TIMESTAMP);
+        }
+        finally {
+            MtasUimaParser.unregisterCas(casReference);
+        }
+    }
+    
+    private Document buildLuceneDocument(String aDocumentTitle, long aSourceDocumentId,
+            long aAnnotationDocumentId, String aUser, String aCasReference)
+    {
+        // Calculate timestamp that will be indexed
+        String timestamp = DateTools.dateToString(new Date(), DateTools.Resolution.MILLISECOND);
+
+        // Create new Lucene document
+        Document doc = new Document();
+        
+        // Add indexed fields
+        doc.add(new StringField(FIELD_ID, String.valueOf(aSourceDocumentId) + "/"
+                + String.valueOf(aAnnotationDocumentId), Field.Store.YES));
+        doc.add(new StringField(FIELD_SOURCE_DOCUMENT_ID, String.valueOf(aSourceDocumentId),
+                Field.Store.YES));
+        doc.add(new StringField(FIELD_ANNOTATION_DOCUMENT_ID,
+                String.valueOf(aAnnotationDocumentId), Field.Store.YES));
+        doc.add(new StringField(FIELD_TITLE, aDocumentTitle, Field.Store.YES));
+        doc.add(new StringField(FIELD_USER, aUser, Field.Store.YES));
+        doc.add(new StringField(FIELD_TIMESTAMP, timestamp, Field.Store.YES));
+        doc.add(new TextField(FIELD_CONTENT, new StringReader(aCasReference)));
+        
+        return doc;
+    }
+    
+    private synchronized void indexDocument(String aDocumentTitle, long aSourceDocumentId,
+            long aAnnotationDocumentId, String aUser, JCas aJCas)
+        throws IOException
+    {
+        if (indexWriter != null) {
+            log.debug(
+                    "Indexing document in project [{}]({}). sourceId: {}, annotationId: {}, "
+                            + "user: {}",
+                    project.getName(), project.getId(), aSourceDocumentId,
+                    aAnnotationDocumentId, aUser);
+
+            // Add document to the Lucene index
+            recordChange(aSourceDocumentId, aAnnotationDocumentId, aUser);
+            String timestamp = addLuceneDocument(aDocumentTitle, aSourceDocumentId,
+                    aAnnotationDocumentId, aUser, aJCas);
+
+            // Commit if enough changes have accumulated
+            maybeCommit();
+
+            log.debug(
+                    "Document indexed in project [{}]({}). sourceId: {}, annotationId: {}, "
+                            + "user: {}, timestamp: {}",
+                    project.getName(), project.getId(), aSourceDocumentId,
+                    aAnnotationDocumentId, aUser, timestamp);
         }
         else {
             log.debug(
@@ -560,7 +1033,8 @@ public class MtasDocumentIndex
      * @param aUser
      *            The owner of the document to be removed
      */
-    private void deindexDocument(long aSourceDocumentId, long aAnnotationDocumentId, String aUser)
+    private synchronized void deindexDocument(long aSourceDocumentId, long aAnnotationDocumentId,
+            String aUser)
         throws IOException
     {
         if (indexWriter != null) {
@@ -570,10 +1044,11 @@ public class MtasDocumentIndex
                     project.getName(), project.getId(), aSourceDocumentId, aAnnotationDocumentId,
                     aUser);
 
+            recordChange(aSourceDocumentId, aAnnotationDocumentId, aUser);
             indexWriter.deleteDocuments(new Term(FIELD_ID,
                     String.format("%d/%d", aSourceDocumentId, aAnnotationDocumentId)));
 
-            indexWriter.commit();
+            maybeCommit();
 
             log.debug(
                     "Removed document from index in project [{}]({}). sourceId: {}, "
@@ -602,8 +1077,8 @@ public class MtasDocumentIndex
      * @param aTimestamp
      *            The timestamp of the document to be removed
      */
-    private void deindexDocument(long aSourceDocumentId, long aAnnotationDocumentId, String aUser,
-            String aTimestamp)
+    private synchronized void deindexDocument(long aSourceDocumentId, long aAnnotationDocumentId,
+            String aUser, String aTimestamp)
         throws IOException
     {
         if (indexWriter != null) {
@@ -622,9 +1097,10 @@ public class MtasDocumentIndex
                             BooleanClause.Occur.MUST);
 
             // Delete document based on the previous query
+            recordChange(aSourceDocumentId, aAnnotationDocumentId, aUser);
             indexWriter.deleteDocuments(booleanQuery.build());
 
-            indexWriter.commit();
+            maybeCommit();
 
             log.info(
                     "Removed document from index in project [{}]({}). sourceId: {}, "
@@ -706,13 +1182,25 @@ public class MtasDocumentIndex
     }
 
     @Override
-    public void closePhysicalIndex()
+    public synchronized void closePhysicalIndex()
     {
+        if (searcherManager != null) {
+            try {
+                searcherManager.close();
+            }
+            catch (IOException e) {
+                log.error("Error closing searcher manager for project [{}]", project.getId(), e);
+            }
+            finally {
+                searcherManager = null;
+            }
+        }
+        
         if (indexWriter != null) {
             try {
                 if (indexWriter.isOpen()) {
                     // Commit and close the index
-                    indexWriter.commit();
+                    commitPendingChanges();
                     indexWriter.close();
                 }
 
@@ -758,7 +1246,7 @@ public class MtasDocumentIndex
      * Open a Mtas physical index, setting indexWriter
      */
     @Override
-    public void openPhysicalIndex()
+    public synchronized void openPhysicalIndex()
     {
         boolean isOpen;
         
@@ -772,6 +1260,30 @@ public class MtasDocumentIndex
 
                 indexWriter = openLuceneIndex(getIndexDir());
                 indexWriter.commit();
+                
+                searcherManager = new SearcherManager(indexWriter, new SearcherFactory());
+                searcherManager.addListener(new ReferenceManager.RefreshListener()
+                {
+                    @Override
+                    public void beforeRefresh()
+                    {
+                        // Nothing to do
+                    }
+
+                    @Override
+                    public void afterRefresh(boolean aDidRefresh)
+                    {
+                        lastReaderRefresh = System.currentTimeMillis();
+                        if (aDidRefresh) {
+                            readerRefreshes.incrementAndGet();
+                        }
+                    }
+                });
+                lastReaderRefresh = System.currentTimeMillis();
+                
+                // Re-index documents whose changes were not committed when the index was last
+                // closed
+                recoverPendingChanges();
 
                 log.debug("indexWriter has been opened for project [{}]({})", project.getName(),
                         project.getId());
@@ -855,41 +1367,136 @@ public class MtasDocumentIndex
         return new IndexWriter(directory, config);
     }
 
+    /**
+     * Indexes all annotation documents and source documents of the project. Loading the CASes
+     * and analyzing them for the index is distributed over a pool of worker threads which all
+     * feed the same index writer. The number of documents waiting for a worker is bounded, so
+     * only a limited number of CASes is held in memory at any time.
+     */
     private void indexAllDocuments()
     {
-
         int users = 0;
-        int annotationDocs = 0;
-        int sourceDocs = 0;
+        AtomicInteger annotationDocs = new AtomicInteger();
+        AtomicInteger sourceDocs = new AtomicInteger();
 
+        List<AnnotationDocument> annotationDocuments = new ArrayList<>();
+        for (User user : projectService.listProjectUsersWithPermissions(project)) {
+            users++;
+            annotationDocuments.addAll(documentService.listAnnotationDocuments(project, user));
+        }
+        List<SourceDocument> sourceDocuments = documentService.listSourceDocuments(project);
+
+        reindexTotalDocuments = annotationDocuments.size() + sourceDocuments.size();
+        reindexIndexedDocuments.set(0);
+        reindexStartTime = System.currentTimeMillis();
+        reindexInProgress = true;
+        
+        int threads = Math.max(1, properties.getReindexThreads());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, properties.getReindexQueueSize())),
+                new BasicThreadFactory.Builder()
+                        .namingPattern("Reindex-" + project.getId() + "-%d")
+                        .daemon(true)
+                        .priority(Thread.MIN_PRIORITY)
+                        .build(),
+                // If all workers are busy and the queue is full, the submitting thread indexes
+                // the next document itself instead of enqueuing further documents
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        
         try {
-            log.info("Indexing all annotation documents of project [{}]({})", project.getName(),
-                    project.getId());
+            log.info("Indexing all annotation documents of project [{}]({}) using {} thread(s)",
+                    project.getName(), project.getId(), threads);
 
-            for (User user : projectService.listProjectUsersWithPermissions(project)) {
-                users++;
-                for (AnnotationDocument document : documentService.listAnnotationDocuments(project,
-                        user)) {
-                    indexDocument(document, documentService.readAnnotationCas(document));
-                    annotationDocs++;
-                }
+            for (AnnotationDocument document : annotationDocuments) {
+                executor.execute(() -> bulkIndexDocument(document.getName(),
+                        document.getDocument().getId(), document.getId(), document.getUser(),
+                        () -> documentService.readAnnotationCas(document), annotationDocs));
             }
 
             log.info("Indexing all source documents of project [{}]({})", project.getName(),
                     project.getId());
 
-            for (SourceDocument document : documentService.listSourceDocuments(project)) {
-                indexDocument(document, documentService.createOrReadInitialCas(document));
-                sourceDocs++;
+            for (SourceDocument document : sourceDocuments) {
+                executor.execute(() -> bulkIndexDocument(document.getName(), document.getId(),
+                        -1, "", () -> documentService.createOrReadInitialCas(document),
+                        sourceDocs));
+            }
+        }
+        finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for indexing of project [{}]({}) to complete",
+                        project.getName(), project.getId());
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            reindexInProgress = false;
+        }
+
+        try {
+            synchronized (this) {
+                commitPendingChanges();
             }
         }
         catch (IOException e) {
-            log.error("Unable to index document", e);
+            log.error("Unable to commit index", e);
         }
 
         log.info(String.format(
-                "Indexing results: %d source doc(s), %d annotation doc(s) for %d user(s)",
-                sourceDocs, annotationDocs, users));
+                "Indexing results: %d source doc(s), %d annotation doc(s) for %d user(s) in %d ms",
+                sourceDocs.get(), annotationDocs.get(), users,
+                System.currentTimeMillis() - reindexStartTime));
+    }
+
+    /**
+     * Adds a document to the index as part of indexing the whole project. Unlike
+     * {@link #indexDocument(String, long, long, String, JCas)}, this method is called
+     * concurrently, does not record the change in the pending changes journal and does not
+     * commit.
+     * <p>
+     * This relies on the index being marked as invalid for the whole time it is rebuilt: the
+     * search service marks the index as invalid before the rebuild and only marks it as valid
+     * again after {@link #indexAllDocuments()} has committed. If the rebuild does not complete,
+     * e.g. because the application crashed, the index remains invalid and the whole project is
+     * indexed again, so there is nothing to recover from the journal.
+     */
+    private void bulkIndexDocument(String aDocumentTitle, long aSourceDocumentId,
+            long aAnnotationDocumentId, String aUser, Callable<JCas> aCasLoader,
+            AtomicInteger aCounter)
+    {
+        try {
+            JCas jcas = aCasLoader.call();
+            addLuceneDocument(aDocumentTitle, aSourceDocumentId, aAnnotationDocumentId, aUser,
+                    jcas);
+            aCounter.incrementAndGet();
+        }
+        catch (Exception e) {
+            log.error("Unable to index document in project [{}]({}). sourceId: {}, "
+                    + "annotationId: {}, user: {}", project.getName(), project.getId(),
+                    aSourceDocumentId, aAnnotationDocumentId, aUser, e);
+        }
+        finally {
+            int indexed = reindexIndexedDocuments.incrementAndGet();
+            if (indexed % 100 == 0) {
+                log.info("Indexing project [{}]({}): {}", project.getName(), project.getId(),
+                        getIndexProgress().map(IndexProgress::toString).orElse(""));
+            }
+        }
+    }
+
+    @Override
+    public Optional<IndexProgress> getIndexProgress()
+    {
+        if (!reindexInProgress) {
+            return Optional.empty();
+        }
+        
+        return Optional.of(new IndexProgress(reindexTotalDocuments, reindexIndexedDocuments.get(),
+                System.currentTimeMillis() - reindexStartTime));
     }
 
     private String getShortName(String aName)
@@ -910,31 +1517,39 @@ public class MtasDocumentIndex
     {
         Optional<String> result = Optional.empty();
 
-        // Prepare index searcher for accessing index
-        Directory directory = FSDirectory.open(getIndexDir().toPath());
-        IndexReader indexReader = DirectoryReader.open(directory);
-        IndexSearcher indexSearcher = new IndexSearcher(indexReader);
-
-        // Prepare query for the annotation document for this annotation document
-        Term term = new Term(FIELD_ID,
-                String.format("%d/%d", aDocument.getDocument().getId(), aDocument.getId()));
+        // The timestamp is used to replace the previously indexed version of the document, so we
+        // must make sure that we see the latest state of the index here.
+        if (searcherManager != null) {
+            searcherManager.maybeRefreshBlocking();
+        }
         
-        TermQuery query = new TermQuery(term);
-
-        // Do query
-        TopDocs docs = indexSearcher.search(query, 1);
-
-        if (docs.scoreDocs.length > 0) {
-            // If there are results, retrieve first document, since all results should come
-            // from the same document
-            Document document = indexSearcher.doc(docs.scoreDocs[0].doc);
-
-            // Retrieve the timestamp field if it exists
-            if (document.getField(FIELD_TIMESTAMP) != null) {
-                result = Optional.ofNullable(StringUtils
-                        .trimToNull(document.getField(FIELD_TIMESTAMP).stringValue()));
+        // Prepare index searcher for accessing index
+        IndexSearcher indexSearcher = acquireSearcher();
+        try {
+            // Prepare query for the annotation document for this annotation document
+            Term term = new Term(FIELD_ID,
+                    String.format("%d/%d", aDocument.getDocument().getId(), aDocument.getId()));
+            
+            TermQuery query = new TermQuery(term);
+    
+            // Do query
+            TopDocs docs = indexSearcher.search(query, 1);
+    
+            if (docs.scoreDocs.length > 0) {
+                // If there are results, retrieve first document, since all results should come
+                // from the same document
+                Document document = indexSearcher.doc(docs.scoreDocs[0].doc);
+    
+                // Retrieve the timestamp field if it exists
+                if (document.getField(FIELD_TIMESTAMP) != null) {
+                    result = Optional.ofNullable(StringUtils
+                            .trimToNull(document.getField(FIELD_TIMESTAMP).stringValue()));
+                }
             }
         }
+        finally {
+            releaseSearcher(indexSearcher);
+        }
         
         return result;
     }
@@ -945,4 +1560,88 @@ public class MtasDocumentIndex
         return new ToStringBuilder(this).append("project", project)
                 .append("path", getIndexDir()).toString();
     }
+
+    /**
+     * Counts all hits up to the given limit and builds search results for the hits on the
+     * requested page.
+     */
+    private class PageCollector
+        implements SpanVisitor
+    {
+        private final String field;
+        private final List<String> prefixes;
+        private final long offset;
+        private final int limit;
+        private final long countLimit;
+        
+        private final List<SearchResult> results = new ArrayList<>();
+        private long matchCount = 0;
+        private boolean capped = false;
+        
+        private SegmentReader reader;
+        private int docId = -1;
+        private Document document;
+        
+        public PageCollector(String aField, List<String> aPrefixes, long aOffset, int aLimit,
+                long aCountLimit)
+        {
+            field = aField;
+            prefixes = aPrefixes;
+            offset = aOffset;
+            limit = aLimit;
+            countLimit = aCountLimit;
+        }
+
+        @Override
+        public boolean visit(SegmentReader aReader, CodecInfo aCodecInfo, Spans aSpans)
+            throws IOException
+        {
+            if (matchCount == countLimit) {
+                capped = true;
+                return false;
+            }
+            
+            long position = matchCount;
+            matchCount++;
+            if (position < offset || results.size() >= limit) {
+                return true;
+            }
+            
+            // The stored fields are only loaded once a result from the document is actually
+            // part of the requested page
+            if (aReader != reader || aSpans.docID() != docId) {
+                reader = aReader;
+                docId = aSpans.docID();
+                document = aReader.document(docId);
+                log.debug("********  New doc {}-{}", docId, document.get(FIELD_ID));
+            }
+            
+            // Retrieve source document id
+            String rawSourceDocumentId = document.get(FIELD_SOURCE_DOCUMENT_ID);
+            if (rawSourceDocumentId == null) {
+                log.trace("Indexed document lacks source document ID");
+                return true;
+            }
+            
+            results.add(createSearchResult(aCodecInfo, field, prefixes, aSpans,
+                    Long.valueOf(rawSourceDocumentId), document.get(FIELD_TITLE)));
+            return true;
+        }
+    }
+    
+    @FunctionalInterface
+    private interface QueryFunction<T>
+    {
+        T apply(IndexSearcher aSearcher, MtasSpanQuery aQuery) throws IOException;
+    }
+    
+    @FunctionalInterface
+    private interface SpanVisitor
+    {
+        /**
+         * @return whether further hits should be visited.
+         */
+        boolean visit(SegmentReader aReader, CodecInfo aCodecInfo, Spans aSpans)
+            throws IOException;
+    }
 }
@@ -19,12 +19,14 @@ package de.tudarmstadt.ukp.inception.search.index.mtas;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.inception.search.config.SearchServiceProperties;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndex;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndexFactoryImplBase;
 
@@ -33,6 +35,8 @@ public class MtasDocumentIndexFactory
     extends PhysicalIndexFactoryImplBase
 {
     private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private @Autowired SearchServiceProperties properties;
     
     @Override
     public String getDisplayName()
@@ -48,7 +52,7 @@ public class MtasDocumentIndexFactory
         PhysicalIndex indexBase = null;
         try {
             indexBase = new MtasDocumentIndex(aProject, aAnnotationSchemaService, aDocumentService,
-                    aProjectService, aDir);
+                    aProjectService, aDir, properties);
         }
         catch (Exception e) {
             log.error("Unable to get index", e);
@@ -30,6 +30,8 @@ import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.collections4.MultiValuedMap;
 import org.apache.commons.io.IOUtils;
@@ -82,6 +84,17 @@ public class MtasUimaParser
     final private String SPECIAL_ATTR_REL_SOURCE = "source";
     final private String SPECIAL_ATTR_REL_TARGET = "target";
     
+    /**
+     * Prefix of the field content which refers to a CAS handed over via {@link #registerCas}
+     * instead of containing the CAS serialized as XMI.
+     */
+    private static final String CAS_REFERENCE_PREFIX = "cas-ref:";
+
+    // CASes handed over directly to the parser while their index document is being analyzed. The
+    // parser is created by the MTAS tokenizer and only gets to see the content of the field, so
+    // the CAS cannot be passed to it in any other way. See registerCas() for the contract.
+    private static final Map<String, JCas> CAS_REFERENCES = new ConcurrentHashMap<>();
+    
     // Annotation schema and project services with knowledge base service
     private @Autowired AnnotationSchemaService annotationSchemaService;
     private @Autowired ProjectService projectService;
@@ -159,7 +172,17 @@ public class MtasUimaParser
 
         JCas jcas;
         try {
-            jcas = readCas(aReader);
+            String content = IOUtils.toString(aReader);
+            if (content.startsWith(CAS_REFERENCE_PREFIX)) {
+                jcas = CAS_REFERENCES.get(content);
+                if (jcas == null) {
+                    log.error("Referenced CAS [{}] is not available", content);
+                    return new MtasTokenCollection();
+                }
+            }
+            else {
+                jcas = readCas(content);
+            }
         }
         catch (Exception e) {
             log.error("Unable to decode CAS", e);
@@ -177,19 +200,57 @@ public class MtasUimaParser
         }
     }
     
-    private JCas readCas(Reader reader) throws UIMAException, IOException, SAXException
+    private JCas readCas(String xmi) throws UIMAException, IOException, SAXException
     {
         JCas jcas = JCasFactory
                 .createJCas(annotationSchemaService.getFullProjectTypeSystem(project));
 
-        String xmi = IOUtils.toString(reader);
-
         // Get the annotations from the XMI are back in the CAS.
         XmiCasDeserializer.deserialize(new ByteArrayInputStream(xmi.getBytes()), jcas.getCas());
 
         return jcas;
     }
 
+    /**
+     * Hands over a CAS to the parser such that it can be indexed without serializing it to XMI
+     * and parsing it again. The returned reference must be used as the content of the field that
+     * is analyzed by the MTAS tokenizer and must be released using {@link #unregisterCas} once the
+     * index document has been added to the index.
+     * <p>
+     * This works because Lucene analyzes the fields of a document synchronously within
+     * {@code IndexWriter.addDocument()} (or {@code updateDocument()}), so the reference is only
+     * needed until that call returns. The caller must therefore:
+     * <ul>
+     * <li>register the CAS right before adding the document and release the reference in a
+     * {@code finally} block right after, otherwise the CAS leaks;</li>
+     * <li>not modify the CAS until the reference has been released;</li>
+     * <li>not store the field, since the reference is meaningless once it has been released.</li>
+     * </ul>
+     * If the parser does not find the referenced CAS, it logs an error and indexes the document
+     * without any tokens.
+     * 
+     * @param aJCas
+     *            the CAS to be indexed.
+     * @return the reference to be used as field content.
+     */
+    public static String registerCas(JCas aJCas)
+    {
+        String reference = CAS_REFERENCE_PREFIX + UUID.randomUUID();
+        CAS_REFERENCES.put(reference, aJCas);
+        return reference;
+    }
+
+    /**
+     * Releases a CAS handed over using {@link #registerCas}.
+     * 
+     * @param aReference
+     *            the reference returned when the CAS was registered.
+     */
+    public static void unregisterCas(String aReference)
+    {
+        CAS_REFERENCES.remove(aReference);
+    }
+
     public MtasTokenCollection createTokenCollection(JCas aJCas)
     {
         // Initialize state
@@ -29,7 +29,9 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -45,6 +47,7 @@ import org.junit.rules.TestWatcher;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
@@ -58,6 +61,8 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
@@ -86,6 +91,8 @@ import de.tudarmstadt.ukp.clarin.webanno.conll.Conll2002FormatSupport;
 import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentServiceImpl;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.project.ProjectServiceImpl;
@@ -103,9 +110,12 @@ import de.tudarmstadt.ukp.inception.search.FeatureIndexingSupport;
 import de.tudarmstadt.ukp.inception.search.FeatureIndexingSupportRegistry;
 import de.tudarmstadt.ukp.inception.search.FeatureIndexingSupportRegistryImpl;
 import de.tudarmstadt.ukp.inception.search.PrimitiveUimaIndexingSupport;
+import de.tudarmstadt.ukp.inception.search.SearchQueryRequest;
 import de.tudarmstadt.ukp.inception.search.SearchResult;
+import de.tudarmstadt.ukp.inception.search.SearchResultsPage;
 import de.tudarmstadt.ukp.inception.search.SearchService;
 import de.tudarmstadt.ukp.inception.search.SearchServiceImpl;
+import de.tudarmstadt.ukp.inception.search.config.SearchServiceProperties;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndexFactory;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndexRegistry;
 import de.tudarmstadt.ukp.inception.search.index.PhysicalIndexRegistryImpl;
@@ -130,6 +140,9 @@ public class MtasDocumentIndexTest
     private @Autowired DocumentService documentService;
     private @Autowired SearchService searchService;
     private @Autowired AnnotationSchemaService annotationSchemaService;
+    
+    @Value(value = "${repository.path}")
+    private String repositoryPath;
 
     @Rule
     public TestWatcher watcher = new TestWatcher()
@@ -222,9 +235,46 @@ public class MtasDocumentIndexTest
                 .atMost(60, SECONDS)
                 .pollInterval(5, SECONDS)
                 .until(() -> searchService.isIndexValid(aProject)
+                        && !searchService.isIndexDeferred(aProject)
                         && !searchService.isIndexInProgress(aProject));
     }
 
+    @Test
+    public void testQueryCache() throws Exception
+    {
+        Project project = new Project();
+        project.setName("QueryCache");
+        project.setMode(WebAnnoConst.PROJECT_TYPE_ANNOTATION);
+
+        createProject(project);
+
+        SourceDocument sourceDocument = new SourceDocument();
+
+        sourceDocument.setName("Raw text document");
+        sourceDocument.setProject(project);
+        sourceDocument.setFormat("text");
+
+        String fileContent = "The capital of Galicia is Santiago de Compostela.";
+
+        uploadDocument(Pair.of(sourceDocument, fileContent));
+
+        User user = userRepository.get("admin");
+
+        String query = "\"Galicia\"";
+
+        CacheStats before = ((SearchServiceImpl) searchService).getQueryCacheStats();
+        
+        // Execute the query twice - only differing in surrounding whitespace
+        List<SearchResult> results = searchService.query(user, project, query);
+        List<SearchResult> cachedResults = searchService.query(user, project, " " + query);
+
+        CacheStats after = ((SearchServiceImpl) searchService).getQueryCacheStats();
+        
+        assertEquals(results, cachedResults);
+        assertEquals(1, after.missCount() - before.missCount());
+        assertEquals(1, after.hitCount() - before.hitCount());
+    }
+
     @Test
     public void testRawTextQuery() throws Exception
     {
@@ -377,6 +427,97 @@ public class MtasDocumentIndexTest
         assertEquals(expectedResult, results.get(0));
     }
     
+    @Test
+    public void testCountResults() throws Exception
+    {
+        Project project = new Project();
+        project.setName("CountResults");
+        project.setMode(WebAnnoConst.PROJECT_TYPE_ANNOTATION);
+
+        createProject(project);
+
+        User user = userRepository.get("admin");
+
+        SourceDocument sourceDocument1 = new SourceDocument();
+        sourceDocument1.setName("Annotation document");
+        sourceDocument1.setProject(project);
+        sourceDocument1.setFormat("text");
+
+        SourceDocument sourceDocument2 = new SourceDocument();
+        sourceDocument2.setName("Raw text document");
+        sourceDocument2.setProject(project);
+        sourceDocument2.setFormat("text");
+
+        uploadDocument(
+                Pair.of(sourceDocument1, "The capital of Galicia is Santiago de Compostela."),
+                Pair.of(sourceDocument2, "Galicia is in Spain. Santiago is in Galicia."));
+        annotateDocument(project, user, sourceDocument1);
+
+        String query = "\"Galicia\"";
+
+        // Count results per document
+        Map<Long, Long> documentCounts = searchService.countResultsPerDocument(user, project,
+                query, null);
+
+        assertThat(documentCounts)
+                .containsEntry(sourceDocument1.getId(), 1L)
+                .containsEntry(sourceDocument2.getId(), 2L)
+                .hasSize(2);
+
+        // Count results per named entity value - only the annotated document has a value
+        AnnotationLayer neLayer = annotationSchemaService.getLayer(NamedEntity.class.getName(),
+                project);
+        AnnotationFeature valueFeature = annotationSchemaService.getFeature("value", neLayer);
+        Map<String, Long> valueCounts = searchService.countResultsPerFeatureValue(user, project,
+                query, null, valueFeature);
+
+        assertThat(valueCounts)
+                .containsEntry("LOC", 1L)
+                .hasSize(1);
+    }
+
+    @Test
+    public void testPagedQuery() throws Exception
+    {
+        Project project = new Project();
+        project.setName("PagedQuery");
+        project.setMode(WebAnnoConst.PROJECT_TYPE_ANNOTATION);
+
+        createProject(project);
+
+        SourceDocument sourceDocument = new SourceDocument();
+
+        sourceDocument.setName("Raw text document");
+        sourceDocument.setProject(project);
+        sourceDocument.setFormat("text");
+
+        String fileContent = "Santiago is in Galicia. Santiago has a cathedral. Santiago is old.";
+
+        uploadDocument(Pair.of(sourceDocument, fileContent));
+
+        User user = userRepository.get("admin");
+
+        String query = "\"Santiago\"";
+
+        // Execute query
+        SearchResultsPage page = searchService.query(user, project, query, null, 1, 1);
+
+        // Test results
+        assertNotNull(page);
+        assertEquals(3, page.getTotalResults());
+        assertEquals(1, page.getResults().size());
+        assertEquals(5, page.getResults().get(0).getTokenStart());
+        assertThat(page.isTotalResultsCapped()).isFalse();
+        assertThat(page.hasMoreResults()).isTrue();
+
+        // Request the page beyond the last result
+        page = searchService.query(user, project, query, null, 3, 10);
+        
+        assertEquals(3, page.getTotalResults());
+        assertThat(page.getResults()).isEmpty();
+        assertThat(page.hasMoreResults()).isFalse();
+    }
+
     @Test
     public void testAnnotationQuery() throws Exception
     {
@@ -420,6 +561,101 @@ public class MtasDocumentIndexTest
         assertEquals(expectedResult, results.get(0));
     }
 
+    @Test
+    public void testCommitPendingChangesInBatches() throws Exception
+    {
+        Project project = new Project();
+        project.setName("TestCommitPendingChangesInBatches");
+        project.setMode(WebAnnoConst.PROJECT_TYPE_ANNOTATION);
+
+        createProject(project);
+
+        SourceDocument sourceDocument = new SourceDocument();
+
+        sourceDocument.setName("Raw text document");
+        sourceDocument.setProject(project);
+        sourceDocument.setFormat("text");
+
+        String fileContent = "The capital of Galicia is Santiago de Compostela.";
+
+        uploadDocument(Pair.of(sourceDocument, fileContent));
+
+        // Close the indexes of the search service so that the index can be opened here
+        ((SearchServiceImpl) searchService).destroy();
+        
+        SearchServiceProperties properties = new SearchServiceProperties();
+        properties.setIndexCommitBatchSize(2);
+        properties.setIndexCommitInterval(60_000);
+        MtasDocumentIndex index = new MtasDocumentIndex(project, annotationSchemaService,
+                documentService, projectService, repositoryPath, properties);
+        try {
+            index.openPhysicalIndex();
+            
+            // The first change is only recorded in the journal...
+            index.deindexDocument(sourceDocument);
+            assertThat(index.getPendingChangesJournal()).exists();
+            
+            // ... and the second change completes the batch and is committed along with it
+            index.indexDocument(sourceDocument,
+                    documentService.createOrReadInitialCas(sourceDocument));
+            assertThat(index.getPendingChangesJournal()).doesNotExist();
+            
+            assertThat(index.executeQuery(new SearchQueryRequest(project, "admin", "Galicia")))
+                    .hasSize(1);
+        }
+        finally {
+            index.closePhysicalIndex();
+        }
+    }
+
+    @Test
+    public void testRecoverPendingChanges() throws Exception
+    {
+        Project project = new Project();
+        project.setName("TestRecoverPendingChanges");
+        project.setMode(WebAnnoConst.PROJECT_TYPE_ANNOTATION);
+
+        createProject(project);
+
+        SourceDocument sourceDocument = new SourceDocument();
+
+        sourceDocument.setName("Raw text document");
+        sourceDocument.setProject(project);
+        sourceDocument.setFormat("text");
+
+        String fileContent = "The capital of Galicia is Santiago de Compostela.";
+
+        uploadDocument(Pair.of(sourceDocument, fileContent));
+
+        // Close the indexes of the search service so that the index can be opened here
+        ((SearchServiceImpl) searchService).destroy();
+        
+        SearchQueryRequest request = new SearchQueryRequest(project, "admin", "Galicia");
+        MtasDocumentIndex index = new MtasDocumentIndex(project, annotationSchemaService,
+                documentService, projectService, repositoryPath, new SearchServiceProperties());
+        try {
+            // Remove the document from the index...
+            index.openPhysicalIndex();
+            index.deindexDocument(sourceDocument);
+            index.commit();
+            assertThat(index.executeQuery(request)).isEmpty();
+            index.closePhysicalIndex();
+            
+            // ... and leave a journal behind as if the document had been indexed again, but the
+            // application crashed before the change was committed
+            Files.write(index.getPendingChangesJournal().toPath(),
+                    asList(sourceDocument.getId() + "/-1/"), UTF_8);
+            
+            // Opening the index indexes the document again
+            index.openPhysicalIndex();
+            assertThat(index.getPendingChangesJournal()).doesNotExist();
+            assertThat(index.executeQuery(request)).hasSize(1);
+        }
+        finally {
+            index.closePhysicalIndex();
+        }
+    }
+
     @Configuration
     public static class TestContext
     {
@@ -537,6 +773,16 @@ public class MtasDocumentIndexTest
             return new IndexScheduler();
         }
 
+        @Bean
+        public SearchServiceProperties searchServiceProperties()
+        {
+            // Index changed annotation documents right away so the tests do not have to wait for
+            // the debounce delay
+            SearchServiceProperties properties = new SearchServiceProperties();
+            properties.setIndexDebounceDelay(0);
+            return properties;
+        }
+
         @Bean
         public DocumentService documentService()
         {
@@ -25,6 +25,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -296,4 +297,52 @@ public class MtasUimaParserTest
                     "Dependency-target=b", 
                     "Dependency-target.PosValue=B");
     }
+    
+    @Test
+    public void testRegisteredCas() throws Exception
+    {
+        TokenBuilder<Token, Sentence> builder = TokenBuilder.create(Token.class, Sentence.class);
+        builder.buildTokens(jcas, "This is a test .");
+
+        when(annotationSchemaService.listAnnotationLayer(project)).thenReturn(asList());
+        
+        MtasUimaParser sut = new MtasUimaParser(project, annotationSchemaService,
+                featureIndexingSupportRegistry);
+        
+        String reference = MtasUimaParser.registerCas(jcas);
+        MtasTokenCollection tc;
+        try {
+            tc = sut.createTokenCollection(new StringReader(reference));
+        }
+        finally {
+            MtasUimaParser.unregisterCas(reference);
+        }
+        
+        List<MtasToken> tokens = new ArrayList<>();
+        tc.iterator().forEachRemaining(tokens::add);
+        
+        assertThat(tokens)
+                .filteredOn(t -> "Token".equals(t.getPrefix()))
+                .extracting(MtasToken::getPostfix)
+                .containsExactly("This", "is", "a", "test", ".");
+    }
+    
+    @Test
+    public void testUnregisteredCas() throws Exception
+    {
+        TokenBuilder<Token, Sentence> builder = TokenBuilder.create(Token.class, Sentence.class);
+        builder.buildTokens(jcas, "This is a test .");
+
+        when(annotationSchemaService.listAnnotationLayer(project)).thenReturn(asList());
+        
+        MtasUimaParser sut = new MtasUimaParser(project, annotationSchemaService,
+                featureIndexingSupportRegistry);
+        
+        // Once released, the reference does no longer resolve to the CAS
+        String reference = MtasUimaParser.registerCas(jcas);
+        MtasUimaParser.unregisterCas(reference);
+        MtasTokenCollection tc = sut.createTokenCollection(new StringReader(reference));
+        
+        assertThat(tc.iterator().hasNext()).isFalse();
+    }
 }